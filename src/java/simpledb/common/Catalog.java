@@ -58,6 +58,7 @@ public class Catalog {
      *    this file/tupledesc param for the calls getTupleDesc and getFile
      * @param name the name of the table -- may be an empty string.  May not be null.  If a name
      * conflict exists, use the last table to be added as the table for a given name.
+     * A table with the same id is replaced, and its DbFile closed.
      * @param pkeyField the name of the primary key field
      */
     public void addTable(DbFile file, String name, String pkeyField) {
@@ -67,7 +68,8 @@ public class Catalog {
         int tableId = file.getId();
         TableInfo tableInfo = new TableInfo(tableId, file, name, pkeyField);
         tableIdMapBytableName.put(name, tableId);
-        tableInfoMapBytableId.put(tableId, tableInfo);
+        TableInfo old = tableInfoMapBytableId.put(tableId, tableInfo);
+        if (old != null && old.dbFile != file) close(old.dbFile);
     }
 
     public void addTable(DbFile file, String name) {
@@ -146,12 +148,24 @@ public class Catalog {
         return tableInfoMapBytableId.get(id).tableName;
     }
     
-    /** Delete all tables from the catalog */
+    /** Delete all tables from the catalog, closing their DbFiles */
     public void clear() {
         // some code goes here
+        for (TableInfo info : tableInfoMapBytableId.values()) {
+            close(info.dbFile);
+        }
         tableIdMapBytableName.clear();
         tableInfoMapBytableId.clear();
     }
+
+    private static void close(DbFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            // the table is gone from the catalog either way
+            Debug.log("closing table " + file.getId() + ": " + e);
+        }
+    }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
@@ -1,6 +1,7 @@
 package simpledb.common;
 
 import simpledb.storage.BufferPool;
+import simpledb.storage.EvictionPolicy;
 import simpledb.storage.LogFile;
 
 import java.io.*;
@@ -58,11 +59,19 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(pages, BufferPool.DEFAULT_EVICTION_POLICY);
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * with the given eviction policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, EvictionPolicy.Factory evictionPolicy) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), new BufferPool(pages, evictionPolicy));
         } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
             e.printStackTrace();
         }
@@ -71,8 +80,9 @@ public class Database {
     }
 
     // reset the database, used for unit tests only.
+    // closes the tables of the old one.
     public static void reset() {
-        _instance.set(new Database());
+        _instance.getAndSet(new Database())._catalog.clear();
     }
 
 }
@@ -6,6 +6,7 @@ import simpledb.storage.IntField;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Class representing a type in SimpleDB.
@@ -28,6 +29,11 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            return new IntField(buf.getInt(offset));
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -46,6 +52,17 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf, int offset) throws ParseException {
+            int strLen = buf.getInt(offset);
+            if (strLen < 0 || strLen > STRING_LEN)
+                throw new ParseException("couldn't parse", offset);
+            byte[] bs = new byte[strLen];
+            for (int i = 0; i < strLen; i++)
+                bs[i] = buf.get(offset + 4 + i);
+            return new StringField(new String(bs), STRING_LEN);
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -64,4 +81,15 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object whose contents
+   *   start at the given absolute position of buf. The position of buf is
+   *   not changed, so several threads may parse from the same buffer.
+   * @param buf The buffer to read from
+   * @param offset The position of the field in buf
+   * @throws ParseException if the bytes at offset are not a valid field of
+   *   this type.
+   */
+    public abstract Field parse(ByteBuffer buf, int offset) throws ParseException;
+
 }
@@ -1,6 +1,8 @@
 package simpledb.execution;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import simpledb.test;
 import simpledb.common.Database;
@@ -29,6 +31,9 @@ public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** number of child tuples inserted with one BufferPool call */
+    private static final int BATCH_SIZE = 4096;
+
     /**
      * Constructor.
      *
@@ -92,21 +97,27 @@ public class Insert extends Operator {
      * @return A 1-field tuple containing the number of inserted records, or
      *         null if called more than once.
      * @see Database#getBufferPool
-     * @see BufferPool#insertTuple
+     * @see BufferPool#insertTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
         Tuple ans = new Tuple(outTupleDesc);
         int num =0;
+        // hand the tuples to the BufferPool in batches, so that pages are
+        // filled one at a time instead of being looked up for every tuple
+        List<Tuple> batch = new ArrayList<>(BATCH_SIZE);
         while (children[0].hasNext()){
-            Tuple tuple = children[0].next();
-            try {
-                Database.getBufferPool().insertTuple(transactionId, tableId, tuple);
-            } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+            batch.add(children[0].next());
+            if (batch.size() == BATCH_SIZE || !children[0].hasNext()) {
+                try {
+                    Database.getBufferPool().insertTuples(transactionId, tableId, batch.iterator());
+                } catch (IOException e) {
+                    // TODO Auto-generated catch block
+                    e.printStackTrace();
+                }
+                num += batch.size();
+                batch.clear();
             }
-            num++;
         }
         ans.setField(0, new IntField(num) );
         if (rewind) return null;
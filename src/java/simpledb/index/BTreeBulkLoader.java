@@ -0,0 +1,666 @@
+package simpledb.index;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * BTreeBulkLoader builds the pages of an empty BTreeFile from an unsorted
+ * stream of tuples, without going through insertTuple.
+ * <p>
+ * The tuples are first sorted with an external merge sort: runs of tuples
+ * that fit in the sort buffer are sorted in memory and written to temporary
+ * files, and the runs are then merged. Once the number of tuples is known
+ * the shape of the whole tree is fixed, so every page is written exactly
+ * once and in page number order: the leaves from left to right, then each
+ * level of internal pages, with the root last. Each page is filled to the
+ * fill factor and no page is left below minimum occupancy.
+ * <p>
+ * When the keys are compressed, how many tuples fit on a page depends on the
+ * keys themselves, so the sorted tuples are read through once before they
+ * are written, filling scratch pages to lay out the tree.
+ * <p>
+ * The pages are written to the file directly, bypassing the buffer pool,
+ * the lock manager and the log. A load that fails partway leaves the file
+ * unusable.
+ */
+class BTreeBulkLoader {
+
+	/** number of runs merged at once; more runs are merged in several passes */
+	private static final int MERGE_FAN_IN = 64;
+	/** bytes buffered for each run file being written or read */
+	private static final int RUN_BUFFER_BYTES = 64 * 1024;
+
+	private final BTreeFile bf;
+	private final TupleDesc td;
+	private final Type[] typeAr;
+	private final int keyField;
+	private final double fillFactor;
+	private final int runTuples;
+	private final Comparator<Tuple> byKey;
+	/** run files not yet deleted */
+	private final List<File> runFiles = new ArrayList<>();
+
+	/**
+	 * @param bf - the BTreeFile to load
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1
+	 * @param sortBufferBytes - the number of bytes of tuples to sort in memory at once
+	 */
+	BTreeBulkLoader(BTreeFile bf, double fillFactor, long sortBufferBytes) {
+		this.bf = bf;
+		this.td = bf.getTupleDesc();
+		this.typeAr = new Type[td.numFields()];
+		for(int i = 0; i < typeAr.length; i++) {
+			typeAr[i] = td.getFieldType(i);
+		}
+		this.keyField = bf.keyField();
+		this.fillFactor = fillFactor;
+		this.runTuples = (int) Math.max(1, Math.min(Integer.MAX_VALUE, sortBufferBytes / td.getSize()));
+		this.byKey = new BTreeFileEncoder.TupleComparator(keyField);
+	}
+
+	/**
+	 * Sort the tuples and write out the tree.
+	 *
+	 * @param it - the tuples to load; opened and closed by this method
+	 */
+	void load(DbFileIterator it) throws DbException, IOException, TransactionAbortedException {
+		try {
+			SortedTuples tuples = sort(it);
+			try {
+				build(tuples);
+			} finally {
+				tuples.close();
+			}
+		} finally {
+			for(File f : runFiles) {
+				f.delete();
+			}
+			runFiles.clear();
+		}
+	}
+
+	/**
+	 * A stream of tuples in key order
+	 */
+	private static abstract class SortedTuples implements Closeable {
+		/** the number of tuples in the stream */
+		final long size;
+
+		SortedTuples(long size) {
+			this.size = size;
+		}
+
+		/** Returns the next tuple without consuming it, or null at the end. */
+		abstract Tuple peek() throws IOException;
+
+		/** Returns the next tuple, or null at the end. */
+		abstract Tuple next() throws IOException;
+
+		/** Starts the stream over from the first tuple. */
+		abstract void rewind() throws IOException;
+
+		public void close() throws IOException {
+		}
+	}
+
+	/**
+	 * Sorted tuples held in memory
+	 */
+	private static class InMemoryTuples extends SortedTuples {
+		private final List<Tuple> tuples;
+		private int pos;
+
+		InMemoryTuples(List<Tuple> tuples) {
+			super(tuples.size());
+			this.tuples = tuples;
+		}
+
+		Tuple peek() {
+			return pos < tuples.size() ? tuples.get(pos) : null;
+		}
+
+		Tuple next() {
+			return pos < tuples.size() ? tuples.get(pos++) : null;
+		}
+
+		void rewind() {
+			pos = 0;
+		}
+	}
+
+	/**
+	 * A run written to a temporary file
+	 */
+	private static class Run {
+		final File file;
+		final long size;
+
+		Run(File file, long size) {
+			this.file = file;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Reads the tuples of a run back in order
+	 */
+	private class RunReader implements Closeable {
+		private final DataInputStream in;
+		private long remaining;
+		Tuple head;
+
+		RunReader(Run run) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file), RUN_BUFFER_BYTES));
+			this.remaining = run.size;
+			advance();
+		}
+
+		/** Reads the next tuple into head; head is null at the end of the run. */
+		void advance() throws IOException {
+			if(remaining == 0) {
+				head = null;
+				return;
+			}
+			remaining--;
+			Tuple t = new Tuple(td);
+			try {
+				for(int i = 0; i < typeAr.length; i++) {
+					t.setField(i, typeAr[i].parse(in));
+				}
+			} catch (ParseException e) {
+				throw new IOException("corrupt sort run", e);
+			}
+			head = t;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Merges runs by repeatedly taking the least head tuple
+	 */
+	private class MergedRuns extends SortedTuples {
+		private final List<Run> runs;
+		private final List<RunReader> readers = new ArrayList<>();
+		private final PriorityQueue<RunReader> heads = new PriorityQueue<>((a, b) -> byKey.compare(a.head, b.head));
+
+		MergedRuns(List<Run> runs) throws IOException {
+			super(totalSize(runs));
+			this.runs = runs;
+			open();
+		}
+
+		private void open() throws IOException {
+			try {
+				for(Run run : runs) {
+					RunReader r = new RunReader(run);
+					readers.add(r);
+					if(r.head != null) {
+						heads.add(r);
+					}
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		Tuple peek() {
+			return heads.isEmpty() ? null : heads.peek().head;
+		}
+
+		Tuple next() throws IOException {
+			RunReader r = heads.poll();
+			if(r == null) {
+				return null;
+			}
+			Tuple t = r.head;
+			r.advance();
+			if(r.head != null) {
+				heads.add(r);
+			}
+			return t;
+		}
+
+		void rewind() throws IOException {
+			close();
+			readers.clear();
+			heads.clear();
+			open();
+		}
+
+		public void close() throws IOException {
+			for(RunReader r : readers) {
+				r.close();
+			}
+		}
+	}
+
+	private static long totalSize(List<Run> runs) {
+		long size = 0;
+		for(Run run : runs) {
+			size += run.size;
+		}
+		return size;
+	}
+
+	/**
+	 * Read all the tuples and sort them on the key field. If they all fit in the
+	 * sort buffer they are sorted in memory; otherwise they are written out in
+	 * sorted runs, which are merged until few enough are left to merge at once.
+	 *
+	 * @param it - the tuples to sort
+	 * @return the tuples in key order
+	 */
+	private SortedTuples sort(DbFileIterator it) throws DbException, IOException, TransactionAbortedException {
+		List<Run> runs = new ArrayList<>();
+		List<Tuple> buffer = new ArrayList<>();
+		it.open();
+		try {
+			while(it.hasNext()) {
+				Tuple t = it.next();
+				if(!td.equals(t.getTupleDesc())) {
+					throw new DbException("type mismatch, in bulkLoad");
+				}
+				buffer.add(t);
+				if(buffer.size() == runTuples) {
+					buffer.sort(byKey);
+					runs.add(writeRun(buffer));
+					buffer.clear();
+				}
+			}
+		} finally {
+			it.close();
+		}
+
+		buffer.sort(byKey);
+		if(runs.isEmpty()) {
+			return new InMemoryTuples(buffer);
+		}
+		if(!buffer.isEmpty()) {
+			runs.add(writeRun(buffer));
+		}
+
+		while(runs.size() > MERGE_FAN_IN) {
+			List<Run> merged = new ArrayList<>();
+			for(int i = 0; i < runs.size(); i += MERGE_FAN_IN) {
+				List<Run> group = runs.subList(i, Math.min(runs.size(), i + MERGE_FAN_IN));
+				if(group.size() == 1) {
+					merged.add(group.get(0));
+					continue;
+				}
+				try (MergedRuns m = new MergedRuns(group)) {
+					merged.add(writeRun(m));
+				}
+				for(Run run : group) {
+					run.file.delete();
+					runFiles.remove(run.file);
+				}
+			}
+			runs = merged;
+		}
+		return new MergedRuns(runs);
+	}
+
+	/**
+	 * Write sorted tuples to a new run file
+	 */
+	private Run writeRun(List<Tuple> tuples) throws IOException {
+		return writeRun(new InMemoryTuples(tuples));
+	}
+
+	/**
+	 * Write the remaining tuples of a sorted stream to a new run file
+	 */
+	private Run writeRun(SortedTuples tuples) throws IOException {
+		File f = File.createTempFile("btreeSortRun", ".tmp");
+		f.deleteOnExit();
+		runFiles.add(f);
+		long size = 0;
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(f), RUN_BUFFER_BYTES))) {
+			Tuple t;
+			while((t = tuples.next()) != null) {
+				for(int i = 0; i < typeAr.length; i++) {
+					t.getField(i).serialize(out);
+				}
+				size++;
+			}
+		}
+		return new Run(f, size);
+	}
+
+	/**
+	 * How the items of one level of the tree, tuples for the leaves and children for
+	 * the internal pages, are divided among its pages.
+	 */
+	private static class Level {
+		final int firstPage;
+		final int numPages;
+		final int category;
+		/** the index of the first item past each page */
+		private final long[] ends;
+
+		/**
+		 * Spread the items evenly: the first few pages get one more than the others.
+		 *
+		 * @param firstPage - the page number of the left-most page of the level
+		 * @param items - the number of items on the level
+		 * @param target - the number of items to put on each page
+		 * @param min - the fewest items a page may hold, unless it is the root
+		 * @param max - the most items a page can hold
+		 * @param category - the BTreePageId category of the pages
+		 */
+		Level(int firstPage, long items, int target, int min, int max, int category) {
+			long pages = Math.max(1, (items + target - 1) / target);
+			if(pages > 1 && items / pages < min) {
+				// the target is so low that the pages would be under minimum occupancy
+				pages = Math.max((items + max - 1) / max, items / min);
+			}
+			if(pages > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("too many pages for one BTreeFile");
+			}
+			this.firstPage = firstPage;
+			this.numPages = (int) pages;
+			this.category = category;
+			this.ends = new long[numPages];
+			long base = items / pages;
+			long extra = items % pages;
+			for(int i = 0; i < numPages; i++) {
+				ends[i] = (i + 1) * base + Math.min(i + 1, extra);
+			}
+		}
+
+		/**
+		 * @param firstPage - the page number of the left-most page of the level
+		 * @param sizes - the number of items on each page, from left to right
+		 * @param category - the BTreePageId category of the pages
+		 */
+		Level(int firstPage, List<Integer> sizes, int category) {
+			this.firstPage = firstPage;
+			this.numPages = sizes.size();
+			this.category = category;
+			this.ends = new long[numPages];
+			long end = 0;
+			for(int i = 0; i < numPages; i++) {
+				end += sizes.get(i);
+				ends[i] = end;
+			}
+		}
+
+		/** Returns the number of items on the i-th page of the level. */
+		int size(int i) {
+			return (int) (ends[i] - (i == 0 ? 0 : ends[i - 1]));
+		}
+
+		/** Returns the index of the page that holds the item with the given index. */
+		int pageOf(long item) {
+			int i = Arrays.binarySearch(ends, item);
+			return i >= 0 ? i + 1 : -i - 1;
+		}
+
+		BTreePageId pageId(int tableid, int i) {
+			return new BTreePageId(tableid, firstPage + i, category);
+		}
+	}
+
+	/**
+	 * Decide how many pages each level of the tree has, from the leaves up to the root
+	 *
+	 * @param tuples - the tuples in key order; if the keys are compressed, they are read
+	 * through and the stream is rewound
+	 * @return the levels of the tree, leaves first
+	 */
+	private List<Level> shape(SortedTuples tuples) throws DbException, IOException {
+		BTreeLeafPage leaf = newLeafPage();
+		if(leaf.compressed) {
+			return packedShape(tuples);
+		}
+		int maxTuples = leaf.getMaxTuples();
+		int maxEntries = newInternalPage().getMaxEntries();
+
+		List<Level> levels = new ArrayList<>();
+		Level level = new Level(1, tuples.size, Math.max(1, (int) (maxTuples * fillFactor)),
+				maxTuples / 2, maxTuples, BTreePageId.LEAF);
+		levels.add(level);
+		while(level.numPages > 1) {
+			// items are children, one more than the entries
+			level = new Level(level.firstPage + level.numPages, level.numPages,
+					Math.max(1, (int) (maxEntries * fillFactor)) + 1,
+					maxEntries / 2 + 1, maxEntries + 1, BTreePageId.INTERNAL);
+			levels.add(level);
+		}
+		return levels;
+	}
+
+	/**
+	 * Decide how many pages each level of a tree with compressed keys has, by filling
+	 * scratch pages with the tuples, then with the separating keys of each level.
+	 *
+	 * @param tuples - the tuples in key order; read through, then rewound
+	 * @return the levels of the tree, leaves first
+	 */
+	private List<Level> packedShape(SortedTuples tuples) throws DbException, IOException {
+		List<Field> separators = new ArrayList<>();
+		List<Level> levels = new ArrayList<>();
+		Level level = new Level(1, packLeaves(tuples, separators), BTreePageId.LEAF);
+		tuples.rewind();
+		levels.add(level);
+		while(level.numPages > 1) {
+			List<Field> upper = new ArrayList<>();
+			level = new Level(level.firstPage + level.numPages, packEntries(separators, upper),
+					BTreePageId.INTERNAL);
+			levels.add(level);
+			separators = upper;
+		}
+		return levels;
+	}
+
+	private BTreeLeafPage newLeafPage() throws IOException {
+		return new BTreeLeafPage(new BTreePageId(bf.getId(), 1, BTreePageId.LEAF),
+				BTreePage.createEmptyPageData(), keyField);
+	}
+
+	private BTreeInternalPage newInternalPage() throws IOException {
+		return new BTreeInternalPage(new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL),
+				BTreePage.createEmptyPageData(), keyField);
+	}
+
+	/**
+	 * Fill leaves with the tuples in order until each has used the fill factor of its
+	 * space. If that leaves the last leaf under minimum occupancy, it is poured into
+	 * the one before, and if they do not fit on one page the two are evened out.
+	 *
+	 * @param tuples - the tuples in key order; read through
+	 * @param separators - gets the high key of every leaf but the last
+	 * @return the number of tuples on each leaf, from left to right
+	 */
+	private List<Integer> packLeaves(SortedTuples tuples, List<Field> separators) throws DbException, IOException {
+		BTreeLeafPage prev = null;
+		BTreeLeafPage page = newLeafPage();
+		int max = page.getMaxTuples();
+		int target = Math.max(1, (int) (max * fillFactor));
+		List<Integer> sizes = new ArrayList<>();
+		Tuple last = null;
+		Tuple t;
+		while((t = tuples.next()) != null) {
+			if(page.getNumEmptySlots() <= max - target) {
+				sizes.add(page.getNumTuples());
+				separators.add(BTreeInternalPage.separator(last.getField(keyField), t.getField(keyField)));
+				prev = page;
+				page = newLeafPage();
+			}
+			page.insertTuple(t);
+			last = t;
+		}
+		if(prev == null || page.getNumEmptySlots() <= max - max / 2) {
+			sizes.add(page.getNumTuples());
+			return sizes;
+		}
+
+		while(page.getNumTuples() > 0 && prev.getNumEmptySlots() > 0) {
+			Tuple first = page.iterator().next();
+			page.deleteTuple(first);
+			prev.insertTuple(first);
+		}
+		while(page.getNumTuples() > 0 && page.getNumEmptySlots() > prev.getNumEmptySlots() + 1) {
+			Tuple moved = prev.reverseIterator().next();
+			prev.deleteTuple(moved);
+			page.insertTuple(moved);
+		}
+		sizes.set(sizes.size() - 1, prev.getNumTuples());
+		separators.remove(separators.size() - 1);
+		if(page.getNumTuples() > 0) {
+			sizes.add(page.getNumTuples());
+			separators.add(BTreeInternalPage.separator(prev.reverseIterator().next().getField(keyField),
+					page.iterator().next().getField(keyField)));
+		}
+		return sizes;
+	}
+
+	/**
+	 * Fill internal pages with the keys separating the pages of the level below, the
+	 * way {@link #packLeaves} fills leaves. The key between two internal pages is not
+	 * kept on either, but moves up a level.
+	 *
+	 * @param keys - the keys separating the pages of the level below
+	 * @param upper - gets the high key of every page but the last
+	 * @return the number of children of each page, from left to right
+	 */
+	private List<Integer> packEntries(List<Field> keys, List<Field> upper) throws DbException, IOException {
+		BTreeInternalPage prev = null;
+		BTreeInternalPage page = newInternalPage();
+		int max = page.getMaxEntries();
+		int target = Math.max(1, (int) (max * fillFactor));
+		List<Integer> sizes = new ArrayList<>();
+		for(int c = 0; c < keys.size(); c++) {
+			// the key separates child c from child c + 1
+			if(page.getNumEmptySlots() <= max - target) {
+				sizes.add(page.getNumEntries() + 1);
+				upper.add(keys.get(c));
+				prev = page;
+				page = newInternalPage();
+				continue;
+			}
+			page.insertEntry(new BTreeEntry(keys.get(c), scratchChild(c), scratchChild(c + 1)));
+		}
+		if(prev == null || page.getNumEmptySlots() <= max - max / 2) {
+			sizes.add(page.getNumEntries() + 1);
+			return sizes;
+		}
+
+		// the key between the two pages comes down as the children move across
+		BTreePageId lastChild = scratchChild(keys.size());
+		Field between = upper.remove(upper.size() - 1);
+		boolean merged = false;
+		while(!merged && prev.getNumEmptySlots() > 0) {
+			BTreePageId left = prev.reverseIterator().next().getRightChild();
+			if(page.getNumEntries() == 0) {
+				prev.insertEntry(new BTreeEntry(between, left, lastChild));
+				merged = true;
+			} else {
+				BTreeEntry first = page.iterator().next();
+				prev.insertEntry(new BTreeEntry(between, left, first.getLeftChild()));
+				between = first.getKey();
+				page.deleteKeyAndLeftChild(first);
+			}
+		}
+		while(!merged && page.getNumEmptySlots() > prev.getNumEmptySlots() + 1) {
+			BTreeEntry moved = prev.reverseIterator().next();
+			BTreePageId right = page.getNumEntries() == 0 ? lastChild : page.iterator().next().getLeftChild();
+			page.insertEntry(new BTreeEntry(between, moved.getRightChild(), right));
+			between = moved.getKey();
+			prev.deleteKeyAndRightChild(moved);
+		}
+		sizes.set(sizes.size() - 1, prev.getNumEntries() + 1);
+		if(!merged) {
+			sizes.add(page.getNumEntries() + 1);
+			upper.add(between);
+		}
+		return sizes;
+	}
+
+	/** A stand-in id for the c-th child, for entries on scratch pages */
+	private BTreePageId scratchChild(int c) {
+		return new BTreePageId(bf.getId(), c + 1, BTreePageId.LEAF);
+	}
+
+	/**
+	 * Write out the leaves, then the internal pages level by level, then the root pointer
+	 *
+	 * @param tuples - the tuples in key order
+	 */
+	private void build(SortedTuples tuples) throws DbException, IOException {
+		int tableid = bf.getId();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		List<Level> levels = shape(tuples);
+
+		// the keys separating each page of the level being written from the next;
+		// the high key of each page and the keys of the entries in the level above
+		List<Field> separators = new ArrayList<>();
+		Level leaves = levels.get(0);
+		Level parents = levels.size() > 1 ? levels.get(1) : null;
+		for(int i = 0; i < leaves.numPages; i++) {
+			BTreeLeafPage page = new BTreeLeafPage(leaves.pageId(tableid, i), BTreePage.createEmptyPageData(), keyField);
+			Tuple last = null;
+			for(int j = 0; j < leaves.size(i); j++) {
+				last = tuples.next();
+				page.insertTuple(last);
+			}
+			page.setParentId(parents == null ? rootPtrId : parents.pageId(tableid, parents.pageOf(i)));
+			page.setLeftSiblingId(i > 0 ? leaves.pageId(tableid, i - 1) : null);
+			if(i + 1 < leaves.numPages) {
+				Field highKey = BTreeInternalPage.separator(last.getField(keyField), tuples.peek().getField(keyField));
+				page.setRightSiblingId(leaves.pageId(tableid, i + 1));
+				page.setHighKey(highKey);
+				separators.add(highKey);
+			}
+			bf.writePage(page);
+		}
+
+		for(int l = 1; l < levels.size(); l++) {
+			Level children = levels.get(l - 1);
+			Level level = levels.get(l);
+			parents = l + 1 < levels.size() ? levels.get(l + 1) : null;
+			List<Field> nextSeparators = new ArrayList<>();
+			int child = 0;
+			for(int i = 0; i < level.numPages; i++) {
+				int end = child + level.size(i);
+				BTreeInternalPage page = new BTreeInternalPage(level.pageId(tableid, i), BTreePage.createEmptyPageData(), keyField);
+				for(int c = child; c < end - 1; c++) {
+					page.insertEntry(new BTreeEntry(separators.get(c),
+							children.pageId(tableid, c), children.pageId(tableid, c + 1)));
+				}
+				page.setParentId(parents == null ? rootPtrId : parents.pageId(tableid, parents.pageOf(i)));
+				if(i + 1 < level.numPages) {
+					Field highKey = separators.get(end - 1);
+					page.setRightSiblingId(level.pageId(tableid, i + 1));
+					page.setHighKey(highKey);
+					nextSeparators.add(highKey);
+				}
+				bf.writePage(page);
+				child = end;
+			}
+			separators = nextSeparators;
+		}
+
+		// point the root pointer at the root only once the rest of the tree is on disk
+		bf.sync();
+		Level top = levels.get(levels.size() - 1);
+		BTreeRootPtrPage rootPtr = new BTreeRootPtrPage(rootPtrId, BTreeRootPtrPage.createEmptyPageData());
+		rootPtr.setRootId(top.pageId(tableid, 0));
+		bf.writePage(rootPtr);
+		bf.sync();
+	}
+}
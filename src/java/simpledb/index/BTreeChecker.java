@@ -9,8 +9,10 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -27,6 +29,9 @@ public class BTreeChecker {
         public BTreePageId leftmostId;
         public BTreePageId ptrRight;
         public BTreePageId rightmostId;
+        // for each internal level, top-down: the left-most page, and the right sibling pointer of the right-most page
+        public List<BTreePageId> internalLeftmostIds = new ArrayList<>();
+        public List<BTreePageId> internalPtrRights = new ArrayList<>();
 
         SubtreeSummary() {}
 
@@ -53,6 +58,13 @@ public class BTreeChecker {
 
             ans.ptrRight = right.ptrRight;
             ans.rightmostId = right.rightmostId;
+
+            assert(accleft.internalPtrRights.size() == right.internalLeftmostIds.size());
+            for (int i = 0; i < accleft.internalPtrRights.size(); i++) {
+                assert(right.internalLeftmostIds.get(i).equals(accleft.internalPtrRights.get(i)));
+            }
+            ans.internalLeftmostIds = accleft.internalLeftmostIds;
+            ans.internalPtrRights = right.internalPtrRights;
             return ans;
         }
     }
@@ -60,8 +72,8 @@ public class BTreeChecker {
     /**
      * checks the integrity of the tree:
      * 1) parent pointers.
-     * 2) sibling pointers.
-     * 3) range invariants.
+     * 2) sibling pointers, of leaf and internal pages.
+     * 3) range invariants, including high keys.
      * 4) record to page pointers.
      * 5) occupancy invariants. (if enabled)
      */
@@ -76,6 +88,9 @@ public class BTreeChecker {
                     rtptr.getRootId(), null, null, rtptr.getId(), checkOccupancy, 0);
             assert (res.ptrLeft == null);
             assert (res.ptrRight == null);
+            for (BTreePageId ptrRight : res.internalPtrRights) {
+                assert (ptrRight == null);
+            }
         }
     }
 
@@ -123,6 +138,10 @@ public class BTreeChecker {
                     ipage.getId(), checkOccupancy, depth + 1);
             acc = SubtreeSummary.checkAndMerge(acc, lastRight);
 
+            acc.internalLeftmostIds = new ArrayList<>(acc.internalLeftmostIds);
+            acc.internalLeftmostIds.add(0, ipage.getId());
+            acc.internalPtrRights = new ArrayList<>(acc.internalPtrRights);
+            acc.internalPtrRights.add(0, ipage.getRightSiblingId());
             return acc;
         } else {
             assert(false); // no other page types allowed inside the tree.
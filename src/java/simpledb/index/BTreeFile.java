@@ -1,7 +1,11 @@
 package simpledb.index;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -28,10 +32,32 @@ import simpledb.transaction.TransactionId;
  */
 public class BTreeFile implements DbFile {
 
+	/** fill factor of the pages written by {@link #bulkLoad(DbFileIterator)} */
+	public static final double DEFAULT_FILL_FACTOR = 1.0;
+	/** bytes of tuples that {@link #bulkLoad(DbFileIterator)} sorts in memory at once */
+	public static final long DEFAULT_SORT_BUFFER_BYTES = 16L << 20;
+
 	private final File f;
 	private final TupleDesc td;
 	private final int tableid ;
 	private final int keyField;
+	// open channel on f; also caches its length
+	private final FileHandle handle;
+	// short-term latches on the root pointer and internal pages, taken by
+	// descents that do not lock those pages
+	private final PageLatches latches = new PageLatches();
+	// bumped when a merge or redistribution starts and when it ends; a
+	// descent that saw it change may have been sent to the wrong leaf.
+	// Splits need no such check: a descent that reads a page after it
+	// was split follows its right sibling pointer
+	private final AtomicLong structureVersion = new AtomicLong();
+	// transactions in the middle of a merge or redistribution
+	private final Set<TransactionId> merging = ConcurrentHashMap.newKeySet();
+	// root pointer and internal pages changed by a merge or redistribution,
+	// and the transaction that changed them; not trusted while it is running
+	private final ConcurrentHashMap<PageId, TransactionId> mergedPages = new ConcurrentHashMap<>();
+	// optimistic descents that had to be redone with locks
+	private final LongAdder descentRestarts = new LongAdder();
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -43,6 +69,7 @@ public class BTreeFile implements DbFile {
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
 		this.f = f;
+		this.handle = new FileHandle(f);
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
@@ -87,49 +114,61 @@ public class BTreeFile implements DbFile {
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
-            if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-                byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BTreeRootPtrPage.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                return new BTreeRootPtrPage(id, pageBuf);
-            } else {
-                byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
-                } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
-                } else { // id.pgcateg() == BTreePageId.HEADER
-                    return new BTreeHeaderPage(id, pageBuf);
-                }
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        // Close the file on success or error
-        // Ignore failures closing the file
-    }
+		try {
+			if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+				byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
+				int retval = handle.read(pageBuf, 0);
+				if (retval == -1) {
+					throw new IllegalArgumentException("Read past end of table");
+				}
+				if (retval < BTreeRootPtrPage.getPageSize()) {
+					throw new IllegalArgumentException("Unable to read "
+							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
+				}
+				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+				return new BTreeRootPtrPage(id, pageBuf);
+			} else {
+				byte[] pageBuf = new byte[BufferPool.getPageSize()];
+				int retval = handle.read(pageBuf, pageOffset(id.getPageNumber()));
+				if (retval == -1) {
+					throw new IllegalArgumentException("Read past end of table");
+				}
+				if (retval < BufferPool.getPageSize()) {
+					throw new IllegalArgumentException("Unable to read "
+							+ BufferPool.getPageSize() + " bytes from BTreeFile");
+				}
+				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+				if (id.pgcateg() == BTreePageId.INTERNAL) {
+					return new BTreeInternalPage(id, pageBuf, keyField);
+				} else if (id.pgcateg() == BTreePageId.LEAF) {
+					return new BTreeLeafPage(id, pageBuf, keyField);
+				} else { // id.pgcateg() == BTreePageId.HEADER
+					return new BTreeHeaderPage(id, pageBuf);
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns an empty page of the kind the id names. Used by recovery for
+	 * pages past the end of the file.
+	 * 
+	 * @param pid - the id of the page
+	 */
+	public Page emptyPage(PageId pid) throws IOException {
+		BTreePageId id = (BTreePageId) pid;
+		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
+			return new BTreeRootPtrPage(id, BTreeRootPtrPage.createEmptyPageData());
+		} else if(id.pgcateg() == BTreePageId.INTERNAL) {
+			return new BTreeInternalPage(id, BTreeInternalPage.createEmptyPageData(), keyField);
+		} else if(id.pgcateg() == BTreePageId.LEAF) {
+			return new BTreeLeafPage(id, BTreeLeafPage.createEmptyPageData(), keyField);
+		} else { // id.pgcateg() == BTreePageId.HEADER
+			return new BTreeHeaderPage(id, BTreeHeaderPage.createEmptyPageData());
+		}
+	}
 
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
@@ -140,25 +179,44 @@ public class BTreeFile implements DbFile {
 	public void writePage(Page page) throws IOException {
 		BTreePageId id = (BTreePageId) page.getId();
 		
-		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			handle.write(page.getPageData(), 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			ByteBuffer buf = PageBuffers.forWrite(BufferPool.getPageSize());
+			page.writePageData(buf);
+			handle.write(buf, pageOffset(page.getId().getPageNumber()));
 		}
 	}
+
+	/**
+	 * Force the pages written so far to disk.
+	 */
+	public void sync() throws IOException {
+		handle.force();
+	}
+
+	/**
+	 * Close the file. It is opened again if it is used after that.
+	 */
+	public void close() throws IOException {
+		handle.close();
+	}
+
+	/**
+	 * Returns the position of the page with the given number in the file.
+	 * Page numbers start at 1, after the root pointer page.
+	 */
+	private static long pageOffset(int pageNumber) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pageNumber - 1) * BufferPool.getPageSize();
+	}
 	
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
 	public int numPages() {
 		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		return (int) ((handle.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
 	}
 
 	/**
@@ -188,24 +246,157 @@ public class BTreeFile implements DbFile {
                                        Field f)
 					throws DbException, TransactionAbortedException {
 		// some code goes here
-        return null;
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		}
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		return findLeafPage(tid, dirtypages, page.findChild(f), perm, f);
+	}
+
+	/**
+	 * Returns true if the key field f is greater than the high key of the page, so that it 
+	 * can only be found to the right of the page.
+	 */
+	private static boolean movesRight(BTreePage page, Field f) {
+		Field highKey = page.getHighKey();
+		return f != null && highKey != null && f.compare(Op.GREATER_THAN, highKey);
+	}
+
+	/**
+	 * Find the left-most leaf page possibly containing the key field f, and lock it with 
+	 * permission perm, without locking the pages above it. The root pointer and the internal 
+	 * pages are read under a short-term latch, one page at a time, so descents do not queue 
+	 * up behind each other's locks on the top of the tree, nor behind a split.
+	 * 
+	 * A split moves the upper half of a page to a new page on its right before it adds the 
+	 * new page to the parent, and leaves the page its new high key and a pointer to the new 
+	 * page. A descent that reads the parent before the split and the page after it finds f 
+	 * above the high key, and follows the right sibling pointer instead. The same happens 
+	 * on the leaf level, once the leaf is locked.
+	 * 
+	 * Merges and redistributions move keys to the left, where a descent cannot follow them. 
+	 * The pages they change are not trusted until the transaction completes, and a descent 
+	 * they overlap is redone. So is a descent that ends on a page a split created and then 
+	 * lost to the abort of its transaction. In both cases null is returned, and the caller 
+	 * should descend again with {@link #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field)}.
+	 * 
+	 * @param tid - the transaction id
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return the left-most leaf page possibly containing the key field f, or null if the
+	 * descent must be redone
+	 */
+	private BTreeLeafPage findLeafPageOptimistic(TransactionId tid, Permissions perm, Field f)
+			throws DbException, TransactionAbortedException {
+		long version = structureVersion.get();
+		BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+		boolean fromInternal = false;
+		while(pid.pgcateg() != BTreePageId.LEAF) {
+			BTreePageId next;
+			latches.readLatch(pid);
+			try {
+				Page p = getStablePage(tid, pid);
+				if(p == null || structureVersion.get() != version) {
+					return null;
+				}
+				if(pid.pgcateg() == BTreePageId.ROOT_PTR) {
+					next = ((BTreeRootPtrPage) p).getRootId();
+				}
+				else {
+					BTreeInternalPage page = (BTreeInternalPage) p;
+					if(page.getNumEntries() == 0) {
+						// a new page whose split was aborted
+						return null;
+					}
+					next = movesRight(page, f) ? page.getRightSiblingId() : page.findChild(f);
+				}
+			} finally {
+				latches.readUnlatch(pid);
+			}
+			if(next == null) {
+				return null;
+			}
+			fromInternal = pid.pgcateg() == BTreePageId.INTERNAL;
+			pid = next;
+		}
+
+		// never wait for a lock while holding a latch
+		BufferPool pool = Database.getBufferPool();
+		while(true) {
+			boolean held = pool.holdsLock(tid, pid);
+			BTreeLeafPage leaf = (BTreeLeafPage) pool.getPage(tid, pid, perm);
+			// a leaf whose split was aborted is empty again, and has no parent
+			boolean lost = fromInternal && leaf.getParentId().pgcateg() == BTreePageId.ROOT_PTR;
+			boolean stale = lost || structureVersion.get() != version;
+			if(stale || movesRight(leaf, f)) {
+				if(!held) {
+					pool.unsafeReleasePage(tid, pid);
+				}
+				if(stale) {
+					return null;
+				}
+				// the leaf was locked, so its right sibling pointer is committed
+				pid = leaf.getRightSiblingId();
+				fromInternal = false;
+				continue;
+			}
+			return leaf;
+		}
+	}
+
+	/**
+	 * Read a page without locking it. The caller must hold the latch on the page.
+	 * 
+	 * @return the page, or null if a merge or redistribution of a transaction that has
+	 * not completed changed it
+	 */
+	private Page getStablePage(TransactionId tid, BTreePageId pid) throws DbException {
+		Page p = Database.getBufferPool().getPageUnlocked(pid);
+		TransactionId merger = mergedPages.get(pid);
+		if(merger != null && !merger.equals(tid)) {
+			if(merger.equals(p.isDirty())) {
+				return null;
+			}
+			// the merge has committed or been rolled back
+			mergedPages.remove(pid, merger);
+		}
+		return p;
 	}
 	
 	/**
-	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field)
+	 * Find and lock the left-most leaf page possibly containing the key field f, trying 
+	 * first without locking the pages above it. Used by the BTreeFile iterators.
+	 * @see #findLeafPageOptimistic(TransactionId, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
-	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return the left-most leaf page possibly containing the key field f, or null if 
+	 * the tree has no root
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid,
-                               Field f)
+	BTreeLeafPage findLeafPage(TransactionId tid, Field f)
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
+		BTreeLeafPage leaf = findLeafPageOptimistic(tid, Permissions.READ_ONLY, f);
+		if(leaf != null) {
+			return leaf;
+		}
+		descentRestarts.increment();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+		BTreePageId rootId = rootPtr.getRootId();
+		if(rootId == null) {
+			return null;
+		}
+		return findLeafPage(tid, new HashMap<>(), rootId, Permissions.READ_ONLY, f);
+	}
+
+	/**
+	 * Returns the number of descents that could not be completed without locking the 
+	 * pages above the leaf, because of a concurrent merge or redistribution, or an 
+	 * aborted split.
+	 */
+	public long getDescentRestartCount() {
+		return descentRestarts.sum();
 	}
 
 	/**
@@ -239,8 +430,45 @@ public class BTreeFile implements DbFile {
 		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
 		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
 		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// move the upper half of the tuples to the new page
+		int numToMove = page.getSplitCount();
+		Tuple[] toMove = new Tuple[numToMove];
+		Iterator<Tuple> it = page.reverseIterator();
+		for(int i = numToMove - 1; i >= 0; i--) {
+			toMove[i] = it.next();
+		}
+		for(Tuple t : toMove) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+
+		// the new page goes to the right of the old one, and takes over its high key; 
+		// the key between them is the shortest one that separates the two pages
+		Field middleKey = BTreeInternalPage.separator(page.reverseIterator().next().getField(keyField),
+				newPage.iterator().next().getField(keyField));
+		BTreePageId rightSiblingId = page.getRightSiblingId();
+		if(rightSiblingId != null) {
+			BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
+			rightSibling.setLeftSiblingId(newPage.getId());
+		}
+		newPage.setRightSiblingId(rightSiblingId);
+		newPage.setHighKey(page.getHighKey());
+		newPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newPage.getId());
+		page.setHighKey(middleKey);
+
+		// copy the separating key up into the parent
+		BTreeInternalPage parent = insertParentEntry(tid, dirtypages, page.getParentId(),
+				new BTreeEntry(middleKey, page.getId(), newPage.getId()));
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		if(field.compare(Op.GREATER_THAN, middleKey)) {
+			return newPage;
+		}
+		return page;
 	}
 	
 	/**
@@ -277,13 +505,56 @@ public class BTreeFile implements DbFile {
 		// the parent pointers of all the children moving to the new page.  updateParentPointers()
 		// will be useful here.  Return the page into which an entry with the given key field
 		// should be inserted.
-		return null;
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// the upper half of the entries is copied to the new page, and the entry
+		// just below them is pushed up
+		int numToMove = page.getSplitCount();
+		BTreeEntry[] toMove = new BTreeEntry[numToMove];
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		for(int i = 0; i < numToMove; i++) {
+			toMove[i] = it.next();
+		}
+		BTreeEntry middle = it.next();
+		for(BTreeEntry e : toMove) {
+			newPage.insertEntry(new BTreeEntry(e.getKey(), e.getLeftChild(), e.getRightChild()));
+		}
+		newPage.setRightSiblingId(page.getRightSiblingId());
+		newPage.setHighKey(page.getHighKey());
+
+		// then cut from the page in one step, under its latch, so that a descent 
+		// reading the page finds either all of its entries or the way to the new page
+		latches.writeLatch(page.getId());
+		try {
+			for(BTreeEntry e : toMove) {
+				page.deleteKeyAndRightChild(e);
+			}
+			page.deleteKeyAndRightChild(middle);
+			page.setRightSiblingId(newPage.getId());
+			page.setHighKey(middle.getKey());
+		} finally {
+			latches.writeUnlatch(page.getId());
+		}
+		updateParentPointers(tid, dirtypages, newPage);
+
+		middle.setLeftChild(page.getId());
+		middle.setRightChild(newPage.getId());
+		BTreeInternalPage parent = insertParentEntry(tid, dirtypages, page.getParentId(), middle);
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		if(field.compare(Op.GREATER_THAN, middle.getKey())) {
+			return newPage;
+		}
+		return page;
 	}
 	
 	/**
 	 * Method to encapsulate the process of getting a parent page ready to accept new entries.
 	 * This may mean creating a page to become the new root of the tree, splitting the existing 
 	 * parent page if there are no empty slots, or simply locking and returning the existing parent page.
+	 * A new root is only made the root by {@link #insertParentEntry(TransactionId, Map, BTreePageId, BTreeEntry)}, 
+	 * once it holds its first entry.
 	 *
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -306,16 +577,6 @@ public class BTreeFile implements DbFile {
 		// this will be the new root of the tree
 		if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
 			parent = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
-
-			// update the root pointer
-			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
-					BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			BTreePageId prevRootId = rootPtr.getRootId(); //save prev id before overwriting.
-			rootPtr.setRootId(parent.getId());
-
-			// update the previous root to now point to this new root.
-			BTreePage prevRootPage = (BTreePage)getPage(tid, dirtypages, prevRootId, Permissions.READ_WRITE);
-			prevRootPage.setParentId(parent.getId());
 		}
 		else { 
 			// lock the parent page
@@ -332,6 +593,59 @@ public class BTreeFile implements DbFile {
 
 	}
 
+	/**
+	 * Insert an entry for a page that was split into its parent, splitting the parent as needed. 
+	 * The entry is inserted under the parent's latch, since descents read the parent without 
+	 * locking it. If the page was the root, the new parent is made the root once it holds 
+	 * the entry, so that no descent finds an empty root.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param parentId - the id of the parent of the page that was split. May be an internal page or the RootPtr page
+	 * @param e - the entry to insert, with the two halves of the page as its children
+	 * @return the parent page the entry was inserted into
+	 * @see #getParentWithEmptySlots(TransactionId, Map, BTreePageId, Field)
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private BTreeInternalPage insertParentEntry(TransactionId tid, Map<PageId, Page> dirtypages,
+			BTreePageId parentId, BTreeEntry e) throws DbException, IOException, TransactionAbortedException {
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, parentId, e.getKey());
+		latches.writeLatch(parent.getId());
+		try {
+			parent.insertEntry(e);
+		} finally {
+			latches.writeUnlatch(parent.getId());
+		}
+		if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+			setRootId(tid, dirtypages, parent.getId());
+		}
+		return parent;
+	}
+
+	/**
+	 * Point the root pointer at a new root page, under the root pointer's latch.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param rootId - the id of the new root page
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	private void setRootId(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId rootId)
+			throws DbException, TransactionAbortedException {
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+		latches.writeLatch(rootPtrId);
+		try {
+			rootPtr.setRootId(rootId);
+		} finally {
+			latches.writeUnlatch(rootPtrId);
+		}
+	}
+
 	/**
 	 * Helper function to update the parent pointer of a node.
 	 * 
@@ -389,6 +703,11 @@ public class BTreeFile implements DbFile {
 	 * This method is needed to ensure that page updates are not lost if the same pages are
 	 * accessed multiple times.
 	 * 
+	 * The root pointer and internal pages are marked dirty as soon as they are fetched with 
+	 * read-write permission, under their latch. If the transaction is merging or redistributing 
+	 * pages, they are also noted as changed by it, so that descents which do not lock them stop 
+	 * trusting them before they change.
+	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param pid - the id of the requested page
@@ -407,6 +726,17 @@ public class BTreeFile implements DbFile {
 		else {
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
+				if(pid.pgcateg() == BTreePageId.ROOT_PTR || pid.pgcateg() == BTreePageId.INTERNAL) {
+					latches.writeLatch(pid);
+					try {
+						p.markDirty(true, tid);
+						if(merging.contains(tid)) {
+							mergedPages.put(pid, tid);
+						}
+					} finally {
+						latches.writeUnlatch(pid);
+					}
+				}
 				dirtypages.put(pid, p);
 			}
 			return p;
@@ -417,15 +747,33 @@ public class BTreeFile implements DbFile {
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order. 
 	 * May cause pages to split if the page where tuple t belongs is full.
 	 * 
+	 * The leaf page is first looked for without locking the pages above it; if it has an 
+	 * empty slot, that is the only page locked. Otherwise, or if a concurrent merge got in 
+	 * the way, the tree is descended again holding read locks on the way down, and the leaf 
+	 * page is split under write locks on the pages that change.
+	 * 
 	 * @param tid - the transaction id
 	 * @param t - the tuple to insert
 	 * @return a list of all pages that were dirtied by this operation. Could include
 	 * many pages since parent pointers will need to be updated when an internal node splits.
 	 * @see #splitLeafPage(TransactionId, Map, BTreeLeafPage, Field)
+	 * @see #findLeafPageOptimistic(TransactionId, Permissions, Field)
 	 */
 	public List<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
+		Field key = t.getField(keyField);
+
+		createIfEmpty();
+		BTreeLeafPage leafPage = findLeafPageOptimistic(tid, Permissions.READ_WRITE, key);
+		if(leafPage != null && leafPage.getNumEmptySlots() > 0) {
+			leafPage = (BTreeLeafPage) getPage(tid, dirtypages, leafPage.getId(), Permissions.READ_WRITE);
+			leafPage.insertTuple(t);
+			return new ArrayList<>(dirtypages.values());
+		}
+		if(leafPage == null) {
+			descentRestarts.increment();
+		}
 
 		// get a read lock on the root pointer page and use it to locate the root page
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
@@ -433,15 +781,14 @@ public class BTreeFile implements DbFile {
 
 		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
 			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+			setRootId(tid, dirtypages, rootId);
 		}
 
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, key);
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			leafPage = splitLeafPage(tid, dirtypages, leafPage, key);	
 		}
 
 		// insert the tuple into the leaf page
@@ -449,6 +796,25 @@ public class BTreeFile implements DbFile {
 
         return new ArrayList<>(dirtypages.values());
 	}
+
+	/**
+	 * Note that the transaction may merge or redistribute pages from now until 
+	 * {@link #endStructureChange(TransactionId)}. Optimistic descents that overlap 
+	 * the change are redone.
+	 */
+	private void beginStructureChange(TransactionId tid) {
+		merging.add(tid);
+		structureVersion.incrementAndGet();
+	}
+
+	/**
+	 * Note the end of a merge or redistribution. The internal pages it changed are not 
+	 * trusted until the transaction completes.
+	 */
+	private void endStructureChange(TransactionId tid) {
+		structureVersion.incrementAndGet();
+		merging.remove(tid);
+	}
 	
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
@@ -533,7 +899,8 @@ public class BTreeFile implements DbFile {
 				mergeLeafPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
 			else {
-				stealFromLeafPage(page, leftSibling, parent, leftEntry, false);				
+				stealFromLeafPage(page, leftSibling, parent, leftEntry, false);
+				splitIfOverfull(tid, dirtypages, parent);
 			}
 		}
 		else if(rightSiblingId != null) {	
@@ -544,7 +911,8 @@ public class BTreeFile implements DbFile {
 				mergeLeafPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 			else {
-				stealFromLeafPage(page, rightSibling, parent, rightEntry, true);				
+				stealFromLeafPage(page, rightSibling, parent, rightEntry, true);
+				splitIfOverfull(tid, dirtypages, parent);
 			}
 		}
 	}
@@ -569,6 +937,23 @@ public class BTreeFile implements DbFile {
         // Move some of the tuples from the sibling to the page so
 		// that the tuples are evenly distributed. Be sure to update
 		// the corresponding parent entry.
+		// Tuples move one at a time while the page has more room left than the sibling, 
+		// which evens out the number of tuples, or their bytes on pages keyed on strings
+		while(page.getNumEmptySlots() > sibling.getNumEmptySlots() + 1) {
+			Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+			Tuple t = it.next();
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+
+		// the key in the parent separates the two pages, and is the high key of the 
+		// left-hand page
+		BTreeLeafPage rightPage = isRightSibling ? sibling : page;
+		BTreeLeafPage leftPage = isRightSibling ? page : sibling;
+		entry.setKey(BTreeInternalPage.separator(leftPage.reverseIterator().next().getField(keyField),
+				rightPage.iterator().next().getField(keyField)));
+		parent.updateEntry(entry);
+		leftPage.setHighKey(entry.getKey());
 	}
 
 	/**
@@ -608,6 +993,7 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				stealFromLeftInternalPage(tid, dirtypages, page, leftSibling, parent, leftEntry);
+				splitIfOverfull(tid, dirtypages, parent);
 			}
 		}
 		else if(rightSiblingId != null) {
@@ -619,10 +1005,31 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				stealFromRightInternalPage(tid, dirtypages, page, rightSibling, parent, rightEntry);
+				splitIfOverfull(tid, dirtypages, parent);
 			}
 		}
 	}
 	
+	/**
+	 * Split an internal page keyed on strings that a redistribution below it left holding 
+	 * more than it may, because a key in it was replaced with a longer one.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the parent of the pages that were redistributed
+	 * @see BTreeInternalPage#isOverfull()
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void splitIfOverfull(TransactionId tid, Map<PageId, Page> dirtypages, BTreeInternalPage page)
+			throws DbException, IOException, TransactionAbortedException {
+		if(page.isOverfull()) {
+			splitInternalPage(tid, dirtypages, page, page.iterator().next().getKey());
+		}
+	}
+
 	/**
 	 * Steal entries from the left sibling and copy them to the given page so that both pages are at least
 	 * half full. Keys can be thought of as rotating through the parent entry, so the original key in the 
@@ -648,6 +1055,23 @@ public class BTreeFile implements DbFile {
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
+		// rotate the entries through the parent: the parent key comes down in 
+		// front of the page, and the last key of the sibling goes up. Entries move 
+		// while the page has more room left than the sibling
+		Field parentKey = parentEntry.getKey();
+		BTreePageId leftChild = page.iterator().next().getLeftChild();
+		while(page.getNumEmptySlots() > leftSibling.getNumEmptySlots() + 1) {
+			BTreeEntry e = leftSibling.reverseIterator().next();
+			BTreeEntry pulledDown = new BTreeEntry(parentKey, e.getRightChild(), leftChild);
+			page.insertEntry(pulledDown);
+			leftSibling.deleteKeyAndRightChild(e);
+			parentKey = e.getKey();
+			leftChild = e.getRightChild();
+		}
+		parentEntry.setKey(parentKey);
+		parent.updateEntry(parentEntry);
+		leftSibling.setHighKey(parentKey);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -675,6 +1099,23 @@ public class BTreeFile implements DbFile {
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
+		// rotate the entries through the parent: the parent key comes down at 
+		// the end of the page, and the first key of the sibling goes up. Entries 
+		// move while the page has more room left than the sibling
+		Field parentKey = parentEntry.getKey();
+		BTreePageId rightChild = page.reverseIterator().next().getRightChild();
+		while(page.getNumEmptySlots() > rightSibling.getNumEmptySlots() + 1) {
+			BTreeEntry e = rightSibling.iterator().next();
+			BTreeEntry pulledDown = new BTreeEntry(parentKey, rightChild, e.getLeftChild());
+			page.insertEntry(pulledDown);
+			rightSibling.deleteKeyAndLeftChild(e);
+			parentKey = e.getKey();
+			rightChild = e.getLeftChild();
+		}
+		parentEntry.setKey(parentKey);
+		parent.updateEntry(parentEntry);
+		page.setHighKey(parentKey);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -705,6 +1146,26 @@ public class BTreeFile implements DbFile {
 		// the sibling pointers, and make the right page available for reuse.
 		// Delete the entry in the parent corresponding to the two pages that are merging -
 		// deleteParentEntry() will be useful here
+		List<Tuple> toMove = new ArrayList<>();
+		Iterator<Tuple> it = rightPage.iterator();
+		while(it.hasNext()) {
+			toMove.add(it.next());
+		}
+		for(Tuple t : toMove) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		BTreePageId rightSiblingId = rightPage.getRightSiblingId();
+		if(rightSiblingId != null) {
+			BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
+			rightSibling.setLeftSiblingId(leftPage.getId());
+		}
+		leftPage.setRightSiblingId(rightSiblingId);
+		leftPage.setHighKey(rightPage.getHighKey());
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -738,6 +1199,25 @@ public class BTreeFile implements DbFile {
 		// and make the right page available for reuse
 		// Delete the entry in the parent corresponding to the two pages that are merging -
 		// deleteParentEntry() will be useful here
+		List<BTreeEntry> toMove = new ArrayList<>();
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		while(it.hasNext()) {
+			toMove.add(it.next());
+		}
+
+		// pull the parent key down between the two pages' children
+		BTreePageId leftChild = leftPage.reverseIterator().next().getRightChild();
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), leftChild, toMove.get(0).getLeftChild()));
+		for(BTreeEntry e : toMove) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		leftPage.setRightSiblingId(rightPage.getRightSiblingId());
+		leftPage.setHighKey(rightPage.getHighKey());
+		updateParentPointers(tid, dirtypages, leftPage);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
 	/**
@@ -775,9 +1255,8 @@ public class BTreeFile implements DbFile {
 			if(rootPtrId.pgcateg() != BTreePageId.ROOT_PTR) {
 				throw new DbException("attempting to delete a non-root node");
 			}
-			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
 			leftPage.setParentId(rootPtrId);
-			rootPtr.setRootId(leftPage.getId());
+			setRootId(tid, dirtypages, leftPage.getId());
 
 			// release the parent page for reuse
 			setEmptyPage(tid, dirtypages, parent.getId().getPageNumber());
@@ -811,12 +1290,76 @@ public class BTreeFile implements DbFile {
 		// or merge with one of the siblings
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
 		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+			beginStructureChange(tid);
+			try {
+				handleMinOccupancyPage(tid, dirtypages, page);
+			} finally {
+				endStructureChange(tid);
+			}
 		}
 
         return new ArrayList<>(dirtypages.values());
 	}
 
+	/**
+	 * Build this BTreeFile from the given tuples, packing every page full.
+	 *
+	 * @param it - the tuples to load, in any order; opened and closed by this method
+	 * @see #bulkLoad(DbFileIterator, double, long)
+	 */
+	public void bulkLoad(DbFileIterator it)
+			throws DbException, IOException, TransactionAbortedException {
+		bulkLoad(it, DEFAULT_FILL_FACTOR);
+	}
+
+	/**
+	 * Build this BTreeFile from the given tuples, filling each page to the given fill factor.
+	 *
+	 * @param it - the tuples to load, in any order; opened and closed by this method
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1
+	 * @see #bulkLoad(DbFileIterator, double, long)
+	 */
+	public void bulkLoad(DbFileIterator it, double fillFactor)
+			throws DbException, IOException, TransactionAbortedException {
+		bulkLoad(it, fillFactor, DEFAULT_SORT_BUFFER_BYTES);
+	}
+
+	/**
+	 * Build this BTreeFile from the given tuples, much faster than inserting them one
+	 * at a time. The tuples are sorted on the key field with an external merge sort
+	 * that keeps at most sortBufferBytes worth of tuples in memory, and the tree is
+	 * then written bottom-up, one page after another, leaving room on each page for
+	 * later inserts according to the fill factor.
+	 * <p>
+	 * The file must be empty, and no transaction may use it until the load returns:
+	 * the pages are written straight to disk, without locks and without being logged.
+	 *
+	 * @param it - the tuples to load, in any order; opened and closed by this method
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1
+	 * @param sortBufferBytes - the number of bytes of tuples to sort in memory at once
+	 * @see BTreeBulkLoader
+	 *
+	 * @throws DbException if the file is not empty or a tuple does not match its TupleDesc
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	public void bulkLoad(DbFileIterator it, double fillFactor, long sortBufferBytes)
+			throws DbException, IOException, TransactionAbortedException {
+		if(fillFactor < 0.5 || fillFactor > 1) {
+			throw new IllegalArgumentException("fillFactor must be between 0.5 and 1");
+		}
+		BTreePageId firstPageId = new BTreePageId(tableid, 1, BTreePageId.LEAF);
+		synchronized(this) {
+			// an empty file, or one holding just the empty root leaf made by createIfEmpty
+			if(numPages() > 1 || (numPages() == 1 && ((BTreeLeafPage) readPage(firstPageId)).getNumTuples() > 0)) {
+				throw new DbException("bulkLoad needs an empty BTreeFile");
+			}
+		}
+		Database.getBufferPool().discardPage(BTreeRootPtrPage.getId(tableid));
+		Database.getBufferPool().discardPage(firstPageId);
+		new BTreeBulkLoader(this, fillFactor, sortBufferBytes).load(it);
+	}
+
 	/**
 	 * Get a read lock on the root pointer page. Create the root pointer page and root page
 	 * if necessary.
@@ -829,23 +1372,23 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-		synchronized(this) {
-			if(f.length() == 0) {
-				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
-			}
-		}
+		createIfEmpty();
 
 		// get a read lock on the root pointer page
 		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
+	/**
+	 * Create the root pointer page and the root page if the file is empty.
+	 */
+	private synchronized void createIfEmpty() throws IOException {
+		if(handle.length() == 0) {
+			// create the root pointer page and the root page
+			handle.append(BTreeRootPtrPage.createEmptyPageData());
+			handle.append(BTreeLeafPage.createEmptyPageData());
+		}
+	}
+
 	/**
 	 * Get the page number of the first empty page in this BTreeFile.
 	 * Creates a new page if none of the existing pages are empty.
@@ -894,11 +1437,7 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				handle.append(BTreeInternalPage.createEmptyPageData());
 				emptyPageNo = numPages();
 			}
 		}
@@ -929,10 +1468,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		handle.write(BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1062,6 +1598,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	// leaf pages are read through a scan ring so a full scan does not flush the pool
+	ScanRing ring = null;
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1080,11 +1618,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
-		it = curp.iterator();
+		ring = Database.getBufferPool().newScanRing(f.numPages());
+		curp = f.findLeafPage(tid, null);
+		if(curp != null)
+			it = curp.iterator();
 	}
 
 	/**
@@ -1105,7 +1642,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			}
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+						nextp, Permissions.READ_ONLY, ring);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1132,6 +1669,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		super.close();
 		it = null;
 		curp = null;
+		ring = null;
 	}
 }
 
@@ -1165,17 +1703,18 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+			curp = f.findLeafPage(tid, ipred.getField());
+			// skip the tuples on the leaf with smaller keys
+			if(curp != null)
+				it = curp.iterator(ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, null);
+			curp = f.findLeafPage(tid, null);
+			if(curp != null)
+				it = curp.iterator();
 		}
-		it = curp.iterator();
 	}
 
 	/**
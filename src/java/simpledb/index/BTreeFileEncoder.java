@@ -226,13 +226,14 @@ public class BTreeFileEncoder {
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
 		}
-		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
-		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
+		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer, high key
+		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE + keyType.getLen(); 
 		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
-		// pointerbytes: one extra child pointer, parent pointer, child page category
-		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
+		// pointerbytes: one extra child pointer, parent pointer, child page category,
+		// right sibling pointer, high key
+		int internalpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE + 1 + keyType.getLen(); 
 		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 
 		List<List<BTreeEntry>> entries = new ArrayList<>();
@@ -331,6 +332,7 @@ public class BTreeFileEncoder {
 		// set all the parent and sibling pointers
 		setParents(bf, new BTreePageId(tableid, root, rootCategory), BTreeRootPtrPage.getId(tableid));
 		setRightSiblingPtrs(bf, lastPid, null);
+		setHighKeys(bf, new BTreePageId(tableid, root, rootCategory));
 
 		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
 		return bf;
@@ -356,6 +358,64 @@ public class BTreeFileEncoder {
 		}
 	}
 
+	/**
+	 * Set the high key of every page, and link the internal pages of each level
+	 * through their right sibling pointers
+	 * 
+	 * @param bf - the BTreeFile
+	 * @param root - the id of the root page
+	 * @throws IOException
+	 * @throws DbException
+	 */
+	private static void setHighKeys(BTreeFile bf, BTreePageId root) throws IOException, DbException {
+		List<List<BTreePageId>> levels = new ArrayList<>();
+		Map<BTreePageId, Field> highKeys = new HashMap<>();
+		findHighKeys(bf, root, null, 0, levels, highKeys);
+		for(List<BTreePageId> level : levels) {
+			for(int i = 0; i < level.size(); i++) {
+				BTreePageId pid = level.get(i);
+				BTreePage page = (BTreePage) bf.readPage(pid);
+				if(pid.pgcateg() == BTreePageId.INTERNAL) {
+					((BTreeInternalPage) page).setRightSiblingId(i + 1 < level.size() ? level.get(i + 1) : null);
+				}
+				page.setHighKey(highKeys.get(pid));
+				bf.writePage(page);
+			}
+		}
+	}
+
+	/**
+	 * Recursive function to find the high key of every page: the key separating it from the
+	 * page to its right, or null for the right-most page of each level
+	 * 
+	 * @param bf - the BTreeFile
+	 * @param pid - id of the page
+	 * @param highKey - the high key of the page
+	 * @param depth - the depth of the page, 0 for the root
+	 * @param levels - the ids of the pages of each level, from left to right
+	 * @param highKeys - the high key of each page
+	 */
+	private static void findHighKeys(BTreeFile bf, BTreePageId pid, Field highKey, int depth,
+			List<List<BTreePageId>> levels, Map<BTreePageId, Field> highKeys) {
+		while(levels.size() <= depth) {
+			levels.add(new ArrayList<>());
+		}
+		levels.get(depth).add(pid);
+		highKeys.put(pid, highKey);
+		if(pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage page = (BTreeInternalPage) bf.readPage(pid);
+			Iterator<BTreeEntry> it = page.iterator();
+			BTreeEntry e = null;
+			while(it.hasNext()) {
+				e = it.next();
+				findHighKeys(bf, e.getLeftChild(), e.getKey(), depth + 1, levels, highKeys);
+			}
+			if(e != null) {
+				findHighKeys(bf, e.getRightChild(), highKey, depth + 1, levels, highKeys);
+			}
+		}
+	}
+
 	/**
 	 * Recursive function to set all the parent pointers
 	 * 
@@ -507,8 +567,9 @@ public class BTreeFileEncoder {
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
 		}
-		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
-		int pointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
+		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer, high key
+		int keyLen = typeAr[keyField].getLen();
+		int pointerbytes = 3 * BTreeLeafPage.INDEX_SIZE + keyLen; 
 		int nrecords = (npagebytes * 8 - pointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
 		//  per record, we need one bit; there are nrecords per page, so we need
@@ -534,6 +595,9 @@ public class BTreeFileEncoder {
 		dos.writeInt(0); // parent pointer
 		dos.writeInt(0); // left sibling pointer
 		dos.writeInt(0); // right sibling pointer
+		for (int j=0; j<keyLen; j++) {
+			dos.writeByte(0); // high key
+		}
 
 		int i = 0;
 		byte headerbyte = 0;
@@ -622,8 +686,9 @@ public class BTreeFileEncoder {
 			Type keyType, int childPageCategory)
 					throws IOException {
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
-		// pointerbytes: one extra child pointer, parent pointer, child page category
-		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
+		// pointerbytes: one extra child pointer, parent pointer, child page category,
+		// right sibling pointer, high key
+		int pointerbytes = 3 * BTreeLeafPage.INDEX_SIZE + 1 + keyType.getLen(); 
 		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 
 		//  per entry, we need one bit; there are nentries per page, so we need
@@ -647,6 +712,10 @@ public class BTreeFileEncoder {
 
 		dos.writeInt(0); // parent pointer
 		dos.writeByte((byte) childPageCategory);
+		dos.writeInt(0); // right sibling pointer
+		for (int j=0; j<keyType.getLen(); j++) {
+			dos.writeByte(0); // high key
+		}
 
 		int i = 0;
 		byte headerbyte = 0;
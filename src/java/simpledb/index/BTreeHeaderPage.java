@@ -7,9 +7,11 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.Page;
+import simpledb.storage.PageBuffers;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -97,6 +99,10 @@ public class BTreeHeaderPage implements Page {
 		return getHeaderSize() * 8;
 	}
 
+	public BTreeHeaderPage withPageData(byte[] data) throws IOException {
+		return new BTreeHeaderPage(pid, data);
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeHeaderPage getBeforeImage(){
@@ -118,7 +124,7 @@ public class BTreeHeaderPage implements Page {
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = getPageData();
 		}
 	}
 
@@ -141,41 +147,28 @@ public class BTreeHeaderPage implements Page {
 	 * @return A byte array correspond to the bytes of this page.
 	 */
 	public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
-
-		// write out the next and prev pointers
-		try {
-			dos.writeInt(nextPage);
+		byte[] data = new byte[BufferPool.getPageSize()];
+		writePageData(ByteBuffer.wrap(data));
+		return data;
+	}
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		try {
-			dos.writeInt(prevPage);
+	/**
+	 * Serializes this page into buf without allocating; see
+	 * {@link Page#writePageData(ByteBuffer)}.
+	 */
+	public void writePageData(ByteBuffer buf) {
+		buf.clear();
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		// write out the next and prev pointers
+		buf.putInt(nextPage);
+		buf.putInt(prevPage);
 
 		// create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-		try {
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		buf.put(header);
 
-		return baos.toByteArray();
+		// padding
+		PageBuffers.putZeros(buf, BufferPool.getPageSize() - buf.position());
+		buf.flip();
 	}
 
 	/**
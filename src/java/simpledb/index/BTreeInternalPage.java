@@ -2,6 +2,7 @@ package simpledb.index;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import simpledb.common.Catalog;
 import simpledb.common.Database;
@@ -12,7 +13,10 @@ import simpledb.common.Debug;
 import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
+import simpledb.storage.Page;
+import simpledb.storage.PageBuffers;
 import simpledb.storage.RecordId;
+import simpledb.storage.StringField;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
@@ -27,8 +31,10 @@ public class BTreeInternalPage extends BTreePage {
 	private final Field[] keys;
 	private final int[] children;
 	private final int numSlots;
+	private final SlotDirectory usedSlots;
 	
 	private int childCategory; // either leaf or internal
+	private int rightSibling; // internal node or 0
 
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
@@ -43,7 +49,13 @@ public class BTreeInternalPage extends BTreePage {
 
         assert null == upperBound || null == prev || (prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkOccupancy || depth <= 0 || (getNumEntries() >= getMaxEntries() / 2);
+        assert (rightSibling == 0) == (highKey == null);
+        assert null == highKey ? null == upperBound : highKey.equals(upperBound);
+
+        // keys differ in length on pages keyed on strings, so moving one entry may
+        // take such a page from above half full to one entry short of it
+        int slack = compressed ? 1 : 0;
+        assert !checkOccupancy || depth <= 0 || (getNumEmptySlots() <= getMaxEntries() - getMaxEntries() / 2 + slack);
 	}
 	
 	/**
@@ -51,8 +63,9 @@ public class BTreeInternalPage extends BTreePage {
 	 * The format of a BTreeInternalPage is a set of header bytes indicating
 	 * the slots of the page that are in use, some number of entry slots, and extra
 	 * bytes for the parent pointer, one extra child pointer (a node with m entries 
-	 * has m+1 pointers to children), and the category of all child pages (either 
-	 * leaf or internal).
+	 * has m+1 pointers to children), the category of all child pages (either 
+	 * leaf or internal), the right sibling pointer and the high key (zeros if the 
+	 * page has no right sibling).
 	 *  Specifically, the number of entries is equal to: <p>
 	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (entry size * 8 + 1))
 	 * <p> where entry size is the size of entries in this index node
@@ -62,6 +75,11 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * A page keyed on strings instead stores its used slots one after the other after 
+	 * the header, each key as its length in one byte followed by its characters, so 
+	 * that the short separators made by {@link #separator(Field, Field)} take little 
+	 * space. It has enough slots for entries with empty keys, but only ever holds as 
+	 * many bytes as {@link #getMaxEntries()} entries with keys of the greatest length.
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -72,7 +90,7 @@ public class BTreeInternalPage extends BTreePage {
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
+		this.numSlots = getNumSlots();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent pointer
@@ -86,30 +104,50 @@ public class BTreeInternalPage extends BTreePage {
 		// read the child page category
 		childCategory = dis.readByte();
 
+		// read the right sibling pointer and the high key, which only the 
+		// right-most page of each level does not have
+		try {
+			Field f = Type.INT_TYPE.parse(dis);
+			this.rightSibling = ((IntField) f).getValue();
+			f = td.getFieldType(keyField).parse(dis);
+			this.highKey = rightSibling == 0 ? null : f;
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+		}
+
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
+		usedSlots = new SlotDirectory(numSlots);
+		for (int i=0; i<numSlots; i++)
+			if (isSlotUsed(i))
+				usedSlots.add(i);
 
 		keys = new Field[numSlots];
-		try{
-			// allocate and read the keys of this page
-			// start from 1 because the first key slot is not used
-			// since a node with m keys has m+1 pointers
-			keys[0] = null;
-			for (int i=1; i<keys.length; i++)
-				keys[i] = readNextKey(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+		children = new int[numSlots];
+		if (compressed) {
+			readCompressedEntries(dis);
 		}
+		else {
+			try{
+				// allocate and read the keys of this page
+				// start from 1 because the first key slot is not used
+				// since a node with m keys has m+1 pointers
+				keys[0] = null;
+				for (int i=1; i<keys.length; i++)
+					keys[i] = readNextKey(dis,i);
+			}catch(NoSuchElementException e){
+				e.printStackTrace();
+			}
 
-		children = new int[numSlots];
-		try{
-			// allocate and read the child pointers of this page
-			for (int i=0; i<children.length; i++)
-				children[i] = readNextChild(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+			try{
+				// allocate and read the child pointers of this page
+				for (int i=0; i<children.length; i++)
+					children[i] = readNextChild(dis,i);
+			}catch(NoSuchElementException e){
+				e.printStackTrace();
+			}
 		}
 		dis.close();
 
@@ -118,28 +156,50 @@ public class BTreeInternalPage extends BTreePage {
 
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
+	 * A page keyed on strings holds this many entries with keys of the greatest length, 
+	 * and many more with short keys; one more such entry is always held back, so that 
+	 * replacing a key with a longer one cannot overflow the page.
  	 */
 	public int getMaxEntries() {        
+		if (compressed)
+			return getEntrySpace() / getMaxEntrySize() - 1;
 		int keySize = td.getFieldType(keyField).getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
-		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
-		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1;
+		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header,
+		// one right sibling pointer and the high key
+		int extraBits = 3 * INDEX_SIZE * 8 + 8 + 1 + keySize * 8;
         return (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader;
 	}
 
+	/**
+	 * Computes the number of slots of this page: one per entry, and one for the extra child pointer.
+	 * A page keyed on strings has a slot for each entry with an empty key that fits on it.
+	 */
+	int getNumSlots() {
+		if (!compressed)
+			return getMaxEntries() + 1;
+		int bitsPerEntryIncludingHeader = (KEY_LENGTH_SIZE + INDEX_SIZE) * 8 + 1;
+		int extraBits = 3 * INDEX_SIZE * 8 + 8 + 1 + td.getFieldType(keyField).getLen() * 8;
+		return (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader + 1;
+	}
+
 	/**
 	 * Computes the number of bytes in the header of a B+ internal page with each entry occupying entrySize bytes
 	 * @return the number of bytes in the header
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+		int slotsPerPage = getNumSlots();
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
 		return hb;
 	}
 
+	public BTreeInternalPage withPageData(byte[] data) throws IOException {
+		return new BTreeInternalPage(pid, data, keyField);
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeInternalPage getBeforeImage(){
@@ -161,7 +221,128 @@ public class BTreeInternalPage extends BTreePage {
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = getPageData();
+		}
+	}
+
+	/**
+	 * Computes the number of bytes after the header of a page keyed on strings, which
+	 * hold its entries and the extra child pointer
+	 */
+	private int getEntrySpace() {
+		int extraBytes = 3 * INDEX_SIZE + 1 + td.getFieldType(keyField).getLen();
+		return BufferPool.getPageSize() - extraBytes - getHeaderSize();
+	}
+
+	/**
+	 * @return the number of bytes an entry with the given key takes on this page
+	 */
+	private int getEntrySize(Field key) {
+		if (compressed)
+			return KEY_LENGTH_SIZE + keyChars(key).length() + INDEX_SIZE;
+		return td.getFieldType(keyField).getLen() + INDEX_SIZE;
+	}
+
+	/**
+	 * @return the number of bytes an entry with a key of the greatest length takes on a page keyed on strings
+	 */
+	private int getMaxEntrySize() {
+		return KEY_LENGTH_SIZE + Type.STRING_LEN + INDEX_SIZE;
+	}
+
+	/**
+	 * @return the number of bytes the entries and child pointers of a page keyed on strings take
+	 */
+	private int getUsedBytes() {
+		int used = 0;
+		for (int i=0; i<numSlots; i++) {
+			if (isSlotUsed(i))
+				used += i == 0 ? INDEX_SIZE : getEntrySize(keys[i]);
+		}
+		return used;
+	}
+
+	/**
+	 * Returns true if this page holds more bytes than {@link #getMaxEntries()} entries with 
+	 * keys of the greatest length, which only replacing a key with a longer one can cause.
+	 * Such a page still fits, but must be split before another key on it is replaced.
+	 */
+	public boolean isOverfull() {
+		return compressed && getUsedBytes() > getMaxEntries() * getMaxEntrySize();
+	}
+
+	/**
+	 * Returns the number of entries a split moves from the end of this page to a new page,
+	 * so that the two pages hold about the same number of bytes. One entry is left between 
+	 * them to be pushed up into the parent.
+	 */
+	public int getSplitCount() {
+		int numEntries = getNumEntries();
+		if (!compressed)
+			return numEntries / 2;
+		int total = getUsedBytes();
+		int moved = 0;
+		int count = 0;
+		for (int i=numSlots-1; i>0 && count<numEntries-2; i--) {
+			if (!isSlotUsed(i))
+				continue;
+			// stop once moving the entry would take the new page further past half
+			int size = getEntrySize(keys[i]);
+			if ((moved + size) * 2 > total + size)
+				break;
+			moved += size;
+			count++;
+		}
+		return Math.max(count, 1);
+	}
+
+	/**
+	 * Returns the shortest key that separates two pages, for the entry between them in their 
+	 * parent: it is greater than the last key of the left page, and no greater than the first 
+	 * key of the right page. For string keys this is the shortest prefix of the right key 
+	 * that differs from the left key (suffix truncation); other keys are returned as they are.
+	 * @param left - the last key of the left page
+	 * @param right - the first key of the right page
+	 */
+	public static Field separator(Field left, Field right) {
+		if (right.getType() != Type.STRING_TYPE || !left.compare(Op.LESS_THAN, right))
+			return right;
+		String l = keyChars(left);
+		String r = keyChars(right);
+		int len = commonPrefix(l, r) + 1;
+		if (len >= r.length())
+			return right;
+		return new StringField(r.substring(0, len), Type.STRING_LEN);
+	}
+
+	/**
+	 * Read the used slots of a page keyed on strings, which are stored one after the other,
+	 * each key as its length followed by its characters, then the child pointer.
+	 */
+	private void readCompressedEntries(DataInputStream dis) throws IOException {
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			if (i > 0)
+				keys[i] = new StringField(readChars(dis, dis.readUnsignedByte()), Type.STRING_LEN);
+			children[i] = dis.readInt();
+		}
+	}
+
+	/**
+	 * Write the used slots of a page keyed on strings one after the other, in the 
+	 * format read by {@link #readCompressedEntries(DataInputStream)}.
+	 */
+	private void writeCompressedEntries(ByteBuffer buf) {
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			if (i > 0) {
+				String key = keyChars(keys[i]);
+				buf.put((byte) key.length());
+				putChars(buf, key, 0, key.length());
+			}
+			buf.putInt(children[i]);
 		}
 	}
 
@@ -236,105 +417,102 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return A byte array correspond to the bytes of this page.
 	 */
 	public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
+		byte[] data = new byte[BufferPool.getPageSize()];
+		writePageData(ByteBuffer.wrap(data));
+		return data;
+	}
 
-		// write out the parent pointer
-		try {
-			dos.writeInt(parent);
+	/**
+	 * Serializes this page into buf without allocating; see
+	 * {@link Page#writePageData(ByteBuffer)}.
+	 */
+	public void writePageData(ByteBuffer buf) {
+		buf.clear();
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		// write out the parent pointer
+		buf.putInt(parent);
 
 		// write out the child page category
-		try {
-			dos.writeByte((byte) childCategory);
+		buf.put((byte) childCategory);
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		// write out the right sibling pointer and the high key
+		buf.putInt(rightSibling);
+		if (highKey == null || rightSibling == 0)
+			PageBuffers.putZeros(buf, td.getFieldType(keyField).getLen());
+		else
+			highKey.serialize(buf);
 
 		// create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-		// create the keys
-		// start from 1 because the first key slot is not used
-		// since a node with m keys has m+1 pointers
-		for (int i=1; i<keys.length; i++) {
-
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
+		buf.put(header);
+
+		if (compressed) {
+			writeCompressedEntries(buf);
+		}
+		else {
+			// create the keys
+			// start from 1 because the first key slot is not used
+			// since a node with m keys has m+1 pointers
+			int keyLen = td.getFieldType(keyField).getLen();
+			for (int i=1; i<keys.length; i++) {
 
+				// empty slot
+				if (!isSlotUsed(i)) {
+					PageBuffers.putZeros(buf, keyLen);
+					continue;
 				}
-				continue;
-			}
 
-			// non-empty slot
-			try {
-				keys[i].serialize(dos);
-			} catch (IOException e) {
-				e.printStackTrace();
+				// non-empty slot
+				keys[i].serialize(buf);
 			}
 
-		}
-
-		// create the child pointers
-		for (int i=0; i<children.length; i++) {
-
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<INDEX_SIZE; j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
+			// create the child pointers
+			for (int i=0; i<children.length; i++) {
 
+				// empty slot
+				if (!isSlotUsed(i)) {
+					PageBuffers.putZeros(buf, INDEX_SIZE);
+					continue;
 				}
-				continue;
-			}
 
-			// non-empty slot
-			try {
-				dos.writeInt(children[i]);
-
-			} catch (IOException e) {
-				e.printStackTrace();
+				// non-empty slot
+				buf.putInt(children[i]);
 			}
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
-		byte[] zeroes = new byte[zerolen];
-		try {
-			dos.write(zeroes, 0, zerolen);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		PageBuffers.putZeros(buf, BufferPool.getPageSize() - buf.position());
+		buf.flip();
+	}
 
-		try {
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
+	/**
+	 * Get the id of the right sibling of this page
+	 * @return the id of the right sibling
+	 */
+	public BTreePageId getRightSiblingId() {
+		if(rightSibling == 0) {
+			return null;
 		}
+		return new BTreePageId(pid.getTableId(), rightSibling, BTreePageId.INTERNAL);
+	}
 
-		return baos.toByteArray();
+	/**
+	 * Set the right sibling id of this page
+	 * @param id - the new right sibling id
+	 * @throws DbException if the id is not valid
+	 */
+	public void setRightSiblingId(BTreePageId id) throws DbException {
+		if(id == null) {
+			rightSibling = 0;
+		}
+		else {
+			if(id.getTableId() != pid.getTableId()) {
+				throw new DbException("table id mismatch in setRightSiblingId");
+			}
+			if(id.pgcateg() != BTreePageId.INTERNAL) {
+				throw new DbException("rightSibling must be an internal node");
+			}
+			rightSibling = id.getPageNumber();
+		}
 	}
 
 	/**
@@ -358,12 +536,14 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to delete null entry.");
 		if(deleteRightChild) {
 			markSlotUsed(rid.getTupleNumber(), false);
+			usedSlots.remove(rid.getTupleNumber());
 		}
 		else {
 			for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
 				if(isSlotUsed(i)) {
 					children[i] = children[rid.getTupleNumber()];
 					markSlotUsed(rid.getTupleNumber(), false);
+					usedSlots.remove(rid.getTupleNumber());
 					break;
 				}	
 			}
@@ -413,6 +593,8 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to update null entry.");
+		if (compressed && getUsedBytes() - getEntrySize(keys[rid.getTupleNumber()]) + getEntrySize(e.getKey()) > getEntrySpace())
+			throw new DbException("no room on the page for the updated key " + e.getKey());
 		
 		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -467,6 +649,8 @@ public class BTreeInternalPage extends BTreePage {
 			keys[1] = e.getKey();
 			markSlotUsed(0, true);
 			markSlotUsed(1, true);
+			usedSlots.add(0);
+			usedSlots.add(1);
 			e.setRecordId(new RecordId(pid, 1));
 			return;
 		}
@@ -480,7 +664,7 @@ public class BTreeInternalPage extends BTreePage {
 			}
 		}
 
-		if (emptySlot == -1)
+		if (emptySlot == -1 || (compressed && getUsedBytes() + getEntrySize(e.getKey()) > getEntrySpace()))
 			throw new DbException("called insertEntry on page with no empty slots.");        
 
 		// find the child pointer matching the left or right child in this entry
@@ -543,6 +727,7 @@ public class BTreeInternalPage extends BTreePage {
 
 		// insert new entry into the correct spot in sorted order
 		markSlotUsed(goodSlot, true);
+		usedSlots.add(goodSlot);
 		Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
 		keys[goodSlot] = e.getKey();
 		children[goodSlot] = e.getRightChild().getPageNumber();
@@ -559,26 +744,55 @@ public class BTreeInternalPage extends BTreePage {
 			keys[to] = keys[from];
 			children[to] = children[from];
 			markSlotUsed(from, false);
+			usedSlots.move(from, to);
 		}
 	}
 
+	/**
+	 * Returns the child whose subtree is the left-most one that may hold the key f: the left 
+	 * child of the first entry whose key is greater than or equal to f, or the right child of 
+	 * the last entry if there is none. If f is null, returns the left-most child. The entry 
+	 * is found by binary search, and no entries are created on the way.
+	 * @param f - the key to search for, or null
+	 * @return the id of the child, or null if the page has no entries
+	 */
+	public BTreePageId findChild(Field f) {
+		// the first used slot holds only the left-most child pointer; the k-th entry has 
+		// the key of the k-th used slot after it, and the children of that slot and the one before
+		int n = usedSlots.size();
+		if (n < 2)
+			return null;
+		int lo = 1;
+		int hi = f == null ? 1 : n;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[usedSlots.get(mid)].compare(Op.GREATER_THAN_OR_EQ, f))
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return new BTreePageId(pid.getTableId(), children[usedSlots.get(lo - 1)], childCategory);
+	}
+
 	/**
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		// every used slot but the one with the extra child pointer holds an entry
+		return Math.max(0, usedSlots.size() - 1);
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. On a page keyed on strings, this 
+	 * is the number of entries with keys of the greatest length that still fit.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		// start from 1 because the first key slot is not used
-		// since a node with m keys has m+1 pointers
-		for(int i=1; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
+		// the first key slot is not used since a node with m keys has m+1 pointers
+		int cnt = numSlots - 1 - getNumEntries();
+		if (compressed) {
+			int free = getMaxEntries() * getMaxEntrySize() - getUsedBytes();
+			cnt = Math.min(cnt, Math.max(0, free) / getMaxEntrySize());
+		}
 		return cnt;
 	}
 
@@ -745,7 +959,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
+		this.curEntry = p.getNumSlots() - 1;
 		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
 			--curEntry;
 		}
@@ -765,7 +979,13 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
+				// the left child is in the closest used slot below, which need
+				// not be the one right next to it
+				int prev = entry - 1;
+				while(prev > 0 && !p.isSlotUsed(prev)) {
+					prev--;
+				}
+				BTreePageId childId = p.getChildId(prev);
 				if(key != null && childId != null) {
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
@@ -10,6 +10,7 @@ import simpledb.storage.*;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of BTreeLeafPage stores data for one page of a BTreeFile and 
@@ -23,6 +24,7 @@ public class BTreeLeafPage extends BTreePage {
 	private final byte[] header;
 	private final Tuple[] tuples;
 	private final int numSlots;
+	private final SlotDirectory usedSlots;
 	
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
@@ -41,14 +43,21 @@ public class BTreeLeafPage extends BTreePage {
 
         assert null == upperBound || null == prev || (prev.compare(Predicate.Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkoccupancy || depth <= 0 || (getNumTuples() >= getMaxTuples() / 2);
+        assert (rightSibling == 0) == (highKey == null);
+        assert null == highKey ? null == upperBound : highKey.equals(upperBound);
+
+        // keys differ in length on pages keyed on strings, so moving one tuple may
+        // take such a page from above half full to one tuple short of it
+        int slack = compressed ? 1 : 0;
+        assert !checkoccupancy || depth <= 0 || (getNumEmptySlots() <= getMaxTuples() - getMaxTuples() / 2 + slack);
 	}
 
 	/**
 	 * Create a BTreeLeafPage from a set of bytes of data read from disk.
 	 * The format of a BTreeLeafPage is a set of header bytes indicating
 	 * the slots of the page that are in use, and some number of tuple slots, 
-	 * as well as some extra bytes for the parent and sibling pointers.
+	 * as well as some extra bytes for the parent and sibling pointers and the 
+	 * high key (zeros if the page has no right sibling).
 	 *  Specifically, the number of tuples is equal to: <p>
 	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (tuple size * 8 + 1))
 	 * <p> where tuple size is the size of tuples in this
@@ -57,6 +66,12 @@ public class BTreeLeafPage extends BTreePage {
 	 * <p>
 	 *      ceiling(no. tuple slots / 8)
 	 * <p>
+	 * A page keyed on strings instead stores its used slots one after the other after 
+	 * the header, with prefix compression: each key is stored as the number of leading 
+	 * characters it shares with the key before it, then the length and characters of 
+	 * the rest of it, followed by the other fields of the tuple. It has enough slots 
+	 * for tuples that store no key characters, but only ever holds as many bytes as 
+	 * {@link #getMaxTuples()} tuples that store keys of the greatest length.
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -67,7 +82,7 @@ public class BTreeLeafPage extends BTreePage {
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
-		this.numSlots = getMaxTuples();
+		this.numSlots = getNumSlots();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent and sibling pointers
@@ -92,18 +107,35 @@ public class BTreeLeafPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		// read the high key, which only the right-most leaf does not have
+		try {
+			Field f = td.getFieldType(keyField).parse(dis);
+			this.highKey = rightSibling == 0 ? null : f;
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+		}
+
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
+		usedSlots = new SlotDirectory(numSlots);
+		for (int i=0; i<numSlots; i++)
+			if (isSlotUsed(i))
+				usedSlots.add(i);
 
 		tuples = new Tuple[numSlots];
-		try{
-			// allocate and read the actual records of this page
-			for (int i=0; i<tuples.length; i++)
-				tuples[i] = readNextTuple(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+		if (compressed) {
+			readCompressedTuples(dis);
+		}
+		else {
+			try{
+				// allocate and read the actual records of this page
+				for (int i=0; i<tuples.length; i++)
+					tuples[i] = readNextTuple(dis,i);
+			}catch(NoSuchElementException e){
+				e.printStackTrace();
+			}
 		}
 		dis.close();
 
@@ -111,26 +143,46 @@ public class BTreeLeafPage extends BTreePage {
 	}
 
 	/** 
-	 * Retrieve the maximum number of tuples this page can hold.
+	 * Retrieve the maximum number of tuples this page can hold. A page keyed on strings
+	 * holds this many tuples that store keys of the greatest length, and more otherwise.
 	 */
 	public int getMaxTuples() {        
+		if (compressed)
+			return getTupleSpace() / getMaxRecordSize();
 		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
-		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
-		int extraBits = 3 * INDEX_SIZE * 8;
+		// extraBits are: left sibling pointer, right sibling pointer, parent pointer, high key
+		int extraBits = 3 * INDEX_SIZE * 8 + td.getFieldType(keyField).getLen() * 8;
         return (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader;
 	}
 
+	/**
+	 * Computes the number of tuple slots of this page. A page keyed on strings has a slot
+	 * for each tuple that stores no key characters and fits on it.
+	 */
+	int getNumSlots() {
+		if (!compressed)
+			return getMaxTuples();
+		int keyLen = td.getFieldType(keyField).getLen();
+		int minRecordSize = 2 * KEY_LENGTH_SIZE + td.getSize() - keyLen;
+		int extraBits = 3 * INDEX_SIZE * 8 + keyLen * 8;
+		return (BufferPool.getPageSize()*8 - extraBits) / (minRecordSize * 8 + 1);
+	}
+
 	/**
 	 * Computes the number of bytes in the header of a page in a BTreeFile with each tuple occupying tupleSize bytes
 	 */
 	private int getHeaderSize() {        
-		int tuplesPerPage = getMaxTuples();
+		int tuplesPerPage = getNumSlots();
 		int hb = (tuplesPerPage / 8);
 		if (hb * 8 < tuplesPerPage) hb++;
 
 		return hb;
 	}
 
+	public BTreeLeafPage withPageData(byte[] data) throws IOException {
+		return new BTreeLeafPage(pid, data, keyField);
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeLeafPage getBeforeImage(){
@@ -152,7 +204,130 @@ public class BTreeLeafPage extends BTreePage {
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = getPageData();
+		}
+	}
+
+	/**
+	 * Computes the number of bytes after the header of a page keyed on strings, which hold its tuples
+	 */
+	private int getTupleSpace() {
+		int extraBytes = 3 * INDEX_SIZE + td.getFieldType(keyField).getLen();
+		return BufferPool.getPageSize() - extraBytes - getHeaderSize();
+	}
+
+	/**
+	 * @return the number of bytes a tuple takes on a page keyed on strings, after a tuple with the given key
+	 */
+	private int getRecordSize(String prevKey, Tuple t) {
+		String key = keyChars(t.getField(keyField));
+		int suffixLen = key.length() - commonPrefix(prevKey, key);
+		return 2 * KEY_LENGTH_SIZE + suffixLen + td.getSize() - td.getFieldType(keyField).getLen();
+	}
+
+	/**
+	 * @return the number of bytes a tuple with a key of the greatest length takes on a page keyed on strings
+	 */
+	private int getMaxRecordSize() {
+		return 2 * KEY_LENGTH_SIZE + Type.STRING_LEN + td.getSize() - td.getFieldType(keyField).getLen();
+	}
+
+	/**
+	 * @return the number of bytes each used slot takes on a page keyed on strings, by slot
+	 */
+	private int[] getRecordSizes() {
+		int[] sizes = new int[numSlots];
+		String prevKey = "";
+		for (int i=0; i<numSlots; i++) {
+			if (isSlotUsed(i)) {
+				sizes[i] = getRecordSize(prevKey, tuples[i]);
+				prevKey = keyChars(tuples[i].getField(keyField));
+			}
+		}
+		return sizes;
+	}
+
+	/**
+	 * @return the number of bytes the tuples of a page keyed on strings take
+	 */
+	private int getUsedBytes() {
+		int used = 0;
+		for (int size : getRecordSizes())
+			used += size;
+		return used;
+	}
+
+	/**
+	 * Returns the number of tuples a split moves from the end of this page to a new page,
+	 * so that the two pages hold about the same number of bytes.
+	 */
+	public int getSplitCount() {
+		int numTuples = getNumTuples();
+		if (!compressed)
+			return numTuples / 2;
+		int[] sizes = getRecordSizes();
+		int total = 0;
+		for (int size : sizes)
+			total += size;
+		int moved = 0;
+		int count = 0;
+		for (int i=numSlots-1; i>=0 && count<numTuples-1; i--) {
+			if (!isSlotUsed(i))
+				continue;
+			// stop once moving the tuple would take the new page further past half
+			if ((moved + sizes[i]) * 2 > total + sizes[i])
+				break;
+			moved += sizes[i];
+			count++;
+		}
+		return Math.max(count, 1);
+	}
+
+	/**
+	 * Read the used slots of a page keyed on strings, which are stored one after the other,
+	 * each key compressed against the one before it.
+	 */
+	private void readCompressedTuples(DataInputStream dis) throws IOException {
+		String prevKey = "";
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			int shared = dis.readUnsignedByte();
+			String key = prevKey.substring(0, shared) + readChars(dis, dis.readUnsignedByte());
+			Tuple t = new Tuple(td);
+			t.setRecordId(new RecordId(pid, i));
+			try {
+				for (int j=0; j<td.numFields(); j++) {
+					Field f = j == keyField ? new StringField(key, Type.STRING_LEN) : td.getFieldType(j).parse(dis);
+					t.setField(j, f);
+				}
+			} catch (java.text.ParseException e) {
+				throw new IOException("parsing error!", e);
+			}
+			tuples[i] = t;
+			prevKey = key;
+		}
+	}
+
+	/**
+	 * Write the used slots of a page keyed on strings one after the other, in the 
+	 * format read by {@link #readCompressedTuples(DataInputStream)}.
+	 */
+	private void writeCompressedTuples(ByteBuffer buf) {
+		String prevKey = "";
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			String key = keyChars(tuples[i].getField(keyField));
+			int shared = commonPrefix(prevKey, key);
+			buf.put((byte) shared);
+			buf.put((byte) (key.length() - shared));
+			putChars(buf, key, shared, key.length());
+			for (int j=0; j<td.numFields(); j++) {
+				if (j != keyField)
+					tuples[i].getField(j).serialize(buf);
+			}
+			prevKey = key;
 		}
 	}
 
@@ -202,84 +377,55 @@ public class BTreeLeafPage extends BTreePage {
 	 * @return A byte array corresponding to the bytes of this page.
 	 */
 	public byte[] getPageData() {
-		int len = BufferPool.getPageSize();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-		DataOutputStream dos = new DataOutputStream(baos);
+		byte[] data = new byte[BufferPool.getPageSize()];
+		writePageData(ByteBuffer.wrap(data));
+		return data;
+	}
+
+	/**
+	 * Serializes this page into buf without allocating; see
+	 * {@link Page#writePageData(ByteBuffer)}.
+	 */
+	public void writePageData(ByteBuffer buf) {
+		buf.clear();
 
 		// write out the parent and sibling pointers
-		try {
-			dos.writeInt(parent);
+		buf.putInt(parent);
+		buf.putInt(leftSibling);
+		buf.putInt(rightSibling);
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		try {
-			dos.writeInt(leftSibling);
+		// write out the high key
+		if (highKey == null || rightSibling == 0)
+			PageBuffers.putZeros(buf, td.getFieldType(keyField).getLen());
+		else
+			highKey.serialize(buf);
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		try {
-			dos.writeInt(rightSibling);
+		// create the header of the page
+		buf.put(header);
 
-		} catch (IOException e) {
-			e.printStackTrace();
+		if (compressed) {
+			writeCompressedTuples(buf);
 		}
+		else {
+			// create the tuples
+			for (int i=0; i<tuples.length; i++) {
 
-		// create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-		// create the tuples
-		for (int i=0; i<tuples.length; i++) {
-
-			// empty slot
-			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getSize(); j++) {
-					try {
-						dos.writeByte(0);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
+				// empty slot
+				if (!isSlotUsed(i)) {
+					PageBuffers.putZeros(buf, td.getSize());
+					continue;
 				}
-				continue;
-			}
 
-			// non-empty slot
-			for (int j=0; j<td.numFields(); j++) {
-				Field f = tuples[i].getField(j);
-				try {
-					f.serialize(dos);
-
-				} catch (IOException e) {
-					e.printStackTrace();
+				// non-empty slot
+				for (int j=0; j<td.numFields(); j++) {
+					tuples[i].getField(j).serialize(buf);
 				}
 			}
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
-		byte[] zeroes = new byte[zerolen];
-		try {
-			dos.write(zeroes, 0, zerolen);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		try {
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		return baos.toByteArray();
+		PageBuffers.putZeros(buf, BufferPool.getPageSize() - buf.position());
+		buf.flip();
 	}
 
 	/**
@@ -298,6 +444,7 @@ public class BTreeLeafPage extends BTreePage {
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to delete null tuple.");
 		markSlotUsed(rid.getTupleNumber(), false);
+		usedSlots.remove(rid.getTupleNumber());
 		t.setRecordId(null);
 	}
 
@@ -322,20 +469,12 @@ public class BTreeLeafPage extends BTreePage {
 			}
 		}
 
-		if (emptySlot == -1)
+		if (emptySlot == -1 || (compressed && getUsedBytes() + getMaxRecordSize() > getTupleSpace()))
 			throw new DbException("called addTuple on page with no empty slots.");
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		int pos = search(t.getField(keyField), false);
+		int lessOrEqKey = pos == 0 ? -1 : usedSlots.get(pos - 1);
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -355,6 +494,7 @@ public class BTreeLeafPage extends BTreePage {
 
 		// insert new record into the correct spot in sorted order
 		markSlotUsed(goodSlot, true);
+		usedSlots.add(goodSlot);
 		Debug.log(1, "BTreeLeafPage.insertTuple: new tuple, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
 		RecordId rid = new RecordId(pid, goodSlot);
 		t.setRecordId(rid);
@@ -372,7 +512,27 @@ public class BTreeLeafPage extends BTreePage {
 			tuples[to] = tuples[from];
 			tuples[to].setRecordId(rid);
 			markSlotUsed(from, false);
+			usedSlots.move(from, to);
+		}
+	}
+
+	/**
+	 * Binary search for the position, in key order, of the first tuple whose key is greater 
+	 * than f, or greater than or equal to it if orEqual is set
+	 * @return the position, or the number of tuples if there is no such tuple
+	 */
+	private int search(Field f, boolean orEqual) {
+		Predicate.Op op = orEqual ? Predicate.Op.GREATER_THAN_OR_EQ : Predicate.Op.GREATER_THAN;
+		int lo = 0;
+		int hi = usedSlots.size();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (tuples[usedSlots.get(mid)].getField(keyField).compare(op, f))
+				hi = mid;
+			else
+				lo = mid + 1;
 		}
+		return lo;
 	}
 
 	/**
@@ -441,17 +601,19 @@ public class BTreeLeafPage extends BTreePage {
 	 * Returns the number of tuples currently stored on this page
 	 */
 	public int getNumTuples() {
-		return numSlots - getNumEmptySlots();
+		return usedSlots.size();
 	}
 
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. On a page keyed on strings, this 
+	 * is the number of tuples that store keys of the greatest length that still fit.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		for(int i=0; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
+		int cnt = numSlots - usedSlots.size();
+		if (compressed) {
+			int free = getMaxTuples() * getMaxRecordSize() - getUsedBytes();
+			cnt = Math.min(cnt, Math.max(0, free) / getMaxRecordSize());
+		}
 		return cnt;
 	}
 
@@ -486,6 +648,16 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @return an iterator over the tuples on this page, starting from the first one whose key is 
+	 * greater than or equal to f, which is found by binary search rather than by walking the slots
+	 * (calling remove on this iterator throws an UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator(Field f) {
+		int pos = search(f, true);
+		return new BTreeLeafPageIterator(this, pos < usedSlots.size() ? usedSlots.get(pos) : numSlots);
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -529,7 +701,12 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 	final BTreeLeafPage p;
 
 	public BTreeLeafPageIterator(BTreeLeafPage p) {
+		this(p, 0);
+	}
+
+	BTreeLeafPageIterator(BTreeLeafPage p, int firstSlot) {
 		this.p = p;
+		this.curTuple = firstSlot;
 	}
 
 	public boolean hasNext() {
@@ -578,7 +755,7 @@ class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
 
 	public BTreeLeafPageReverseIterator(BTreeLeafPage p) {
 		this.p = p;
-		this.curTuple = p.getMaxTuples() - 1;
+		this.curTuple = p.getNumSlots() - 1;
 	}
 
 	public boolean hasNext() {
@@ -1,11 +1,17 @@
 package simpledb.index;
 
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
 import simpledb.storage.Page;
+import simpledb.storage.StringField;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
 
@@ -22,12 +28,18 @@ public abstract class BTreePage implements Page {
 	protected volatile TransactionId dirtier = null;
 
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
+	/** size of the byte giving the length of a string key, or of the part of it that is stored */
+	protected final static int KEY_LENGTH_SIZE = 1;
 
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	// pages keyed on strings store each key in only as many bytes as it has characters,
+	// so their capacity is counted in entries or tuples with keys of the greatest length
+	protected final boolean compressed;
 
 	protected int parent; // parent is always internal node or 0 for root node
+	protected Field highKey; // upper bound of the keys on this page, or null on the right-most page of its level
 	protected byte[] oldData;
 	protected final Byte oldDataLock= (byte) 0;
 
@@ -58,6 +70,7 @@ public abstract class BTreePage implements Page {
 		this.pid = id;
 		this.keyField = key;
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.compressed = td.getFieldType(key) == Type.STRING_TYPE;
 	}
 
 	/**
@@ -81,6 +94,45 @@ public abstract class BTreePage implements Page {
 		return new byte[len]; //all 0
 	}
 
+	/**
+	 * @return the characters of a string key that are stored on a page
+	 */
+	protected static String keyChars(Field key) {
+		String s = ((StringField) key).getValue();
+		return s.length() > Type.STRING_LEN ? s.substring(0, Type.STRING_LEN) : s;
+	}
+
+	/**
+	 * @return the number of leading characters two strings have in common
+	 */
+	protected static int commonPrefix(String a, String b) {
+		int n = Math.min(a.length(), b.length());
+		int i = 0;
+		while(i < n && a.charAt(i) == b.charAt(i)) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Write characters of a string key, keeping the low byte of each char like 
+	 * {@link StringField#serialize(ByteBuffer)}, but without its length or padding.
+	 */
+	protected static void putChars(ByteBuffer buf, String s, int from, int to) {
+		for(int i = from; i < to; i++) {
+			buf.put((byte) s.charAt(i));
+		}
+	}
+
+	/**
+	 * Read characters of a string key written by {@link #putChars(ByteBuffer, String, int, int)}.
+	 */
+	protected static String readChars(DataInputStream dis, int len) throws IOException {
+		byte[] bs = new byte[len];
+		dis.readFully(bs);
+		return new String(bs);
+	}
+
 	/**
 	 * Get the parent id of this page
 	 * @return the parent id
@@ -115,6 +167,37 @@ public abstract class BTreePage implements Page {
 		}
 	}
 
+	/**
+	 * Get the high key of this page: every key on this page, and in the subtree below it, 
+	 * is less than or equal to the high key, and every key on the page to its right is 
+	 * greater than or equal to it. A page that is split gives its high key to the new page 
+	 * on its right and takes the key separating the two as its own, so a search that read 
+	 * the parent before the split can tell that it must follow the right sibling pointer.
+	 * @return the high key, or null if this is the right-most page of its level
+	 */
+	public Field getHighKey() {
+		return highKey;
+	}
+
+	/**
+	 * Set the high key of this page. It is stored only while the page has a right sibling.
+	 * @param key - the new high key, or null if this is the right-most page of its level
+	 * @throws DbException if the key does not have the type of the key field
+	 * @see #getHighKey()
+	 */
+	public void setHighKey(Field key) throws DbException {
+		if(key != null && !key.getType().equals(td.getFieldType(keyField))) {
+			throw new DbException("key field type mismatch, in setHighKey");
+		}
+		highKey = key;
+	}
+
+	/**
+	 * Get the id of the right sibling of this page, the next page on the same level of the tree
+	 * @return the id of the right sibling, or null if this is the right-most page of its level
+	 */
+	public abstract BTreePageId getRightSiblingId();
+
 	/**
 	 * Marks this page as dirty/not dirty and record that transaction
 	 * that did the dirtying
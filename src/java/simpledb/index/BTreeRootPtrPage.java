@@ -17,8 +17,8 @@ public class BTreeRootPtrPage implements Page {
 	// size of this page
 	public final static int PAGE_SIZE = 9;
 
-	private boolean dirty = false;
-	private TransactionId dirtier = null;
+	private volatile boolean dirty = false;
+	private volatile TransactionId dirtier = null;
 
 	private final BTreePageId pid;
 
@@ -140,6 +140,10 @@ public class BTreeRootPtrPage implements Page {
 			return null;
 	}
 
+	public BTreeRootPtrPage withPageData(byte[] data) throws IOException {
+		return new BTreeRootPtrPage(pid, data);
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeRootPtrPage getBeforeImage(){
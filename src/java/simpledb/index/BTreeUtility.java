@@ -281,7 +281,9 @@ public class BTreeUtility {
 	 */
 	public static int getNumTuplesPerPage(int columns) {
 		int bytesPerTuple = Type.INT_TYPE.getLen() * columns * 8;
-        return (BufferPool.getPageSize() * 8 - 3 * BTreeLeafPage.INDEX_SIZE * 8) /  (bytesPerTuple + 1);
+		// pointers: left sibling, right sibling, parent; and the high key
+		int pointerBits = 3 * BTreeLeafPage.INDEX_SIZE * 8 + Type.INT_TYPE.getLen() * 8;
+        return (BufferPool.getPageSize() * 8 - pointerBits) /  (bytesPerTuple + 1);
 	}
 	
 	/**
@@ -324,8 +326,9 @@ public class BTreeUtility {
 	 */
 	public static int getNumEntriesPerPage() {
 		int nentrybytes = Type.INT_TYPE.getLen() + BTreeInternalPage.INDEX_SIZE;
-		// pointerbytes: one extra child pointer, parent pointer, child page category
-		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1;
+		// pointerbytes: one extra child pointer, parent pointer, child page category,
+		// right sibling pointer, high key
+		int internalpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE + 1 + Type.INT_TYPE.getLen();
         return (BufferPool.getPageSize() * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);
 	}
 	
@@ -0,0 +1,66 @@
+package simpledb.index;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import simpledb.storage.PageId;
+
+/**
+ * PageLatches holds the short-term latches of the pages of a BTreeFile.
+ * <p>
+ * Latches are separate from the locks the BufferPool grants transactions.
+ * A lock protects what a transaction read or wrote until it commits; a
+ * latch only keeps a page from changing while one thread looks at it, and
+ * is released as soon as the thread is done with the page. A thread must
+ * never wait for a lock while it holds a latch, nor hold more than one
+ * latch at a time, so latches cannot deadlock.
+ * <p>
+ * A latch exists only while some thread holds or waits for it, so the table
+ * stays as small as the number of pages in use at once.
+ *
+ * @Threadsafe
+ */
+class PageLatches {
+
+	private static class Latch extends ReentrantReadWriteLock {
+		private static final long serialVersionUID = 1L;
+		/** threads holding or waiting for the latch; guarded by the map */
+		int users;
+	}
+
+	private final ConcurrentHashMap<PageId, Latch> latches = new ConcurrentHashMap<>();
+
+	private Latch pin(PageId pid) {
+		return latches.compute(pid, (k, latch) -> {
+			if(latch == null) latch = new Latch();
+			latch.users++;
+			return latch;
+		});
+	}
+
+	private void unpin(PageId pid) {
+		latches.computeIfPresent(pid, (k, latch) -> --latch.users == 0 ? null : latch);
+	}
+
+	/** Latches the page in shared mode, waiting for a thread that holds it exclusively. */
+	void readLatch(PageId pid) {
+		pin(pid).readLock().lock();
+	}
+
+	/** Releases a shared latch taken with {@link #readLatch}. */
+	void readUnlatch(PageId pid) {
+		latches.get(pid).readLock().unlock();
+		unpin(pid);
+	}
+
+	/** Latches the page in exclusive mode, waiting for every other thread to release it. */
+	void writeLatch(PageId pid) {
+		pin(pid).writeLock().lock();
+	}
+
+	/** Releases an exclusive latch taken with {@link #writeLatch}. */
+	void writeUnlatch(PageId pid) {
+		latches.get(pid).writeLock().unlock();
+		unpin(pid);
+	}
+}
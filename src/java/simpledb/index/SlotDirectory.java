@@ -0,0 +1,66 @@
+package simpledb.index;
+
+import java.util.Arrays;
+
+/**
+ * SlotDirectory lists the used slots of a B+ tree page in key order.
+ * <p>
+ * A page keeps its records sorted across its slots, but deletions leave empty
+ * slots between them, so the k-th record cannot be found without walking the
+ * header. The directory numbers the used slots densely, which lets a page find
+ * a key by binary search over them.
+ * <p>
+ * The directory is only changed by the methods that change the page, at the
+ * same time as its header, and never by the ones that read it.
+ */
+class SlotDirectory {
+	private final int[] slots;
+	private int size;
+
+	/**
+	 * @param numSlots - the number of slots of the page
+	 */
+	SlotDirectory(int numSlots) {
+		this.slots = new int[numSlots];
+	}
+
+	/** Returns the number of used slots. */
+	int size() {
+		return size;
+	}
+
+	/** Returns the slot of the i-th record in key order. */
+	int get(int i) {
+		return slots[i];
+	}
+
+	/** Records that a slot is now used; does nothing if it already was. */
+	void add(int slot) {
+		int i = Arrays.binarySearch(slots, 0, size, slot);
+		if(i >= 0) {
+			return;
+		}
+		i = -i - 1;
+		System.arraycopy(slots, i, slots, i + 1, size - i);
+		slots[i] = slot;
+		size++;
+	}
+
+	/** Records that a slot is no longer used; does nothing if it was not. */
+	void remove(int slot) {
+		int i = Arrays.binarySearch(slots, 0, size, slot);
+		if(i < 0) {
+			return;
+		}
+		System.arraycopy(slots, i + 1, slots, i, size - i - 1);
+		size--;
+	}
+
+	/**
+	 * Records that a record moved from one slot to another. No used slot may lie
+	 * between the two, so the order of the records does not change.
+	 */
+	void move(int from, int to) {
+		slots[Arrays.binarySearch(slots, 0, size, from)] = to;
+	}
+}
@@ -10,8 +10,18 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
 
 
 
@@ -39,8 +49,35 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Replacement policy used when the constructor is not given one. CLOCK-Pro
+    keeps pages read once by a sequential scan from pushing out pages that are
+    used over and over, such as B+ tree internal pages. */
+    public static final EvictionPolicy.Factory DEFAULT_EVICTION_POLICY = EvictionPolicy.clockPro();
+
+    /** Upper bound on the number of frames a single scan ring may occupy. */
+    private static final int SCAN_RING_PAGES = 16;
+
+    /** NO STEAL: only pages no transaction has dirtied may leave the pool */
+    private static final Predicate<Page> EVICTABLE = p -> p.isDirty() == null;
+
     private int BufferPageNum = DEFAULT_PAGES;
-    private LruCache<PageId,Page> pageCache;
+    private final PageTable pageTable;
+
+    /** getPage calls served from the page table / read from disk */
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /** bumped whenever a page is written back or discarded; a page read
+    ahead across a bump may be stale and is not installed */
+    private final AtomicLong writeEpoch = new AtomicLong();
+
+    /** for each running transaction, the pages it fetched READ_WRITE or
+    modified through this pool: every page it can have dirtied */
+    private final ConcurrentMap<TransactionId, Set<PageId>> writeSets = new ConcurrentHashMap<>();
+
+    /** the order commit writes pages in: by file, then by page number */
+    private static final Comparator<PageId> WRITE_ORDER =
+        Comparator.comparingInt(PageId::getTableId).thenComparingInt(PageId::getPageNumber);
 
     
     /**
@@ -49,9 +86,21 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, DEFAULT_EVICTION_POLICY);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and picks the
+     * pages to evict with the given policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param evictionPolicy creates the replacement policy of each page
+     *   table partition, e.g. {@link EvictionPolicy#clock()}
+     */
+    public BufferPool(int numPages, EvictionPolicy.Factory evictionPolicy) {
         // some code goes here
         this.BufferPageNum = numPages;
-        pageCache = new LruCache<PageId,Page>(numPages);
+        pageTable = new PageTable(numPages, evictionPolicy);
         lockManager = new LockManager();
     }
     
@@ -87,37 +136,221 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
-       
-        long st = System.currentTimeMillis();
-        boolean isacquired = false;
-        while(!isacquired){
+        acquireLock(tid, pid, perm);
+        if (perm == Permissions.READ_WRITE) addToWriteSet(tid, pid);
 
-            try {
-                isacquired = lockManager.requireLock(pid, tid, perm);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            long now = System.currentTimeMillis();
-            if(now - st > 500){
-                System.out.println("[throw] " + Thread.currentThread().getName() + ": the " + pid + "  " + tid + " deadLock");
-                throw new TransactionAbortedException();
-            }
+        Page page = pageTable.get(pid);
+        if (page != null) {
+            hits.increment();
+            return page;
         }
-        
 
-        Page page = pageCache.get(pid);
-        if (page == null){
+        // read outside the pool monitor so that misses on different pages
+        // overlap their I/O; only the admission below is serialized
+        misses.increment();
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        page = file.readPage(pid);
+        return cachePage(page, false);
+    }
+
+    /**
+     * Retrieve the specified page without locking it. The caller must keep
+     * the page from changing under it some other way: B+ tree files read
+     * their internal pages like this under latches of their own, and do not
+     * trust a page that a running transaction has dirtied.
+     *
+     * @param pid the ID of the requested page
+     */
+    public Page getPageUnlocked(PageId pid) throws DbException {
+        while (true) {
+            Page page = pageTable.get(pid);
+            if (page != null) {
+                hits.increment();
+                return page;
+            }
+
+            // nobody holds a lock on the page for us, so a copy read across
+            // a write-back may be stale; read it again in that case
+            misses.increment();
+            long epoch = writeEpoch.get();
             DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
             page = file.readPage(pid);
+            synchronized (this) {
+                if (writeEpoch.get() == epoch) return cachePage(page, false);
+            }
+        }
+    }
 
-            if (pageCache.getSize() == this.BufferPageNum)
+    /**
+     * Retrieve the specified page on behalf of a sequential scan. Locks the
+     * page like {@link #getPage(TransactionId, PageId, Permissions)}, but a
+     * page that is not resident is read into one of the scan's ring frames
+     * instead of being handed to the eviction policy, and a resident page
+     * is not promoted by this reference.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param ring the scan's ring, from {@link #newScanRing(int)}; if null,
+     *   the page is read like any other
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, ScanRing ring)
+        throws TransactionAbortedException, DbException {
+        if (ring == null) return getPage(tid, pid, perm);
+        acquireLock(tid, pid, perm);
+        if (perm == Permissions.READ_WRITE) addToWriteSet(tid, pid);
+
+        Page page = pageTable.getForScan(pid);
+        if (page != null) {
+            hits.increment();
+            return page;
+        }
+
+        misses.increment();
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        page = file.readPage(pid);
+        return cacheScanPage(page, ring);
+    }
+
+    /**
+     * Creates a ring for a sequential scan. The ring size is a small fraction
+     * of the pool, so that several concurrent scans leave most of the pool
+     * to everybody else. A file that fits in the pool is cached as usual, so
+     * no ring is needed to scan it.
+     *
+     * @param numPages the number of pages in the scanned file
+     * @return the ring, or null if the scan should not use one
+     */
+    public ScanRing newScanRing(int numPages) {
+        if (numPages < this.BufferPageNum) return null;
+        return new ScanRing(Math.max(1, Math.min(SCAN_RING_PAGES, this.BufferPageNum / 8)));
+    }
+
+    private void acquireLock(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        lockManager.acquireLock(pid, tid, perm);
+    }
+
+    private void addToWriteSet(TransactionId tid, PageId pid) {
+        writeSets.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+    }
+
+    /** the pages tid can have dirtied, in {@link #WRITE_ORDER} */
+    private List<PageId> writeSet(TransactionId tid) {
+        Set<PageId> pids = writeSets.get(tid);
+        if (pids == null) return Collections.emptyList();
+        List<PageId> sorted = new ArrayList<>(pids);
+        sorted.sort(WRITE_ORDER);
+        return sorted;
+    }
+
+    /**
+     * Install a page read by a scan in one of the scan's ring frames. The
+     * frame the ring filled longest ago is reused when its page is still
+     * clean and nobody else asked for it; otherwise a page is evicted as
+     * usual.
+     *
+     * @return the page that is resident after the call
+     */
+    private synchronized Page cacheScanPage(Page page, ScanRing ring) throws DbException {
+        PageId pid = page.getId();
+        Page cached = pageTable.getForScan(pid);
+        if (cached != null) return cached;
+
+        PageId recycled = ring.advance(pid);
+        if (recycled != null)
+            pageTable.reclaim(recycled, ring, EVICTABLE);
+        while (pageTable.size() >= this.BufferPageNum)
             this.evictPage();
+        return pageTable.putForScan(pid, page, ring);
+    }
 
-            pageCache.put(pid, page);     
+    /**
+     * Install a page in the page table, evicting pages first if the pool is
+     * full.
+     *
+     * @param page the page to install
+     * @param replace if false and another thread already installed a version
+     *   of the page, keep that version and return it
+     * @return the page that is resident after the call
+     */
+    private synchronized Page cachePage(Page page, boolean replace) throws DbException {
+        PageId pid = page.getId();
+        if (pageTable.contains(pid)) {
+            if (!replace) return pageTable.get(pid);
+        } else {
+            while (pageTable.size() >= this.BufferPageNum)
+                this.evictPage();
         }
+        pageTable.put(pid, page);
+        return page;
+    }
 
+    /**
+     * Reads a page into the pool ahead of a scan that is expected to ask for
+     * it soon. No lock is taken: the page is read as it is on disk, and the
+     * scan still locks it when it calls getPage. If any page is written back
+     * or discarded while the read is in progress, the copy read may be
+     * stale and is dropped. Nothing happens if the page is already resident
+     * or the pool has no room.
+     *
+     * @param file the file the page belongs to
+     * @param pid the ID of the page to read
+     * @param ring the scan's ring, or null if the scan does not use one
+     * @see ReadAhead
+     */
+    public void prefetchPage(DbFile file, PageId pid, ScanRing ring) {
+        if (pageTable.contains(pid)) return;
+        long epoch = writeEpoch.get();
+        Page page;
+        try {
+            page = file.readPage(pid);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        if (page == null) return;
+        synchronized (this) {
+            if (writeEpoch.get() != epoch) return;
+            try {
+                if (ring == null) cachePage(page, false);
+                else cacheScanPage(page, ring);
+            } catch (DbException e) {
+                // every page is dirty; the scan will find out when it gets there
+            }
+        }
+    }
 
-        return page;
+    /** @return the maximum number of pages in this buffer pool */
+    public int getNumPages() {
+        return this.BufferPageNum;
+    }
+
+    /** @return the number of getPage calls served from the buffer pool */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /** @return the number of getPage calls that had to read the page from disk */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /** @return the number of page lock requests that had to wait */
+    public long getLockWaitCount() {
+        return lockManager.getWaitCount();
+    }
+
+    /** @return the number of deadlocks broken by aborting a transaction */
+    public long getDeadlockCount() {
+        return lockManager.getDeadlockCount();
+    }
+
+    /**
+     * Sets the policy that picks the transaction to abort when transactions
+     * deadlock on page locks. The default aborts the youngest transaction.
+     */
+    public void setDeadlockVictimPolicy(DeadlockVictimPolicy policy) {
+        lockManager.setVictimPolicy(policy);
     }
 
     /**
@@ -174,19 +407,36 @@ public class BufferPool {
         }else{
             restorePages(tid);
         }
+        writeSets.remove(tid);
         lockManager.completeTranslation(tid);
     }
 
+    /**
+     * Puts the before-image of every page tid dirtied back in the pool.
+     * Pages are written back only by commit, and each write-back makes the
+     * page's current contents its before-image, so the before-image is the
+     * page as it is on disk. A page tid still holds the lock on is restored
+     * even if it is not marked dirty: an access method may have changed it
+     * and been aborted before it got to return the page as dirtied. The
+     * file of each restored page is told about it through
+     * {@link DbFile#pageRestored}.
+     */
     private synchronized void restorePages(TransactionId tid) {
-        List<Page> map = pageCache.getPageList();
-        Iterator iterator = map.iterator();
-        while (iterator.hasNext()){
-            Page cur = (Page)iterator.next();
-            if (cur.isDirty()==tid){
-                discardPage(cur.getId());
-                return;
+        for (PageId pid : writeSet(tid)) {
+            Page page = pageTable.get(pid);
+            if (page == null) continue;
+            TransactionId dirtier = page.isDirty();
+            if (tid.equals(dirtier) || (dirtier == null && lockManager.isHoldLock(tid, pid))) {
+                writeEpoch.incrementAndGet();
+                Page restored = page.getBeforeImage();
+                pageTable.put(pid, restored);
+                try {
+                    Database.getCatalog().getDatabaseFile(pid.getTableId()).pageRestored(restored);
+                } catch (NoSuchElementException e) {
+                    // the table was dropped from the catalog; nothing to tell
+                }
             }
-        }      
+        }
     }
 
 
@@ -212,16 +462,31 @@ public class BufferPool {
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
         List<Page> pgs = dbFile.insertTuple(tid, t);
         for (Page page : pgs) {
-           
-
-            page.markDirty(true, tid); 
-            
-            //if ( pageCache.get(page.getId()) == null) throw new DbException("page donot exist in the buffbool");
-            
-            pageCache.put(page.getId(), page);
+            page.markDirty(true, tid);
+            addToWriteSet(tid, page.getId());
+            cachePage(page, true);
+        }
+    }
 
-            if (pageCache.getSize() - 1 > this.BufferPageNum)
-            this.evictPage();
+    /**
+     * Add several tuples to the specified table on behalf of transaction tid,
+     * like {@link #insertTuple} does for one. The file places as many tuples
+     * as fit on a page before it moves on to the next one, so each page is
+     * fetched and locked once per call, and each modified page is marked
+     * dirty and put in the cache once.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples the tuples to add
+     * @see DbFile#insertTuples
+     */
+    public void insertTuples(TransactionId tid, int tableId, Iterator<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        for (Page page : dbFile.insertTuples(tid, tuples)) {
+            page.markDirty(true, tid);
+            addToWriteSet(tid, page.getId());
+            cachePage(page, true);
         }
     }
 
@@ -250,14 +515,9 @@ public class BufferPool {
         DbFile dbFile = Database.getCatalog().getDatabaseFile(recordId.getPageId().getTableId());
         List<Page> pages = dbFile.deleteTuple(tid, t);
         for (Page page : pages) {
-            if (pageCache.getSize() == this.BufferPageNum)
-            this.evictPage();
-
             page.markDirty(true, tid);
-        
-            //if ( pageCache.get(page.getId()) == null) throw new DbException("page donot exist in the buffbool");
-
-            pageCache.put(page.getId(), page);
+            addToWriteSet(tid, page.getId());
+            cachePage(page, true);
         }
 
     }
@@ -270,15 +530,9 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        List<PageId> map = pageCache.getPageIdList();
-        Iterator iterator = map.iterator();
-        while (iterator.hasNext()){
-            PageId cur = (PageId)iterator.next();
-            Page page = pageCache.get(cur);
-            if (page.isDirty() == null) return;
-            Database.getCatalog().getDatabaseFile(cur.getTableId()).writePage(page);
+        for (Page page : pageTable.pages()) {
+            flushPage(page.getId());
         }
-       
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -293,14 +547,8 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
 
-        Page page = pageCache.evictPage(pid);
-        if (page == null)
-        try {
-            throw new DbException("pid is not exist in buffer pool");
-        } catch (DbException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }    
+        writeEpoch.incrementAndGet();
+        pageTable.remove(pid);
     }
 
     /**
@@ -310,24 +558,58 @@ public class BufferPool {
     private synchronized  void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page page = pageCache.get(pid);
-        if (page.isDirty() == null) return;
-        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+        Page page = pageTable.get(pid);
+        if (page == null || page.isDirty() == null) return;
+        // write-ahead logging: the update reaches the log before the page
+        LogFile log = Database.getLogFile();
+        long lsn = log.logWrite(page.isDirty(), page.getBeforeImage(), page);
+        log.force(lsn);
+        writePage(page, lsn);
+    }
+
+    /** Writes a page whose update has been logged with the given LSN, and
+        makes its current contents its before image. */
+    private synchronized void writePage(Page page, long lsn) throws IOException {
+        writeEpoch.incrementAndGet();
+        Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+        Database.getLogFile().pageWritten(page.getId(), lsn);
         page.markDirty(false, null);
+        page.setBeforeImage();
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        List<Page> map = pageCache.getPageList();
-        Iterator iterator = map.iterator();
-        while (iterator.hasNext()){
-            Page cur = (Page)iterator.next();
-            if (cur.isDirty()==tid){
-                flushPage(cur.getId());
-                return;
+        LogFile log = Database.getLogFile();
+        List<Page> logged = new ArrayList<>();
+        List<Long> lsns = new ArrayList<>();
+        long lastLsn = -1;
+        synchronized (this) {
+            // in page order, so that the writes to each file are sequential
+            for (PageId pid : writeSet(tid)) {
+                Page page = pageTable.get(pid);
+                if (page != null && tid.equals(page.isDirty())) {
+                    lastLsn = log.logWrite(tid, page.getBeforeImage(), page);
+                    logged.add(page);
+                    lsns.add(lastLsn);
+                }
+            }
+        }
+        if (logged.isEmpty()) return;
+
+        // one force for all the updates, outside the pool's monitor so that
+        // other transactions can share it under group commit; tid holds
+        // the write locks, so the pages do not change meanwhile
+        log.force(lastLsn);
+        synchronized (this) {
+            for (int i = 0; i < logged.size(); i++) {
+                Page page = logged.get(i);
+                // unless flushAllPages() wrote it in the meantime
+                if (pageTable.get(page.getId()) == page && tid.equals(page.isDirty())) {
+                    writePage(page, lsns.get(i));
+                }
             }
         }
     }
@@ -339,26 +621,9 @@ public class BufferPool {
     private synchronized  void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        
-        List<Page> map = pageCache.getPageList();
-        Iterator iterator = map.iterator();
-        while (iterator.hasNext()){
-            Page cur = (Page)iterator.next();  
-            
-            if ( cur.isDirty()==null){
-                if (lockManager.isHoldLock(cur.getId()) != null){
-                    System.out.println("==============================");
-                    for (PageLock pageLock : lockManager.isHoldLock(cur.getId()).values()){
-                        System.out.println(pageLock.getType());
-                    }
-                    System.out.println("==============================");
-                }
-                discardPage(cur.getId());
-                return;
-            }
-        }
-        
-        throw new DbException("all pages marked dirty");
+
+        if (pageTable.evict(EVICTABLE) == null)
+            throw new DbException("all pages marked dirty");
     }
 
 }
@@ -0,0 +1,75 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) replacement. Frames form a ring swept by a single
+ * hand; a hit only sets the frame's reference bit. The hand clears set bits
+ * as it passes and stops at the first evictable frame whose bit is clear.
+ * <p>
+ * A page's first reference, the one that brings it in, does not set its
+ * bit, so a page read once by a scan is reclaimed on the hand's next pass.
+ */
+public class ClockPolicy implements EvictionPolicy {
+
+    private static final class Frame extends PageFrame {
+        boolean referenced;
+
+        Frame(PageId pid, Page page) {
+            super(pid, page);
+        }
+    }
+
+    /** next frame to inspect; null when the ring is empty */
+    private PageFrame hand;
+    private int size;
+
+    public PageFrame admit(PageId pid, Page page) {
+        Frame frame = new Frame(pid, page);
+        if (hand == null) {
+            frame.prev = frame;
+            frame.next = frame;
+            hand = frame;
+        } else {
+            // just behind the hand: the last frame it will reach
+            frame.next = hand;
+            frame.prev = hand.prev;
+            hand.prev.next = frame;
+            hand.prev = frame;
+        }
+        size++;
+        return frame;
+    }
+
+    public void access(PageFrame frame) {
+        ((Frame) frame).referenced = true;
+    }
+
+    public void remove(PageFrame frame) {
+        if (frame.next == frame) {
+            hand = null;
+        } else {
+            if (hand == frame) hand = frame.next;
+            frame.prev.next = frame.next;
+            frame.next.prev = frame.prev;
+        }
+        frame.prev = null;
+        frame.next = null;
+        size--;
+    }
+
+    public PageFrame victim(Predicate<Page> evictable) {
+        // two full sweeps: the first may only clear reference bits
+        for (int steps = 2 * size; steps > 0; steps--) {
+            Frame f = (Frame) hand;
+            hand = f.next;
+            if (!evictable.test(f.page)) continue;
+            if (f.referenced) {
+                f.referenced = false;
+                continue;
+            }
+            return f;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,254 @@
+package simpledb.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK-Pro replacement (Jiang, Chen and Zhang, USENIX '05).
+ * <p>
+ * Resident pages are either hot or cold. A newly read page starts cold and
+ * in its test period. If it is referenced again before its test period ends
+ * it becomes hot. Only cold pages are evicted; a page evicted during its test
+ * period leaves a non-resident entry behind, and reading that page again
+ * brings it straight back as hot. Pages that a scan touches once therefore
+ * never displace hot pages.
+ * <p>
+ * Hot, cold and non-resident entries share one ring, swept by three hands:
+ * <ul>
+ * <li> the cold hand looks for a victim among resident cold pages,
+ * <li> the hot hand demotes unreferenced hot pages to cold when there are
+ *      too many hot pages,
+ * <li> the test hand ends test periods and drops non-resident entries when
+ *      there are too many of them.
+ * </ul>
+ * The number of cold pages the partition aims to keep adapts. It grows when
+ * a non-resident page is read again, and shrinks when a test period runs out
+ * with no re-reference.
+ */
+public class ClockProPolicy implements EvictionPolicy {
+
+    private static final class Frame extends PageFrame {
+        boolean hot;
+        boolean referenced;
+        boolean inTest;
+        boolean resident = true;
+
+        Frame(PageId pid, Page page) {
+            super(pid, page);
+        }
+    }
+
+    /** number of resident pages this partition is sized for */
+    private final int capacity;
+    /** adaptive target for the number of resident cold pages */
+    private int coldTarget;
+
+    private int hotCount;
+    private int coldCount;
+    private int nonResidentCount;
+
+    /** non-resident entries still in their test period, by page id */
+    private final Map<PageId, Frame> nonResident = new HashMap<>();
+
+    /** hands are null exactly when the ring is empty */
+    private PageFrame handHot;
+    private PageFrame handCold;
+    private PageFrame handTest;
+
+    /**
+     * @param capacity the number of resident pages the partition is sized for
+     */
+    public ClockProPolicy(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.coldTarget = Math.max(1, this.capacity / 4);
+    }
+
+    private int hotTarget() {
+        return capacity - coldTarget;
+    }
+
+    private int ringSize() {
+        return hotCount + coldCount + nonResidentCount;
+    }
+
+    /** Inserts a frame at the head of the ring, which the hot hand reaches last. */
+    private void insert(PageFrame frame) {
+        if (handHot == null) {
+            frame.prev = frame;
+            frame.next = frame;
+            handHot = handCold = handTest = frame;
+            return;
+        }
+        frame.next = handHot;
+        frame.prev = handHot.prev;
+        handHot.prev.next = frame;
+        handHot.prev = frame;
+    }
+
+    private void unlink(PageFrame frame) {
+        if (frame.next == frame) {
+            handHot = handCold = handTest = null;
+        } else {
+            if (handHot == frame) handHot = frame.next;
+            if (handCold == frame) handCold = frame.next;
+            if (handTest == frame) handTest = frame.next;
+            frame.prev.next = frame.next;
+            frame.next.prev = frame.prev;
+        }
+        frame.prev = null;
+        frame.next = null;
+    }
+
+    private void dropNonResident(Frame frame) {
+        nonResident.remove(frame.pid);
+        nonResidentCount--;
+        unlink(frame);
+    }
+
+    private void shrinkColdTarget() {
+        if (coldTarget > 1) coldTarget--;
+    }
+
+    public PageFrame admit(PageId pid, Page page) {
+        Frame frame = new Frame(pid, page);
+        Frame ghost = nonResident.get(pid);
+        if (ghost != null) {
+            // re-read during its test period: cold pages are too few
+            dropNonResident(ghost);
+            if (coldTarget < capacity) coldTarget++;
+            frame.hot = true;
+            hotCount++;
+            insert(frame);
+            balanceHot();
+        } else {
+            frame.inTest = true;
+            coldCount++;
+            insert(frame);
+        }
+        return frame;
+    }
+
+    public void access(PageFrame frame) {
+        ((Frame) frame).referenced = true;
+    }
+
+    public void remove(PageFrame pf) {
+        Frame frame = (Frame) pf;
+        frame.referenced = false;
+        if (frame.hot) {
+            hotCount--;
+            unlink(frame);
+        } else if (frame.inTest) {
+            // keep remembering the page until its test period ends
+            coldCount--;
+            frame.resident = false;
+            frame.page = null;
+            nonResident.put(frame.pid, frame);
+            nonResidentCount++;
+            while (nonResidentCount > capacity && runHandTest()) {
+                // drop the oldest non-resident entries
+            }
+        } else {
+            coldCount--;
+            unlink(frame);
+        }
+    }
+
+    private void balanceHot() {
+        while (hotCount > hotTarget() && runHandHot()) {
+            // demote until the hot set fits again
+        }
+    }
+
+    /**
+     * Advances the hot hand until it demotes one hot page. On the way it ends
+     * the test periods of cold pages and drops non-resident entries.
+     *
+     * @return true if a page was demoted
+     */
+    private boolean runHandHot() {
+        for (int steps = 2 * ringSize(); steps > 0 && handHot != null; steps--) {
+            Frame f = (Frame) handHot;
+            if (!f.resident) {
+                dropNonResident(f);
+                shrinkColdTarget();
+                continue;
+            }
+            handHot = f.next;
+            if (f.hot) {
+                if (f.referenced) {
+                    f.referenced = false;
+                } else {
+                    f.hot = false;
+                    hotCount--;
+                    coldCount++;
+                    return true;
+                }
+            } else if (f.inTest) {
+                f.inTest = false;
+                shrinkColdTarget();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Advances the test hand until it drops one non-resident entry, ending
+     * the test periods of the cold pages it passes.
+     *
+     * @return true if an entry was dropped
+     */
+    private boolean runHandTest() {
+        for (int steps = ringSize(); steps > 0 && handTest != null; steps--) {
+            Frame f = (Frame) handTest;
+            if (!f.resident) {
+                dropNonResident(f);
+                shrinkColdTarget();
+                return true;
+            }
+            handTest = f.next;
+            if (!f.hot && f.inTest) {
+                f.inTest = false;
+                shrinkColdTarget();
+            }
+        }
+        return false;
+    }
+
+    public PageFrame victim(Predicate<Page> evictable) {
+        for (int steps = 3 * ringSize(); steps > 0 && handCold != null; steps--) {
+            Frame f = (Frame) handCold;
+            handCold = f.next;
+            if (!f.resident || f.hot || !evictable.test(f.page)) continue;
+            if (!f.referenced) return f;
+
+            f.referenced = false;
+            if (f.inTest) {
+                // re-referenced while in test: promote
+                f.hot = true;
+                f.inTest = false;
+                coldCount--;
+                hotCount++;
+                if (coldTarget < capacity) coldTarget++;
+                balanceHot();
+            } else {
+                // start a new test period from the head of the ring
+                f.inTest = true;
+                unlink(f);
+                insert(f);
+            }
+        }
+
+        // every cold page is pinned by the caller's predicate; fall back to
+        // any evictable resident page, hot or not
+        PageFrame start = handHot;
+        if (start == null) return null;
+        PageFrame f = start;
+        do {
+            if (((Frame) f).resident && evictable.test(f.page)) return f;
+            f = f.next;
+        } while (f != start);
+        return null;
+    }
+}
@@ -24,6 +24,14 @@ public interface DbFile {
      */
     Page readPage(PageId id);
 
+    /**
+     * Returns an empty page with the specified id, of the kind readPage
+     * would return for it. Recovery redoes logged updates on it when the
+     * page is past the end of the file, because a crash lost the extension
+     * of the file.
+     */
+    Page emptyPage(PageId id) throws IOException;
+
     /**
      * Push the specified page to disk.
      *
@@ -33,6 +41,38 @@ public interface DbFile {
      */
     void writePage(Page p) throws IOException;
 
+    /**
+     * Makes every page written so far durable, so that it survives a
+     * crash of the machine and not just of the database. The log uses
+     * this to decide which updates recovery no longer needs to redo.
+     * Files that keep no data on disk need not override it.
+     *
+     * @throws IOException if the sync fails
+     */
+    default void sync() throws IOException {
+    }
+
+    /**
+     * Closes the files this DbFile keeps open. The Catalog calls it when
+     * the table is replaced or removed. Files that keep nothing open need
+     * not override it.
+     *
+     * @throws IOException if closing fails
+     */
+    default void close() throws IOException {
+    }
+
+    /**
+     * Called by the BufferPool after it puts the before-image of a page back
+     * in the pool, when the transaction that modified the page aborts.
+     * Files that keep information derived from their pages in memory should
+     * override it to bring that information back in line with the page.
+     *
+     * @param page the page as it was restored
+     */
+    default void pageRestored(Page page) {
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -48,6 +88,33 @@ public interface DbFile {
     List<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts all of the specified tuples to the file on behalf of
+     * transaction, like calling {@link #insertTuple} for each of them.
+     * Each modified page is marked dirty by tid as soon as it is modified, so
+     * that it is not evicted while later tuples are inserted.
+     * <p>
+     * The default implementation inserts the tuples one at a time; files
+     * that can place several tuples on a page at once should override it.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to add
+     * @return the pages that were modified, each listed once
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    default List<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        Map<PageId, Page> modified = new LinkedHashMap<>();
+        while (tuples.hasNext()) {
+            for (Page p : insertTuple(tid, tuples.next())) {
+                p.markDirty(true, tid);
+                modified.put(p.getId(), p);
+            }
+        }
+        return new ArrayList<>(modified.values());
+    }
+
     /**
      * Removes the specified tuple from the file on behalf of the specified
      * transaction.
@@ -0,0 +1,56 @@
+package simpledb.storage;
+
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+import simpledb.transaction.TransactionId;
+
+/**
+ * DeadlockVictimPolicy picks the transaction to abort when the LockManager
+ * finds a cycle in its waits-for graph. It is called with the graph locked,
+ * so it must be quick and must not call back into the LockManager.
+ *
+ * @see LockManager#setVictimPolicy(DeadlockVictimPolicy)
+ */
+public interface DeadlockVictimPolicy {
+
+    /** Aborts the transaction that started last. */
+    static DeadlockVictimPolicy youngest() {
+        return (cycle, locksHeld) -> {
+            TransactionId victim = cycle.get(0);
+            for (TransactionId tid : cycle) {
+                if (tid.getId() > victim.getId()) victim = tid;
+            }
+            return victim;
+        };
+    }
+
+    /**
+     * Aborts the transaction that holds the fewest locks, and so has
+     * probably done the least work; the youngest of those if several do.
+     */
+    static DeadlockVictimPolicy fewestLocks() {
+        return (cycle, locksHeld) -> {
+            TransactionId victim = cycle.get(0);
+            int fewest = locksHeld.applyAsInt(victim);
+            for (TransactionId tid : cycle) {
+                int held = locksHeld.applyAsInt(tid);
+                if (held < fewest || (held == fewest && tid.getId() > victim.getId())) {
+                    victim = tid;
+                    fewest = held;
+                }
+            }
+            return victim;
+        };
+    }
+
+    /**
+     * Chooses the transaction to abort.
+     *
+     * @param cycle the transactions on the cycle, each waiting for the next
+     *   and the last waiting for the first
+     * @param locksHeld the number of page locks a transaction holds
+     * @return one of the transactions in cycle
+     */
+    TransactionId chooseVictim(List<TransactionId> cycle, ToIntFunction<TransactionId> locksHeld);
+}
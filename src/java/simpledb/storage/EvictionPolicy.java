@@ -0,0 +1,69 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * EvictionPolicy decides which page leaves a PageTable partition when the
+ * BufferPool needs room. Each partition owns one policy instance and calls
+ * it with the partition monitor held, so implementations need not be
+ * thread-safe.
+ * <p>
+ * {@link #victim} is on the miss path of every full pool. Implementations
+ * must not allocate in it and should run in amortized constant time.
+ *
+ * @see PageTable
+ * @see BufferPool#BufferPool(int, EvictionPolicy.Factory)
+ */
+public interface EvictionPolicy {
+
+    /** Creates the policy for one partition of a page table. */
+    interface Factory {
+        /**
+         * @param capacity the number of pages this partition is expected to
+         *   hold, i.e. its share of the pool
+         */
+        EvictionPolicy create(int capacity);
+    }
+
+    /** Least recently used; the behaviour of the original LruCache. */
+    static Factory lru() {
+        return capacity -> new LruPolicy();
+    }
+
+    /** Single-hand CLOCK (second chance). */
+    static Factory clock() {
+        return capacity -> new ClockPolicy();
+    }
+
+    /** CLOCK-Pro: scan resistant, adapts the split between hot and cold pages. */
+    static Factory clockPro() {
+        return ClockProPolicy::new;
+    }
+
+    /** LRU-K: evicts the page whose K-th most recent reference is oldest. */
+    static Factory lruK(int k) {
+        return capacity -> new LruKPolicy(k);
+    }
+
+    /**
+     * Called when a page becomes resident.
+     *
+     * @return the frame the page table keeps for the page
+     */
+    PageFrame admit(PageId pid, Page page);
+
+    /** Called each time a resident page is requested again. */
+    void access(PageFrame frame);
+
+    /** Called when a resident page leaves the partition, evicted or discarded. */
+    void remove(PageFrame frame);
+
+    /**
+     * Chooses the resident frame to evict next. The frame is not removed;
+     * the page table calls {@link #remove} once it has dropped the page.
+     *
+     * @param evictable decides whether a page may leave the pool at all
+     * @return a frame whose page satisfies evictable, or null if none does
+     */
+    PageFrame victim(Predicate<Page> evictable);
+}
@@ -4,6 +4,7 @@ import simpledb.execution.Predicate;
 import simpledb.common.Type;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Interface for values of fields in tuples in SimpleDB.
@@ -17,6 +18,13 @@ public interface Field extends Serializable{
      */
     void serialize(DataOutputStream dos) throws IOException;
 
+    /**
+     * Write the bytes representing this field to buf at its current
+     * position, the same bytes {@link #serialize(DataOutputStream)} writes.
+     * @param buf The buffer to write to.
+     */
+    void serialize(ByteBuffer buf);
+
     /**
      * Compare the value of this field object to the passed in value.
      * @param op The operator
@@ -0,0 +1,173 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FileHandle is the long-lived handle a DbFile keeps on its backing file.
+ * <p>
+ * The file is opened once, on first use, and stays open until {@link #close}.
+ * All I/O goes through one FileChannel with positional reads and writes, so
+ * concurrent page accesses neither reopen the file nor share a file pointer. The file length is
+ * cached: it is read from the channel when the file is opened and grows
+ * with every write through this handle. Changes made to the file behind the
+ * handle's back are not seen.
+ *
+ * @Threadsafe
+ */
+public class FileHandle {
+    private final File file;
+    private volatile FileChannel channel;
+    /** cached file length in bytes; -1 until the file is opened */
+    private final AtomicLong length = new AtomicLong(-1);
+    /** read-only mapping of the start of the file, see {@link #map} */
+    private volatile MappedByteBuffer mapping;
+
+    /**
+     * @param file the file to open on first use
+     */
+    public FileHandle(File file) {
+        this.file = file;
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel c = channel;
+        if (c != null) return c;
+        synchronized (this) {
+            if (channel == null) {
+                RandomAccessFile raf;
+                try {
+                    raf = new RandomAccessFile(file, "rw");
+                } catch (FileNotFoundException e) {
+                    // read-only file
+                    raf = new RandomAccessFile(file, "r");
+                }
+                FileChannel opened = raf.getChannel();
+                // other threads use the channel without locking, so the
+                // length must be set before they can see it
+                length.set(opened.size());
+                channel = opened;
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * Returns the length of the file in bytes. Returns 0 if the file does not
+     * exist yet.
+     */
+    public long length() {
+        if (channel == null && !file.exists()) return 0;
+        try {
+            channel();
+        } catch (IOException e) {
+            return 0;
+        }
+        return length.get();
+    }
+
+    /**
+     * Reads bytes from the file into buf, starting at the given position,
+     * until buf is full or the end of the file is reached.
+     *
+     * @return the number of bytes read, or -1 if position is at or past the
+     *   end of the file
+     */
+    public int read(byte[] buf, long position) throws IOException {
+        FileChannel c = channel();
+        ByteBuffer dst = ByteBuffer.wrap(buf);
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int n = c.read(dst, position + total);
+            if (n < 0) return total == 0 ? -1 : total;
+            total += n;
+        }
+        return total;
+    }
+
+    /** Writes all of data to the file at the given position. */
+    public void write(byte[] data, long position) throws IOException {
+        FileChannel c = channel();
+        ByteBuffer src = ByteBuffer.wrap(data);
+        while (src.hasRemaining()) {
+            c.write(src, position + src.position());
+        }
+        length.accumulateAndGet(position + data.length, Math::max);
+    }
+
+    /**
+     * Writes the remaining bytes of src to the file at the given position.
+     * On return src has no bytes remaining.
+     */
+    public void write(ByteBuffer src, long position) throws IOException {
+        FileChannel c = channel();
+        int start = src.position();
+        while (src.hasRemaining()) {
+            c.write(src, position + src.position() - start);
+        }
+        length.accumulateAndGet(position + src.position() - start, Math::max);
+    }
+
+    /**
+     * Forces the data written through this handle to the storage device.
+     * Does nothing if the file was never opened.
+     */
+    public void force() throws IOException {
+        FileChannel c = channel;
+        if (c != null) c.force(false);
+    }
+
+    /**
+     * Closes the file and drops the mapping of it. Must not be called while
+     * other threads use the handle. A handle that is used again after it was
+     * closed opens the file again.
+     */
+    public synchronized void close() throws IOException {
+        FileChannel c = channel;
+        channel = null;
+        mapping = null;
+        length.set(-1);
+        if (c != null) c.close();
+    }
+
+    /**
+     * Appends data to the end of the file.
+     *
+     * @return the position data was written at
+     */
+    public synchronized long append(byte[] data) throws IOException {
+        channel();
+        long position = length.get();
+        write(data, position);
+        return position;
+    }
+
+    /**
+     * Returns a read-only memory mapping of the file that covers at least
+     * its first minLength bytes. The file is mapped again, to its current
+     * length, whenever the existing mapping is too short. Writes through this
+     * handle show up in the mapping.
+     *
+     * @return the mapping, or null if minLength is past the end of the file
+     *   or too large to map
+     */
+    public ByteBuffer map(long minLength) throws IOException {
+        MappedByteBuffer m = mapping;
+        if (m != null && m.capacity() >= minLength) return m;
+        synchronized (this) {
+            m = mapping;
+            if (m != null && m.capacity() >= minLength) return m;
+            FileChannel c = channel();
+            long len = length.get();
+            if (minLength > len || len > Integer.MAX_VALUE) return null;
+            mapping = m = c.map(FileChannel.MapMode.READ_ONLY, 0, len);
+            return m;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * FreeSpaceMap remembers how many empty slots each page of a HeapFile has, so
+ * that inserts can go straight to a page with room instead of locking and
+ * reading every full page before it.
+ * <p>
+ * The map keeps one byte per page: 0 if nothing is known about the page, and
+ * otherwise one more than the page's number of empty slots, capped at 255.
+ * It lives in memory and is saved to a side file next to the heap file
+ * (<tt>&lt;heap file&gt;.fsm</tt>), one byte at a time as pages are written
+ * to disk, so the saved map matches the pages on disk. A missing or short
+ * side file only means that some pages are unknown. A side file older than
+ * the heap file was not kept up to date with it (the heap file was replaced,
+ * or the system stopped between writing a page and saving its entry) and is
+ * thrown away. The side file of a heap file in the temporary directory is
+ * deleted when the JVM exits, as such heap files are.
+ * <p>
+ * The map is a hint. Callers must check a page it points them to under a
+ * write lock, and report what they find with {@link #update}.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    private static final byte UNKNOWN = 0;
+    private static final byte FULL = 1;
+
+    private final File file;
+    private final FileHandle handle;
+
+    /** one entry per page, see the class comment; null until loaded */
+    private byte[] entries;
+    /** every page before this one is known to be full */
+    private int firstCandidate;
+
+    /**
+     * @param heapFile the heap file whose pages the map describes; the map is
+     *   saved in a side file next to it, created on the first save
+     */
+    public FreeSpaceMap(File heapFile) {
+        this.file = new File(heapFile.getPath() + ".fsm");
+        if (file.exists() && file.lastModified() < heapFile.lastModified()) {
+            file.delete();
+        }
+        if (isTemporary(heapFile)) {
+            file.deleteOnExit();
+        }
+        this.handle = new FileHandle(file);
+    }
+
+    /**
+     * Returns true if the file is in the temporary directory, where the
+     * heap files of tests and intermediate results are created
+     */
+    private static boolean isTemporary(File f) {
+        try {
+            File tmp = new File(System.getProperty("java.io.tmpdir")).getCanonicalFile();
+            for (File dir = f.getCanonicalFile().getParentFile(); dir != null; dir = dir.getParentFile()) {
+                if (dir.equals(tmp)) return true;
+            }
+        } catch (IOException e) {
+            // not known to be temporary
+        }
+        return false;
+    }
+
+    private static byte encode(int emptySlots) {
+        return (byte) (1 + Math.min(254, Math.max(0, emptySlots)));
+    }
+
+    private void load() {
+        if (entries != null) return;
+        entries = new byte[0];
+        long len = handle.length();
+        if (len == 0 || len > Integer.MAX_VALUE) return;
+        byte[] saved = new byte[(int) len];
+        try {
+            if (handle.read(saved, 0) > 0) entries = saved;
+        } catch (IOException e) {
+            // start over with every page unknown
+        }
+    }
+
+    private void ensureCapacity(int pgNo) {
+        if (pgNo >= entries.length) {
+            entries = Arrays.copyOf(entries, Math.max(pgNo + 1, entries.length * 2));
+        }
+    }
+
+    /**
+     * Returns the first page that may have an empty slot: one with empty
+     * slots or one nothing is known about.
+     *
+     * @param numPages the number of pages in the heap file
+     * @return the page number, or -1 if every page is known to be full
+     */
+    public synchronized int findPageWithSpace(int numPages) {
+        load();
+        for (int pgNo = firstCandidate; pgNo < numPages; pgNo++) {
+            if (pgNo >= entries.length || entries[pgNo] != FULL) {
+                firstCandidate = pgNo;
+                return pgNo;
+            }
+        }
+        firstCandidate = numPages;
+        return -1;
+    }
+
+    /**
+     * Returns the number of empty slots recorded for a page, capped at 254,
+     * or -1 if nothing is known about it.
+     */
+    public synchronized int getEmptySlots(int pgNo) {
+        load();
+        if (pgNo >= entries.length || entries[pgNo] == UNKNOWN) return -1;
+        return (entries[pgNo] & 0xff) - 1;
+    }
+
+    /**
+     * Records the number of empty slots a page has now. Does not save the
+     * map; see {@link #save}.
+     */
+    public synchronized void update(int pgNo, int emptySlots) {
+        load();
+        ensureCapacity(pgNo);
+        entries[pgNo] = encode(emptySlots);
+        if (emptySlots > 0 && pgNo < firstCandidate) firstCandidate = pgNo;
+    }
+
+    /**
+     * Records the number of empty slots of a page that is being written to
+     * disk, and saves its entry to the side file.
+     */
+    public void save(int pgNo, int emptySlots) throws IOException {
+        update(pgNo, emptySlots);
+        handle.write(new byte[] { encode(emptySlots) }, pgNo);
+    }
+
+    /** Closes the side file; see {@link FileHandle#close}. */
+    public void close() throws IOException {
+        handle.close();
+    }
+}
@@ -0,0 +1,195 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * GroupCommit lets concurrent threads that need the log forced share one
+ * force of it.
+ * <p>
+ * A thread that needs the log record with a given LSN on disk requests it
+ * and waits until a force that covers the LSN has completed. The forces
+ * are done by a single log-writer thread: once a request is pending, it
+ * waits up to the maximum delay for more requests to join the batch, or
+ * until the batch is full, and then forces the log once for all of them.
+ * A force done for any other reason (see {@link LogFile#force}) makes the
+ * records it covers durable as well.
+ *
+ * @Threadsafe
+ */
+class GroupCommit implements Runnable {
+
+    private final LogFile log;
+    private final long maxDelayNanos;
+    private final int maxBatchSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    /** signalled when the writer has work, or when it should stop */
+    private final Condition pending = lock.newCondition();
+    /** signalled when records become durable or their force fails */
+    private final Condition flushed = lock.newCondition();
+
+    /** the highest LSN requested; guarded by lock */
+    private long issued = -1;
+    /** every record with a lower LSN is on disk; guarded by lock */
+    private long durable;
+    /** the requests not yet covered by a force the writer started; guarded by lock */
+    private int batch;
+    /** requests for LSNs below this failed, and why; guarded by lock */
+    private long failedBelow;
+    private IOException failure;
+    private boolean stopped;
+
+    private final Thread writer;
+
+    /**
+     * Starts the log-writer thread.
+     *
+     * @param log the log to force
+     * @param maxDelay how long a pending request may wait for others to
+     *   join its batch
+     * @param maxBatchSize the number of pending requests that are forced
+     *   at once, without waiting for the delay to run out
+     */
+    GroupCommit(LogFile log, long maxDelay, TimeUnit unit, int maxBatchSize) {
+        if (maxBatchSize < 1) throw new IllegalArgumentException("maxBatchSize must be positive");
+        this.log = log;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.maxBatchSize = maxBatchSize;
+        this.writer = new Thread(this, "simpledb-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** every record below this LSN is durable or its force failed */
+    private long settled() {
+        return Math.max(durable, failedBelow);
+    }
+
+    /**
+     * Asks the writer to force the log up to and including the record with
+     * the given LSN; see {@link #awaitDurable}.
+     *
+     * @return false if the writer has been stopped, in which case the
+     *   caller must force the log itself
+     */
+    boolean request(long lsn) {
+        lock.lock();
+        try {
+            if (stopped) return false;
+            if (lsn > issued) issued = lsn;
+            batch++;
+            if (batch == 1 || batch >= maxBatchSize) pending.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that a force has made every record below end durable. */
+    void forced(long end) {
+        lock.lock();
+        try {
+            if (end > durable) {
+                durable = end;
+                flushed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the record with the given LSN is on disk.
+     *
+     * @throws IOException if the force that should have covered it failed
+     */
+    void awaitDurable(long lsn) throws IOException {
+        boolean interrupted = false;
+        lock.lock();
+        try {
+            while (durable <= lsn) {
+                if (lsn < failedBelow) {
+                    throw new IOException("log force failed", failure);
+                }
+                try {
+                    flushed.await();
+                } catch (InterruptedException e) {
+                    // the record is already in the log; only its force is left
+                    interrupted = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the log-writer thread once the records already requested are
+     * durable. Does not wait for it.
+     */
+    void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            pending.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            lock.lock();
+            try {
+                while (!stopped && issued < settled()) {
+                    // the requests made during the last force were covered
+                    // by it, so the next one must wake us up
+                    batch = 0;
+                    pending.awaitUninterruptibly();
+                }
+                if (issued < settled()) return;
+                // give other threads a chance to join the batch
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (!stopped && batch < maxBatchSize) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) break;
+                    try {
+                        pending.awaitNanos(left);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                batch = 0;
+            } finally {
+                lock.unlock();
+            }
+
+            long end = -1;
+            IOException error = null;
+            try {
+                end = log.forceLog();
+            } catch (IOException e) {
+                error = e;
+            }
+
+            lock.lock();
+            try {
+                if (error == null) {
+                    if (end > durable) durable = end;
+                } else {
+                    // fail everybody waiting now rather than retry forever
+                    failedBelow = issued + 1;
+                    failure = error;
+                }
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -8,6 +8,7 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -24,6 +25,11 @@ public class HeapFile implements DbFile {
     private TupleDesc tupleDesc;
     private File heapFile;
     private int tableId;
+    // open channel on heapFile; also caches its length
+    private final FileHandle handle;
+    private final boolean memoryMapped;
+    // empty slots per page, saved next to heapFile
+    private final FreeSpaceMap freeSpace;
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -32,12 +38,42 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally read
+     * through a memory mapping of the file. In that mode readPage hands out
+     * pages that decode their tuples straight from the mapping, so a scan of
+     * a cached file neither copies nor allocates page buffers. Meant for
+     * tables that are rarely written; writes still go through the file
+     * channel and show up in the mapping, and so in the tuples of pages read
+     * before the write that are still being looked at. The BufferPool's page
+     * locks keep that from happening to a transaction's own reads.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param memoryMapped
+     *            true to read pages through a memory mapping of f
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped) {
         // some code goes here
         this.tupleDesc = td;
         this.heapFile = f;
+        this.handle = new FileHandle(f);
+        this.memoryMapped = memoryMapped;
+        this.freeSpace = new FreeSpaceMap(f);
         getId();
     }
 
+    /**
+     * Returns true if pages of this file are read through a memory mapping.
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
     /**
      * Returns the File backing this HeapFile on disk.
      * 
@@ -76,56 +112,77 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
-        
-        
-            try {
-                RandomAccessFile file = new RandomAccessFile(heapFile, "r");
-                int pageSize = BufferPool.getPageSize();
-                if(pid.getPageNumber() >= this.numPages() || pid.getPageNumber() < 0) {
-                    file.close();
-                    throw new IllegalArgumentException("the page does not exist in this file.");
+        int pageSize = BufferPool.getPageSize();
+        if(pid.getPageNumber() >= this.numPages() || pid.getPageNumber() < 0) {
+            throw new IllegalArgumentException("the page does not exist in this file.");
+        }
+        try {
+            if (memoryMapped) {
+                long offset = (long) pageSize * pid.getPageNumber();
+                ByteBuffer map = handle.map(offset + pageSize);
+                if (map != null) {
+                    ByteBuffer slice = map.duplicate();
+                    slice.position((int) offset);
+                    slice.limit((int) offset + pageSize);
+                    return noteFreeSpace(new HeapPage((HeapPageId)pid,slice.slice()));
                 }
-                file.seek(pageSize * pid.getPageNumber());
-                byte[] byteBuffer = new byte[pageSize];
-                file.read(byteBuffer);
-                file.close();
-                Page page = new HeapPage((HeapPageId)pid,byteBuffer);
-                
-                return page;
-            } catch (FileNotFoundException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
             }
-            return null;                   
+            byte[] byteBuffer = new byte[pageSize];
+            handle.read(byteBuffer, (long) pageSize * pid.getPageNumber());
+            return noteFreeSpace(new HeapPage((HeapPageId)pid,byteBuffer));
+        } catch (IOException e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+        }
+        return null;
     }
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        try {
-            RandomAccessFile file = new RandomAccessFile(heapFile, "rw");
-            int pageSize = BufferPool.getPageSize();
-            PageId pid = page.getId();
-            if(pid.getPageNumber() > this.numPages() || pid.getPageNumber() < 0) {
-                file.close();
-                throw new IllegalArgumentException("the page idx is beyong two or < 0.");
-            }
-            file.seek(pageSize * pid.getPageNumber());
-            
-            file.write(page.getPageData());
-            file.close();
-            
-        } catch (FileNotFoundException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+        int pageSize = BufferPool.getPageSize();
+        PageId pid = page.getId();
+        // a page past the end leaves a gap of zeroes, which read as empty
+        // pages; recovery writes such pages when a crash lost the end of
+        // the file
+        if(pid.getPageNumber() < 0) {
+            throw new IllegalArgumentException("the page idx is < 0.");
         }
+        ByteBuffer buf = PageBuffers.forWrite(pageSize);
+        page.writePageData(buf);
+        handle.write(buf, (long) pageSize * pid.getPageNumber());
+        freeSpace.save(pid.getPageNumber(), ((HeapPage) page).getNumEmptySlots());
+    }
+
+    // see DbFile.java for javadocs
+    public Page emptyPage(PageId pid) throws IOException {
+        return new HeapPage((HeapPageId) pid, HeapPage.createEmptyPageData());
+    }
+
+    // see DbFile.java for javadocs
+    public void sync() throws IOException {
+        handle.force();
+    }
+
+    // see DbFile.java for javadocs
+    public void close() throws IOException {
+        handle.close();
+        freeSpace.close();
+    }
+
+    private HeapPage noteFreeSpace(HeapPage page) {
+        freeSpace.update(page.getId().getPageNumber(), page.getNumEmptySlots());
+        return page;
+    }
+
+    /**
+     * An aborted transaction's inserts and deletes are undone by restoring
+     * the page, so the free space map goes back to what the page holds.
+     */
+    @Override
+    public void pageRestored(Page page) {
+        noteFreeSpace((HeapPage) page);
     }
 
     /**
@@ -133,7 +190,7 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        return (int)Math.ceil(heapFile.length() / BufferPool.getPageSize() );
+        return (int) (handle.length() / BufferPool.getPageSize());
     }
 
     // see DbFile.java for javadocs
@@ -141,29 +198,65 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        HeapPage page;
-        for (int pgNo = 0; ; pgNo++) {
-            HeapPageId pageId = new HeapPageId(getId(), pgNo);
+        HeapPage page = pageWithRoom(tid);
+        page.insertTuple(t);
+        freeSpace.update(page.getId().getPageNumber(), page.getNumEmptySlots());
+
+        return Collections.singletonList(page);
+    }
+
+    // see DbFile.java for javadocs
+    public List<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        // fill each page before moving on to the next, so every page is
+        // fetched and locked once
+        List<Page> modified = new ArrayList<>();
+        while (tuples.hasNext()) {
+            HeapPage page = pageWithRoom(tid);
+            page.markDirty(true, tid);
+            modified.add(page);
             try {
-                page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
-                if (page.getNumEmptySlots() == 0) {
-                    System.out.println("[unsafeReleasePage] : " + tid + " " + pageId);
-                    Database.getBufferPool().unsafeReleasePage(tid, pageId);
-                    continue;
+                while (page.getNumEmptySlots() > 0 && tuples.hasNext()) {
+                    page.insertTuple(tuples.next());
                 }
-            } catch (IllegalArgumentException e) {
-
-                page = new HeapPage(pageId, HeapPage.createEmptyPageData());  
-                writePage(page);
-                page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
-            
-            }   
-            break;
+            } finally {
+                freeSpace.update(page.getId().getPageNumber(), page.getNumEmptySlots());
+            }
         }
-        
-        page.insertTuple(t);
+        return modified;
+    }
 
-        return Collections.singletonList(page);
+    /**
+     * Returns a page of this file with at least one empty slot, locked
+     * READ_WRITE by tid. Adds a page to the end of the file if every page is
+     * full.
+     */
+    private HeapPage pageWithRoom(TransactionId tid)
+            throws DbException, IOException, TransactionAbortedException {
+        // go straight to a page the free space map says has room; check it
+        // under the write lock, since the map is only a hint
+        BufferPool pool = Database.getBufferPool();
+        HeapPage page = null;
+        for (int pgNo = freeSpace.findPageWithSpace(numPages()); pgNo >= 0;
+                pgNo = freeSpace.findPageWithSpace(numPages())) {
+            HeapPageId pageId = new HeapPageId(getId(), pgNo);
+            boolean held = pool.holdsLock(tid, pageId);
+            HeapPage candidate = (HeapPage) pool.getPage(tid, pageId, Permissions.READ_WRITE);
+            if (candidate.getNumEmptySlots() > 0) {
+                page = candidate;
+                break;
+            }
+            freeSpace.update(pgNo, 0);
+            if (!held) pool.unsafeReleasePage(tid, pageId);
+        }
+
+        if (page == null) {
+            // every page is full; add one to the end of the file
+            HeapPageId pageId = new HeapPageId(getId(), numPages());
+            writePage(new HeapPage(pageId, HeapPage.createEmptyPageData()));
+            page = (HeapPage) pool.getPage(tid, pageId, Permissions.READ_WRITE);
+        }
+        return page;
     }
 
     // see DbFile.java for javadocs
@@ -181,6 +274,7 @@ public class HeapFile implements DbFile {
        
         page = (HeapPage) Database.getBufferPool().getPage(tid, recordId.getPageId(), Permissions.READ_WRITE);
         page.deleteTuple(t);
+        freeSpace.update(page.getId().getPageNumber(), page.getNumEmptySlots());
 
         ArrayList<Page> res = new ArrayList<>();
         res.add(page);
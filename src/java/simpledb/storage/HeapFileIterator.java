@@ -18,6 +18,10 @@ public class HeapFileIterator extends AbstractDbFileIterator{
     private int pageCur = 0;
     private Iterator<Tuple> pageIterator;
     private Boolean isOpen;
+    // frames this scan recycles, so a long scan does not flush the pool
+    private ScanRing ring;
+    // reads the pages ahead of pageCur in the background
+    private ReadAhead readAhead;
 
     public HeapFileIterator(HeapFile heapFile, TransactionId tid) {
         this.hf = heapFile;
@@ -25,6 +29,8 @@ public class HeapFileIterator extends AbstractDbFileIterator{
         this.tableId = hf.getId();
         this.isOpen = false;
         pageIterator = null;
+        ring = null;
+        readAhead = null;
     }
 
     @Override
@@ -35,9 +41,12 @@ public class HeapFileIterator extends AbstractDbFileIterator{
         }
 
         this.isOpen = true;
+        ring = Database.getBufferPool().newScanRing(hf.numPages());
+        readAhead = new ReadAhead(Database.getBufferPool(), hf, ring);
 
+        readAhead.access(pageCur, hf.numPages());
         PageId pageId = new HeapPageId(tableId, pageCur);
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY, ring);
         pageIterator = page.iterator();
 
     }
@@ -46,10 +55,15 @@ public class HeapFileIterator extends AbstractDbFileIterator{
     public void rewind() throws DbException, TransactionAbortedException {
         // TODO Auto-generated method stub
         this.isOpen = true;
+        if (readAhead == null) {
+            ring = Database.getBufferPool().newScanRing(hf.numPages());
+            readAhead = new ReadAhead(Database.getBufferPool(), hf, ring);
+        }
 
         pageCur = 0;
+        readAhead.access(pageCur, hf.numPages());
         PageId pageId = new HeapPageId(tableId, pageCur);
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY, ring);
         pageIterator = page.iterator();
     }
 
@@ -65,11 +79,13 @@ public class HeapFileIterator extends AbstractDbFileIterator{
                 return pageIterator.next();
             } else{
                 pageCur += 1;
-                if (pageCur >= hf.numPages()) {
+                int numPages = hf.numPages();
+                if (pageCur >= numPages) {
                     return null;
                 }
+                readAhead.access(pageCur, numPages);
                 PageId pageId = new HeapPageId(tableId, pageCur);
-                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY, ring);
                 pageIterator = page.iterator();
                 if(pageIterator.hasNext()) 
                     return pageIterator.next();
@@ -87,5 +103,10 @@ public class HeapFileIterator extends AbstractDbFileIterator{
         super.close();
         this.isOpen = false;
         pageIterator = null;
+        ring = null;
+        if (readAhead != null) {
+            readAhead.cancel();
+            readAhead = null;
+        }
     }
 }
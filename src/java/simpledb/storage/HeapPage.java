@@ -8,6 +8,7 @@ import simpledb.transaction.TransactionId;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -22,13 +23,22 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte[] header;
+    /** tuples of the used slots; a slot left null here has not been asked
+        for yet, and its tuple is created over source when it is */
     final Tuple[] tuples;
     final int numSlots;
+    /** the bytes the page was read from */
+    private final ByteBuffer source;
+    /** true if source may be overwritten once the page is written back */
+    private final boolean view;
 
     private TransactionId lastDirty;
 
     byte[] oldData;
-    private final Byte oldDataLock= (byte) 0;
+    /** the buffer the page was read from, standing in for oldData until
+        the page is first modified */
+    private ByteBuffer oldSource;
+    private final Object oldDataLock = new Object();
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -42,32 +52,51 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * Tuples are decoded from data only when they are asked for, so the page
+     * keeps data, which must not be modified afterwards.
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data), false);
+    }
+
+    /**
+     * Create a HeapPage that reads its tuples straight out of buf, e.g. a
+     * slice of a memory-mapped HeapFile, without copying the page first.
+     * The format is the one described in {@link #HeapPage(HeapPageId, byte[])}.
+     * <p>
+     * buf also serves as the before image of the page until the page is
+     * first modified, so its contents must not change while the page is
+     * clean. Tuples handed out by the page read their fields from buf as
+     * well; a tuple that is deleted from the page decodes its remaining
+     * fields first.
+     *
+     * @param id the id of the page
+     * @param buf the bytes of the page, from position 0 to the page size
+     */
+    public HeapPage(HeapPageId id, ByteBuffer buf) throws IOException {
+        this(id, buf, true);
+    }
+
+    private HeapPage(HeapPageId id, ByteBuffer buf, boolean view) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
         for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
+            header[i] = buf.get(i);
         
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        this.source = buf;
+        this.view = view;
+        synchronized(oldDataLock)
+        {
+        oldSource = buf;
         }
-        dis.close();
-
-        setBeforeImage();
     }
 
     /** Retrieve the number of tuples on this page.
@@ -95,15 +124,23 @@ public class HeapPage implements Page {
                  
     }
     
+    public HeapPage withPageData(byte[] data) throws IOException {
+        return new HeapPage(pid, data);
+    }
+
     /** Return a view of this page before it was modified
         -- used by recovery */
     public HeapPage getBeforeImage(){
         try {
             byte[] oldDataRef = null;
+            ByteBuffer oldSourceRef = null;
             synchronized(oldDataLock)
             {
                 oldDataRef = oldData;
+                oldSourceRef = oldSource;
             }
+            if (oldSourceRef != null)
+                return new HeapPage(pid,oldSourceRef,view);
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
@@ -116,7 +153,25 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = getPageData();
+        oldSource = null;
+        }
+    }
+
+    /**
+     * Copies the before image out of the buffer this page was read from,
+     * before the page is modified and may be written back over it.
+     */
+    private void detachBeforeImage() {
+        if (!view) return;
+        synchronized(oldDataLock)
+        {
+            if (oldSource == null) return;
+            byte[] copy = new byte[BufferPool.getPageSize()];
+            for (int i = 0; i < copy.length; i++)
+                copy[i] = oldSource.get(i);
+            oldData = copy;
+            oldSource = null;
         }
     }
 
@@ -129,36 +184,16 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Returns the tuple in the given slot, which must be used. A tuple that
+     * was read from disk comes back backed by the page's bytes, so its
+     * fields are decoded only if someone looks at them.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
-
+    private Tuple slotTuple(int slotId) {
+        Tuple t = tuples[slotId];
+        if (t != null) return t;
+        t = new Tuple(td, source, header.length + slotId * td.getSize());
+        t.setRecordId(new RecordId(pid, slotId));
+        tuples[slotId] = t;
         return t;
     }
 
@@ -174,64 +209,56 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        byte[] data = new byte[BufferPool.getPageSize()];
+        writePageData(ByteBuffer.wrap(data));
+        return data;
+    }
+
+    /**
+     * Serializes this page into buf without allocating; see
+     * {@link Page#writePageData(ByteBuffer)}.
+     */
+    public void writePageData(ByteBuffer buf) {
+        buf.clear();
 
         // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
+        buf.put(header);
 
         // create the tuples
+        int tupleSize = td.getSize();
+        ByteBuffer raw = null;
         for (int i=0; i<tuples.length; i++) {
 
             // empty slot
             if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+                PageBuffers.putZeros(buf, tupleSize);
+                continue;
+            }
 
+            // non-empty slot still in its on-disk form
+            Tuple t = tuples[i];
+            if (t == null || t.isBackedBy(source)) {
+                int start = header.length + i * tupleSize;
+                if (source.hasArray()) {
+                    buf.put(source.array(), source.arrayOffset() + start, tupleSize);
+                } else {
+                    if (raw == null) raw = source.duplicate();
+                    raw.limit(start + tupleSize);
+                    raw.position(start);
+                    buf.put(raw);
                 }
                 continue;
             }
 
             // non-empty slot
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                t.getField(j).serialize(buf);
             }
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        PageBuffers.putZeros(buf, BufferPool.getPageSize() - buf.position());
+        buf.flip();
     }
 
     /**
@@ -263,6 +290,8 @@ public class HeapPage implements Page {
         if (!t.getRecordId().getPageId().equals(this.pid)  || !isSlotUsed(idx)) 
         throw new DbException("this tuple is not on this page, or tuple slot is already empty.");
 
+        detachBeforeImage();
+        if (view) t.materialize();
         markSlotUsed(idx, false);
         tuples[idx] = null;
     }
@@ -285,6 +314,7 @@ public class HeapPage implements Page {
             if (!isSlotUsed(i)) idx = i;
         }
 
+        detachBeforeImage();
         markSlotUsed(idx, true);
 
 
@@ -321,17 +351,13 @@ public class HeapPage implements Page {
     public int getNumEmptySlots() {
         // some code goes here
         
-        int ans = 0;
-        
+        // the header's trailing bits past numSlots are never set, so they
+        // must not be counted as empty slots
+        int used = 0;
         for (byte b : header) {
-            int isUsed = 0;
-            while (b != 0){
-                b &= b-1;
-                isUsed++;
-            }
-            ans += 8 - isUsed;
+            used += Integer.bitCount(b & 0xff);
         }
-        
+        int ans = numSlots - used;
 
         return ans;
     }
@@ -366,14 +392,25 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        ArrayList<Tuple> tuplesList = new ArrayList<>();
-        int len = getNumTuples();
-		for( int i=0;i<len;i++ ){
-            if (isSlotUsed(i)) tuplesList.add(tuples[i]);
-        }
+        return new Iterator<Tuple>() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                while (from < numSlots && !isSlotUsed(from)) from++;
+                return from;
+            }
 
-        return tuplesList.iterator();
+            public boolean hasNext() {
+                return next < numSlots;
+            }
+
+            public Tuple next() {
+                if (next >= numSlots) throw new NoSuchElementException();
+                Tuple t = slotTuple(next);
+                next = advance(next + 1);
+                return t;
+            }
+        };
     }
 
 }
-
@@ -1,165 +1,324 @@
 package simpledb.storage;
 
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 import simpledb.common.Permissions;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
+/**
+ * LockManager is the lock table behind the BufferPool's page locks.
+ * <p>
+ * Every locked page has an entry with the locks granted on it and a FIFO
+ * queue of the requests waiting for it. A request is granted at once when
+ * nobody is queued ahead of it and its mode is compatible with every lock
+ * other transactions hold on the page (see {@link #COMPATIBLE}); otherwise
+ * the requesting thread queues up and parks without using any CPU. Whenever
+ * a lock is released, the requests at the head of the queue that have
+ * become compatible are granted, in order, and their threads unparked. A
+ * lock upgrade waits ahead of the other requests, since it only waits for
+ * the other readers to leave.
+ * <p>
+ * Each entry is guarded by its own monitor, so requests for different pages
+ * never wait for each other. Pages with waiting requests also keep their
+ * edges up to date in a {@link WaitsForGraph}. A cycle can only appear
+ * when an edge is added, so each time a page's edges grow the graph is
+ * searched for a cycle through the transactions that gained them. For every
+ * cycle found, the {@link DeadlockVictimPolicy} picks a transaction to
+ * abort, and that transaction's waiting requests fail at once with a
+ * TransactionAbortedException. There is no lock timeout: a request that is
+ * not part of a deadlock waits as long as it has to.
+ *
+ * @Threadsafe
+ */
 public class LockManager {
-    private ConcurrentMap<PageId, ConcurrentMap<TransactionId, PageLock>> pageLocks;
+
+    /**
+     * COMPATIBLE[held][requested] is true if a transaction may be granted the
+     * requested mode while another transaction holds the held mode, indexed
+     * by {@link Permissions#ordinal()}.
+     */
+    private static final boolean[][] COMPATIBLE = {
+        /* READ_ONLY held  */ { true,  false },
+        /* READ_WRITE held */ { false, false },
+    };
+
+    /** the locks granted on a page and the requests waiting for it */
+    private static class LockEntry {
+        final Map<TransactionId, PageLock> granted = new HashMap<>(4);
+        final ArrayDeque<PageLock> waiting = new ArrayDeque<>();
+        /** true while the page has edges in the waits-for graph */
+        boolean inGraph;
+        /** set once the entry has left the table; it must not be used again */
+        boolean removed;
+
+        boolean idle() {
+            return granted.isEmpty() && waiting.isEmpty();
+        }
+    }
+
+    private final ConcurrentMap<PageId, LockEntry> pageLocks;
+
+    /** the pages each transaction holds a lock on */
+    private final ConcurrentMap<TransactionId, Set<PageId>> locksOf = new ConcurrentHashMap<>();
+
+    /** guarded by itself */
+    private final WaitsForGraph graph = new WaitsForGraph();
+    /** transactions chosen to break a deadlock; they get no more locks */
+    private final Set<TransactionId> victims = ConcurrentHashMap.newKeySet();
+    private volatile DeadlockVictimPolicy victimPolicy = DeadlockVictimPolicy.youngest();
+
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder deadlocks = new LongAdder();
 
 
     public LockManager() {
         pageLocks = new ConcurrentHashMap<>();
     }
 
-    public synchronized boolean requireLock(PageId pid, TransactionId tid, Permissions requireType) throws TransactionAbortedException, InterruptedException {
-        final String thread = Thread.currentThread().getName();
-        
-        if (pageLocks.size() == 0 || pageLocks.get(pid) == null){
-            /*switch(requireType){
-                case READ_ONLY:
-                return LockShared(pid, tid);
-                case  READ_WRITE:
-                return LockExclusive(pid, tid);
-            }*/
-            //if (pageLocks.size() == 0)
-            //System.out.println("[accept] " + thread + ": the LockManger have not a lock ,  the curPage" + pid + "," + tid + " require " + requireType );
-            //else if (pageLocks.get(pid) == null)
-            //System.out.println("[accept] " + thread + ": the curPage " + pid + " have not a lock" + tid + " require " + requireType);
-
-            PageLock pageLock = new PageLock(tid, requireType);
-            ConcurrentHashMap<TransactionId, PageLock> curPageLock = new ConcurrentHashMap<>();
-            curPageLock.put(tid, pageLock);
-            pageLocks.put(pid, curPageLock);
-            return true;
+    /** Sets the policy that picks the transaction to abort in a deadlock. */
+    public void setVictimPolicy(DeadlockVictimPolicy policy) {
+        this.victimPolicy = policy;
+    }
+
+    public DeadlockVictimPolicy getVictimPolicy() {
+        return victimPolicy;
+    }
+
+    /** Returns the number of lock requests that could not be granted at once. */
+    public long getWaitCount() {
+        return waits.sum();
+    }
+
+    /** Returns the number of deadlocks found, i.e. the number of victims aborted. */
+    public long getDeadlockCount() {
+        return deadlocks.sum();
+    }
+
+    private static boolean covers(Permissions held, Permissions requested) {
+        return held == Permissions.READ_WRITE || requested == Permissions.READ_ONLY;
+    }
+
+    private static boolean conflicts(PageLock a, PageLock b) {
+        return !a.getTid().equals(b.getTid())
+                && !COMPATIBLE[a.getType().ordinal()][b.getType().ordinal()];
+    }
+
+    /** true if tid could hold mode on the page alongside the current holders */
+    private static boolean compatible(LockEntry entry, PageLock request) {
+        for (PageLock lock : entry.granted.values()) {
+            if (conflicts(lock, request)) return false;
+        }
+        return true;
+    }
+
+    private void grant(PageId pid, LockEntry entry, PageLock request) {
+        if (entry.granted.put(request.getTid(), request) == null) {
+            locksOf.computeIfAbsent(request.getTid(), k -> ConcurrentHashMap.newKeySet()).add(pid);
+        }
+    }
+
+    private int locksHeld(TransactionId tid) {
+        Set<PageId> pages = locksOf.get(tid);
+        return pages == null ? 0 : pages.size();
+    }
+
+    /**
+     * Grants the requests at the head of the queue, in order, until one of
+     * them has to keep waiting, and unparks their threads.
+     */
+    private void grantWaiting(PageId pid, LockEntry entry) {
+        while (!entry.waiting.isEmpty()) {
+            PageLock next = entry.waiting.peekFirst();
+            if (!compatible(entry, next)) break;
+            entry.waiting.pollFirst();
+            grant(pid, entry, next);
+            LockSupport.unpark(next.getThread());
         }
+    }
 
+    private void removeIfIdle(PageId pid, LockEntry entry) {
+        if (entry.idle()) {
+            entry.removed = true;
+            pageLocks.remove(pid, entry);
+        }
+    }
 
+    /**
+     * Brings the page's edges in the waits-for graph up to date, and aborts
+     * a victim for every cycle the new edges close. Call with the entry's
+     * monitor held, after every change to the entry.
+     */
+    private void updateGraph(PageId pid, LockEntry entry) {
+        if (entry.waiting.isEmpty() && !entry.inGraph) return;
 
-        ConcurrentMap<TransactionId, PageLock> curPageLock = pageLocks.get(pid);
+        // a request waits for the conflicting holders, and for everything
+        // the requests queued ahead of it wait for, since they go first
+        Map<PageLock, Set<TransactionId>> edges = new LinkedHashMap<>();
+        Set<TransactionId> ahead = new HashSet<>();
+        List<PageLock> queued = new ArrayList<>(entry.waiting);
+        for (int i = 0; i < queued.size(); i++) {
+            PageLock request = queued.get(i);
+            Set<TransactionId> targets = new HashSet<>(ahead);
+            for (PageLock lock : entry.granted.values()) {
+                if (conflicts(lock, request)) targets.add(lock.getTid());
+            }
+            for (int j = 0; j < i; j++) {
+                if (conflicts(queued.get(j), request)) targets.add(queued.get(j).getTid());
+            }
+            targets.remove(request.getTid());
+            edges.put(request, targets);
+            ahead.addAll(targets);
+        }
+        entry.inGraph = !edges.isEmpty();
 
-        PageLock pageLock = curPageLock.get(tid);
-        
-        if (pageLock == null){
-            if (curPageLock.size() > 1){
-                switch(requireType){
-                    case READ_ONLY:
-                        //System.out.println("[accept] " + thread + ": the " + pid + " have many read lock，transaction" + tid + " require share lock");
-                        curPageLock.put(tid, new PageLock(tid, requireType));
-                        return true;
-                    case READ_WRITE:
-                       //System.out.println("[wait] " + thread + ": the " + pid + " have many read lock，transaction" + tid + " require READ_WRITE lock");
-                       wait(20);
-                       return false;
-                }
-            }else if(curPageLock.size() == 1){
-                PageLock otherTidLock = null;
-                for (PageLock i : curPageLock.values()) otherTidLock = i;
-                switch(otherTidLock.getType()){
-                    case READ_ONLY:
-                        if (requireType == Permissions.READ_ONLY){
-                            //System.out.println("[accept] " + thread + ": the " + pid + " have a read lock by other transaction，transaction" + tid + " require share lock");
-                            curPageLock.put(tid, new PageLock(tid, requireType));
-                            return true;
-                        }else{
-                            //System.out.println("[wait] " + thread + ": the " + pid + " have a read lock by " + otherTidLock.getTid() + " curTransaction" + tid + " require a write lock");
-                            wait(10);
-                            return false;
-                        }
-                    case READ_WRITE:
-                        //System.out.println("[wait] " + thread + ": the " + pid + " have a READ_WRITE lock by " + otherTidLock.getTid() + " curTransaction" + tid + " require " + requireType);
-                        wait(20);
-                        return false;
+        synchronized (graph) {
+            for (TransactionId tid : graph.setEdges(pid, edges)) {
+                if (victims.contains(tid)) continue;
+                List<TransactionId> cycle;
+                while ((cycle = graph.findCycle(tid, victims)) != null) {
+                    TransactionId victim = victimPolicy.chooseVictim(cycle, this::locksHeld);
+                    victims.add(victim);
+                    deadlocks.increment();
+                    for (PageLock request : graph.requestsOf(victim)) {
+                        LockSupport.unpark(request.getThread());
+                    }
+                    if (victim.equals(tid)) break;
                 }
             }
+        }
+    }
 
+    /**
+     * Acquires a lock on a page for a transaction, waiting for conflicting
+     * locks to be released if necessary. Returns at once if the transaction
+     * already holds the lock, or a stronger one.
+     *
+     * @throws TransactionAbortedException if the transaction was chosen to
+     *   break a deadlock, or if the thread is interrupted while waiting
+     */
+    public void acquireLock(PageId pid, TransactionId tid, Permissions requireType)
+            throws TransactionAbortedException {
+        LockEntry entry;
+        PageLock request;
+        while (true) {
+            entry = pageLocks.computeIfAbsent(pid, k -> new LockEntry());
+            synchronized (entry) {
+                if (entry.removed) continue;
+                if (victims.contains(tid)) throw new TransactionAbortedException();
 
-        }else if (pageLock != null){
-            switch(requireType){
-                case READ_ONLY:
-                    //System.out.println("[accept] " +  thread + ": the " + pid + " have a lock by " + tid + " require share lock");
-                    return true;
-                case READ_WRITE:
-                    if (pageLock.getType() == Permissions.READ_ONLY){
-                        if (curPageLock.size() == 1){
-                            //System.out.println("[lockUpgrade] " + thread + ": the " + pid + " have a read lock by " + tid + " require write lock");
-                            //return LockUpgrade(pid, tid);
-                            pageLock = new PageLock(tid, requireType);
-                            curPageLock.put(tid, pageLock);
-                            return true;
-                        }else{
-                            
-                            TransactionId waitTid = tid;
-                            for (TransactionId tt : curPageLock.keySet()){
-                                if (tt.getId() < waitTid.getId()){
-                                    waitTid = tt;
-                                }
-                            }
-                            if ( waitTid.equals(tid)) {
-                                //System.out.println("[[wait]/throw] " + thread + ": the " + pid + " have many read locks " + tid + " require write lock"); 
-                                wait(10);
-                                return false;
-                            }
-                            else
-                            System.out.println("[wait/[throw]] " + thread + ": the " + pid + " have many read locks " + tid + " require write lock"); 
-                            throw new TransactionAbortedException();
-                        }     
-                    }else if (pageLock.getType() == Permissions.READ_WRITE) {
-                        //System.out.println("[accept] " + thread + ": the " + pid + " have a write lock by " + tid + " require write lock");
-                        return true;
+                PageLock held = entry.granted.get(tid);
+                if (held != null && covers(held.getType(), requireType)) return;
+
+                request = new PageLock(tid, requireType);
+                if (held != null) {
+                    // an upgrade only waits for the other readers to leave,
+                    // so it goes ahead of everybody else
+                    if (compatible(entry, request)) {
+                        grant(pid, entry, request);
+                        return;
+                    }
+                    entry.waiting.addFirst(request);
+                } else {
+                    if (entry.waiting.isEmpty() && compatible(entry, request)) {
+                        grant(pid, entry, request);
+                        return;
                     }
+                    entry.waiting.addLast(request);
+                }
+                updateGraph(pid, entry);
+                break;
             }
         }
 
-        //System.out.println("Error:====================");
-        //System.out.println(thread + ": the " + tid + " have a " + pageLock.getType() + " lock " +" require a " +  requireType + " lock");
-        //System.out.println("====================");
-        return false;
+        waits.increment();
+        boolean done = false;
+        try {
+            while (true) {
+                synchronized (entry) {
+                    if (entry.granted.get(tid) == request) {
+                        done = true;
+                        return;
+                    }
+                    if (victims.contains(tid)) throw new TransactionAbortedException();
+                }
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    throw new TransactionAbortedException();
+                }
+            }
+        } finally {
+            if (!done) {
+                synchronized (entry) {
+                    if (entry.granted.get(tid) != request) {
+                        // gave up; whoever queued behind this request may go now
+                        entry.waiting.remove(request);
+                        grantWaiting(pid, entry);
+                        updateGraph(pid, entry);
+                        removeIfIdle(pid, entry);
+                    }
+                }
+            }
+        }
     }
 
-    
+    public boolean releaseLock(TransactionId tid, PageId pageId) {
+        // the transaction's (possibly empty) set stays until it completes,
+        // so that its other threads never add to a set that was dropped
+        Set<PageId> pages = locksOf.get(tid);
+        if (pages != null) pages.remove(pageId);
+        return release(tid, pageId);
+    }
 
-    public synchronized boolean releaseLock(TransactionId tid, PageId pageId) {
-        // 判断是否持有锁
-        if (isHoldLock(tid, pageId)) {
-            ConcurrentMap<TransactionId, PageLock> locks = pageLocks.get(pageId);
-            locks.remove(tid);
-            if (locks.size() == 0) {
-                pageLocks.remove(pageId);
-            }
+    /**
+     * Drops tid's lock on a page from the page's entry and grants whatever
+     * was waiting for it; the caller keeps locksOf up to date.
+     */
+    private boolean release(TransactionId tid, PageId pageId) {
+        LockEntry entry = pageLocks.get(pageId);
+        if (entry == null) return false;
+        synchronized (entry) {
+            if (entry.granted.remove(tid) == null) return false;
+            grantWaiting(pageId, entry);
+            updateGraph(pageId, entry);
+            removeIfIdle(pageId, entry);
             return true;
         }
-        return false;
     }
 
-    public synchronized boolean isHoldLock(TransactionId tid, PageId pageId) {
-        ConcurrentMap<TransactionId, PageLock> locks = pageLocks.get(pageId);
-        if (locks == null) {
-            return false;
-        }
-        PageLock pageLock = locks.get(tid);
-        if (pageLock == null) {
-            return false;
+    public boolean isHoldLock(TransactionId tid, PageId pageId) {
+        LockEntry entry = pageLocks.get(pageId);
+        if (entry == null) return false;
+        synchronized (entry) {
+            return entry.granted.containsKey(tid);
         }
-        return true;
     }
 
-    public synchronized void completeTranslation(TransactionId tid) {
-        // 遍历所有的页，如果对应事务持有锁就会释放
-        for (PageId pageId : pageLocks.keySet()) {
-            //System.out.println(tid + " releaseLock in " + pageId);
-            releaseLock(tid, pageId);
+    /**
+     * Releases every lock tid holds, waking up the requests waiting for
+     * them. Only the pages tid holds locks on are visited.
+     */
+    public void completeTranslation(TransactionId tid) {
+        Set<PageId> pages = locksOf.remove(tid);
+        if (pages != null) {
+            for (PageId pid : pages) {
+                release(tid, pid);
+            }
         }
-    }
-    
-    //当前页面是否有锁
-    public synchronized ConcurrentMap<TransactionId, PageLock> isHoldLock(PageId pageId) {
-        return pageLocks.get(pageId);
+        victims.remove(tid);
     }
 
 }
@@ -6,8 +6,16 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -21,8 +29,8 @@ two-phase locking discipline are followed.  <p>
 Many of the methods here are synchronized (to prevent concurrent log
 writes from happening); many of the methods in BufferPool are also
 synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
+log records (on page flushed) and the log file discards BufferPool
+pages (on rollback and recovery.)  This can lead to deadlock.  For
 that reason, any LogFile operation that needs to access the BufferPool
 must not be declared synchronized and must begin with a block like:
 
@@ -43,11 +51,15 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file itself holds a single long integer: the offset of
+the last written checkpoint, or -1 if there are no checkpoints
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log records are stored in segment files next to the log file,
+named after it and the offset of their first byte (see LogSegments.)
+Offsets count from the start of the log, not of a segment, and never
+change: logTruncate() deletes old segments instead of moving the
+records that survive.  Log records are variable length, and may span
+two segments.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
@@ -60,23 +72,37 @@ CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li>UPDATE RECORDS consist of a single entry, the change the update
+made to the page: the byte ranges in which its before and after images
+differ, with the before and after bytes of each.  The entry is a
+serialized PageDelta, written with PageDelta.write() and read with
+PageDelta.read().  See LogFile.print() for an example.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed
+by the dirty-page table.  The format of the record is an integer count
+of the number of transactions, as well as a long integer transaction id
+and a long integer first record offset for each active transaction;
+then an integer count of dirty pages, and for each a page id (see
+PageDelta.writePageId()) and the long integer offset of its first
+update that may not be durable in the page's file, its recLSN.
+Checkpoints are fuzzy: they write no pages, and recovery redoes
+updates from the smallest recLSN in the table.
 
 </ul>
+
+<p> Records are not written to the log one field at a time.  They are
+serialized into a direct log buffer, and the buffer is written to the
+segments in one piece when it fills up, when the log is forced, or
+before the log is read.  Every record has a log sequence number (LSN):
+its offset in the log.  force(long) waits until the record with a given
+LSN is on disk, and returns at once if it already is.
 */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private RandomAccessFile raf; // holds the checkpoint pointer
+    private final LogSegments segments;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -89,12 +115,48 @@ public class LogFile {
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    /** size of the buffer records are collected in before they are written */
+    static final int LOG_BUFFER_SIZE = 64 * 1024;
+    /** size at which a new segment file is started, unless the constructor
+        is given another */
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /** records not yet written to the segments, from fileEnd to currentOffset */
+    private final ByteBuffer logBuffer = ByteBuffer.allocateDirect(LOG_BUFFER_SIZE); //protected by this
+    private final RecordBytes recordBytes = new RecordBytes(); //protected by this
+    long fileEnd; // log offset the log buffer starts at //protected by this
+    /** held while a checkpoint is taken, so that checkpoint pointers are
+        written in order; taken before this */
+    private final Object checkpointLock = new Object();
+    /** every record whose LSN is below this is on disk */
+    private final AtomicLong durableLsn = new AtomicLong();
+
     long currentOffset = -1;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
 
+    /** non-null while forces are done in groups; set under this */
+    private volatile GroupCommit groupCommit;
+
+    /** the dirty-page table: the pages with logged updates that may not
+        be durable in their files yet //protected by this */
+    private final Map<PageId, DirtyPage> dirtyPages = new HashMap<>();
+    /** non-null while a background thread syncs written pages; set under this */
+    private volatile ScheduledExecutorService pageWriter;
+
+    private static class DirtyPage {
+        /** LSNs of the updates not known to be durable, oldest (the
+            page's recLSN) first */
+        final ArrayDeque<Long> lsns = new ArrayDeque<>();
+        /** LSN of the latest update written to the file, or -1 */
+        long written = -1;
+        /** the file the page was written to */
+        DbFile file;
+    }
+    private final LongAdder forces = new LongAdder();
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -107,8 +169,21 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor.  Like LogFile(File), but starts a new segment file
+        whenever the current one holds segmentSize bytes.
+
+        @param f The log file's name
+        @param segmentSize The size of a segment file
+    */
+    public LogFile(File f, long segmentSize) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, segmentSize);
+        fileEnd = currentOffset = segments.end();
+        durableLsn.set(currentOffset);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -129,12 +204,92 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            resetLog();
+        }
+    }
+
+    /** Throw out the contents of the log. */
+    private void resetLog() throws IOException {
+        segments.truncate(segments.start());
+        logBuffer.clear();
+        fileEnd = currentOffset = segments.end();
+        writeCheckpointPointer(NO_CHECKPOINT_ID);
+        durableLsn.set(currentOffset);
+    }
+
+    /** A ByteArrayOutputStream that can copy its bytes into a ByteBuffer
+        without making a copy of its own first. */
+    private static class RecordBytes extends ByteArrayOutputStream {
+        final DataOutputStream out = new DataOutputStream(this);
+
+        void copyTo(ByteBuffer dst) {
+            dst.put(buf, 0, count);
+        }
+    }
+
+    /** Start a record of the given size at the end of the log: returns
+        the buffer to put its fields in, writing out the records already
+        in the log buffer if there is not enough room left for it.  Pass
+        the buffer to endRecord() once the record is complete. */
+    private ByteBuffer startRecord(int size) throws IOException {
+        if (logBuffer.remaining() < size) {
+            writeBuffer();
+            if (logBuffer.remaining() < size) {
+                // too big to buffer; endRecord() writes it by itself
+                return ByteBuffer.allocate(size);
+            }
+        }
+        return logBuffer;
+    }
+
+    /** Finish the record started with startRecord().
+        @return The LSN of the record */
+    private long endRecord(ByteBuffer record) throws IOException {
+        long start = currentOffset;
+        if (record != logBuffer) {
+            record.flip();
+            segments.write(record);
+            fileEnd = segments.end();
         }
+        currentOffset = fileEnd + logBuffer.position();
+        return start;
+    }
+
+    /** Append a record that has no fields besides its type, its tid and
+        its start offset.
+        @return The LSN of the record */
+    private long appendRecord(int type, long tid) throws IOException {
+        ByteBuffer record = startRecord(INT_SIZE + LONG_SIZE + LONG_SIZE);
+        record.putInt(type);
+        record.putLong(tid);
+        record.putLong(currentOffset);
+        return endRecord(record);
+    }
+
+    /** Write the records in the log buffer to the segments. */
+    private void writeBuffer() throws IOException {
+        logBuffer.flip();
+        segments.write(logBuffer);
+        fileEnd = segments.end();
+        logBuffer.clear();
+    }
+
+    /** Overwrite the checkpoint offset in the log file. */
+    private synchronized void writeCheckpointPointer(long offset) throws IOException {
+        raf.seek(0);
+        raf.writeLong(offset);
+    }
+
+    /** Read the checkpoint offset from the log file. */
+    private synchronized long readCheckpointPointer() throws IOException {
+        if (raf.length() < LONG_SIZE) return NO_CHECKPOINT_ID;
+        raf.seek(0);
+        return raf.readLong();
+    }
+
+    /** Return the segment files the log is stored in, oldest first. */
+    public List<File> getSegmentFiles() {
+        return segments.files();
     }
 
     public synchronized int getTotalRecords() {
@@ -160,10 +315,7 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                appendRecord(ABORT_RECORD, tid.getId());
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -171,128 +323,246 @@ public class LogFile {
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  In group commit mode the record is
+        forced together with those of other committers, by the log-writer
+        thread, and this call waits for that force.
 
         @param tid The committing transaction.
+        @see #setGroupCommit
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            lsn = appendRecord(COMMIT_RECORD, tid.getId());
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+        force(lsn);
+    }
+
+    /** Switch to group commit: threads that need the log forced, such
+        as committers, no longer force it themselves, but wait for a
+        log-writer thread that forces it once for every batch of them.
+        Replaces any earlier group commit settings.
+
+        @param maxDelay How long the writer waits for more threads to join
+        a batch once the first one is pending
+        @param unit The unit of maxDelay
+        @param maxBatchSize The number of pending threads that are served
+        without waiting for the delay to run out
+        @see #force(long)
+    */
+    public void setGroupCommit(long maxDelay, TimeUnit unit, int maxBatchSize) {
+        GroupCommit old;
+        synchronized (this) {
+            old = groupCommit;
+            groupCommit = new GroupCommit(this, maxDelay, unit, maxBatchSize);
+            // threads already waiting on the old writer are served by it
+            // before it stops
+        }
+        if (old != null) old.stop();
+    }
+
+    /** Go back to forcing the log in the thread that needs it forced. */
+    public void disableGroupCommit() {
+        GroupCommit old;
+        synchronized (this) {
+            old = groupCommit;
+            groupCommit = null;
+        }
+        if (old != null) old.stop();
+    }
+
+    /** Returns the number of times the log has been forced to disk. */
+    public long getForceCount() {
+        return forces.sum();
+    }
+
+    /** Returns the LSN below which every record is on disk. */
+    public long getDurableLsn() {
+        return durableLsn.get();
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Returns the LSN the next record will get. */
+    public synchronized long getEndLsn() {
+        return currentOffset;
+    }
+
+    /** Write out the log buffer and force the segments.  The log monitor is
+        only held while the buffer is written, not during the force
+        itself, so that other threads can keep appending meanwhile.
+
+        @return The LSN below which every record is now durable
+    */
+    long forceLog() throws IOException {
+        long end;
+        GroupCommit group;
+        synchronized (this) {
+            writeBuffer();
+            end = currentOffset;
+            group = groupCommit;
+        }
+        segments.force();
+        forces.increment();
+        durableLsn.accumulateAndGet(end, Math::max);
+        if (group != null) group.forced(end);
+        return end;
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  Only the bytes
+        that differ between the two images are logged.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
 
+        @return The LSN of the record
         @see Page#getBeforeImage
+        @see PageDelta
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           page delta (see PageDelta.write)
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        long lsn = appendUpdate(tid.getId(), before, after);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    /** Append an UPDATE record; see logWrite().
+        @return The LSN of the record */
+    private long appendUpdate(long tid, Page before, Page after) throws IOException {
+        PageDelta delta = PageDelta.diff(before, after);
+        recordBytes.reset();
+        delta.write(recordBytes.out);
+
+        ByteBuffer record = startRecord(INT_SIZE + LONG_SIZE + recordBytes.size() + LONG_SIZE);
+        record.putInt(UPDATE_RECORD);
+        record.putLong(tid);
+        recordBytes.copyTo(record);
+        record.putLong(currentOffset);
+        long lsn = endRecord(record);
+        dirtyPages.computeIfAbsent(delta.getPageId(), k -> new DirtyPage()).lsns.add(lsn);
+        return lsn;
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    /** Note that a page has been written to its file, with the update
+        logged at the given LSN and all earlier ones.  The page stays in
+        the dirty-page table until syncPages() makes the write durable.
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        @param pid The page written
+        @param lsn The LSN of the page's latest update, as returned by
+        logWrite()
+    */
+    public synchronized void pageWritten(PageId pid, long lsn) {
+        DirtyPage d = dirtyPages.get(pid);
+        if (d == null || lsn <= d.written) return;
+        d.written = lsn;
+        if (d.file == null) d.file = databaseFile(pid);
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
+    /** Return the dirty-page table: the recLSN of every page with logged
+        updates that may not be durable in its file yet. */
+    public synchronized Map<PageId, Long> getDirtyPages() {
+        Map<PageId, Long> recLsns = new HashMap<>();
+        for (Map.Entry<PageId, DirtyPage> e : dirtyPages.entrySet()) {
+            recLsns.put(e.getKey(), e.getValue().lsns.peekFirst());
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        return recLsns;
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    /** Make the page writes noted so far durable, by syncing the files
+        they went to, and drop the pages from the dirty-page table unless
+        they were updated again since.  Does not block writers of the
+        log or the buffer pool while the files are synced.
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
+        @return The number of pages dropped from the dirty-page table
+    */
+    public int syncPages() throws IOException {
+        Map<PageId, Long> written = new HashMap<>();
+        Set<DbFile> files = new HashSet<>();
+        synchronized (this) {
+            for (Map.Entry<PageId, DirtyPage> e : dirtyPages.entrySet()) {
+                DirtyPage d = e.getValue();
+                if (d.written < 0) continue;
+                written.put(e.getKey(), d.written);
+                if (d.file != null) files.add(d.file);
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+        }
+        if (written.isEmpty()) return 0;
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+        for (DbFile file : files) {
+            file.sync();
+        }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+        int clean = 0;
+        synchronized (this) {
+            for (Map.Entry<PageId, Long> e : written.entrySet()) {
+                DirtyPage d = dirtyPages.get(e.getKey());
+                if (d == null) continue;
+                while (!d.lsns.isEmpty() && d.lsns.peekFirst() <= e.getValue()) {
+                    d.lsns.removeFirst();
+                }
+                if (d.lsns.isEmpty()) {
+                    dirtyPages.remove(e.getKey());
+                    clean++;
+                }
+            }
+        }
+        return clean;
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    /** Start a background page writer: a thread that calls syncPages()
+        every period, so that the dirty-page table stays small and
+        checkpoints do not have to sync pages themselves.  Replaces any
+        earlier page writer.
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        @param period Time between the end of one sync and the next
+    */
+    public synchronized void setPageWriter(long period, TimeUnit unit) {
+        disablePageWriter();
+        ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "simpledb-page-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        writer.scheduleWithFixedDelay(() -> {
+            try {
+                syncPages();
+            } catch (IOException e) {
+                // the pages stay in the table; try again next time
+                e.printStackTrace();
+            }
+        }, period, period, unit);
+        pageWriter = writer;
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
+    /** Stop the background page writer, if any.  From now on each
+        checkpoint syncs the written pages first. */
+    public synchronized void disablePageWriter() {
+        if (pageWriter != null) {
+            pageWriter.shutdown();
+            pageWriter = null;
         }
-        return newPage;
-
     }
 
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
-
+        @return The LSN of the record
     */
-    public synchronized  void logXactionBegin(TransactionId tid)
+    public synchronized  long logXactionBegin(TransactionId tid)
         throws IOException {
         Debug.log("BEGIN");
         if(tidToFirstLogRecord.get(tid.getId()) != null){
@@ -300,150 +570,102 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        long lsn = appendRecord(BEGIN_RECORD, tid.getId());
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The
+        checkpoint is fuzzy: it records the active transactions and the
+        dirty-page table as they are, without writing any pages, so
+        transactions keep running while it is taken.  Without a page
+        writer, the pages already written are synced first, outside the
+        log's monitor.
+
+        @see #setPageWriter
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
+        synchronized (checkpointLock) {
+            if (pageWriter == null) syncPages();
+            long startCpOffset;
             synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+                //Debug.log("CHECKPOINT, offset = " + currentOffset);
                 preAppend();
-                long startCpOffset, endCpOffset;
                 Set<Long> keys = tidToFirstLogRecord.keySet();
                 Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
 
+                recordBytes.reset();
+                DataOutputStream out = recordBytes.out;
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
+                out.writeInt(keys.size());
                 while (els.hasNext()) {
                     Long key = els.next();
                     Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
+                    out.writeLong(key);
                     //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                    out.writeLong(tidToFirstLogRecord.get(key));
+                }
+                //and the dirty-page table
+                out.writeInt(dirtyPages.size());
+                for (Map.Entry<PageId, DirtyPage> e : dirtyPages.entrySet()) {
+                    PageDelta.writePageId(out, e.getKey());
+                    out.writeLong(e.getValue().lsns.peekFirst());
                 }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+                startCpOffset = currentOffset;
+                ByteBuffer record = startRecord(INT_SIZE + LONG_SIZE + recordBytes.size() + LONG_SIZE);
+                record.putInt(CHECKPOINT_RECORD);
+                record.putLong(-1); //no tid , but leave space for convenience
+                recordBytes.copyTo(record);
+                record.putLong(startCpOffset);
+                endRecord(record);
             }
-        }
 
-        logTruncate();
+            //once the CP is on disk, make sure the CP location in the log
+            // file is updated; the old checkpoint stays valid until then
+            force(startCpOffset);
+            writeCheckpointPointer(startCpOffset);
+            raf.getChannel().force(true);
+            //Debug.log("CP OFFSET = " + currentOffset);
+
+            logTruncate();
+        }
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
+        consumption: delete the segments that hold only records from
+        before the last checkpoint that neither an active transaction nor
+        redo of a dirty page needs.  The records that stay are not
+        touched, and appends go on while the segments are deleted. */
+    public void logTruncate() throws IOException {
+        long minLogRecord;
+        synchronized (this) {
+            preAppend();
+            long cpLoc = readCheckpointPointer();
+            if (cpLoc == NO_CHECKPOINT_ID) return;
+
+            writeBuffer();
+            LogSegments.Reader reader = segments.reader(cpLoc);
+            LogRecord cp = readRecord(reader, new DataInputStream(reader));
+            if (cp == null || cp.type != CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
 
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+            minLogRecord = cpLoc;
+            for (long firstLogRecord : cp.active.values()) {
+                minLogRecord = Math.min(minLogRecord, firstLogRecord);
             }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+            // redo may need every update from the oldest recLSN on
+            for (long recLsn : cp.dirty.values()) {
+                minLogRecord = Math.min(minLogRecord, recLsn);
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        // we can truncate everything before minLogRecord
+        int dropped = segments.dropBefore(minLogRecord);
+        Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord + ", " + dropped + " SEGMENTS DELETED");
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -460,18 +682,245 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null) {
+                    throw new NoSuchElementException("transaction " + tid.getId() + " has no BEGIN record");
+                }
+                List<LogRecord> updates = new ArrayList<>();
+                for (LogRecord r : readRecords(first)) {
+                    if (r.type == UPDATE_RECORD && r.tid == tid.getId()) {
+                        updates.add(r);
+                    }
+                }
+                Debug.log("ROLLBACK " + tid.getId() + ": " + updates.size() + " updates");
+                undo(updates);
+            }
+        }
+    }
+
+    /** A record read back from the log by readRecords(). */
+    private static class LogRecord {
+        final long offset;
+        final int type;
+        final long tid;
+        /** the file offset just past the record */
+        long end;
+        /** the change made, for UPDATE records */
+        PageDelta delta;
+        /** the first record of each active transaction, for CHECKPOINT records */
+        Map<Long, Long> active;
+        /** the recLSN offset of each dirty page, for CHECKPOINT records */
+        Map<PageId, Long> dirty;
+
+        LogRecord(long offset, int type, long tid) {
+            this.offset = offset;
+            this.type = type;
+            this.tid = tid;
+        }
+    }
+
+    /** Read the records from the given log offset to the end of the
+        log.  Stops early at a record that was only partly written, as
+        the last one may be after a crash. */
+    private List<LogRecord> readRecords(long from) throws IOException {
+        writeBuffer();
+        List<LogRecord> records = new ArrayList<>();
+        LogSegments.Reader reader = segments.reader(from);
+        DataInputStream in = new DataInputStream(reader);
+        LogRecord r;
+        while ((r = readRecord(reader, in)) != null) {
+            records.add(r);
+        }
+        return records;
+    }
+
+    /** Read the record at the reader's position.
+        @return The record, or null at the end of the log or at a record
+        that was only partly written */
+    private static LogRecord readRecord(LogSegments.Reader reader, DataInputStream in) throws IOException {
+        try {
+            LogRecord r = new LogRecord(reader.position(), in.readInt(), in.readLong());
+            switch (r.type) {
+            case UPDATE_RECORD:
+                r.delta = PageDelta.read(in);
+                break;
+            case CHECKPOINT_RECORD:
+                int numXactions = in.readInt();
+                r.active = new HashMap<>();
+                while (numXactions-- > 0) {
+                    long xid = in.readLong();
+                    r.active.put(xid, in.readLong());
+                }
+                int numDirty = in.readInt();
+                r.dirty = new HashMap<>();
+                while (numDirty-- > 0) {
+                    PageId pid = PageDelta.readPageId(in);
+                    r.dirty.put(pid, in.readLong());
+                }
+                break;
+            case ABORT_RECORD:
+            case COMMIT_RECORD:
+            case BEGIN_RECORD:
+                break;
+            default:
+                return null;
+            }
+            //all xactions finish with a pointer
+            if (in.readLong() != r.offset) {
+                return null;
+            }
+            r.end = reader.position();
+            return r;
+        } catch (EOFException e) {
+            // the last record was cut short
+            return null;
+        }
+    }
+
+    /** The file holding the given page, or null if its table is no
+        longer in the catalog. */
+    private static DbFile databaseFile(PageId pid) {
+        try {
+            return Database.getCatalog().getDatabaseFile(pid.getTableId());
+        } catch (NoSuchElementException e) {
+            Debug.log("no table " + pid.getTableId() + " for logged page " + pid);
+            return null;
+        }
+    }
+
+    /** Read the given page for recovery.  A page past the end of its file
+        is read as an empty page: data files are only synced by checkpoints
+        and the page writer, so a crash can lose the extension of a file
+        while the log still has the updates of the pages it added. */
+    private static Page readForRecovery(DbFile file, PageId pid) throws IOException {
+        try {
+            return file.readPage(pid);
+        } catch (IllegalArgumentException e) {
+            Debug.log("RECOVERY: page " + pid + " is not in its file, starting from an empty page");
+            return file.emptyPage(pid);
+        }
+    }
+
+    /** Take back the given UPDATE records, which are in log order, on
+        disk and drop the pages from the buffer pool.  What is undone is
+        logged as a new UPDATE of the same transaction, a compensation
+        record, and forced before any page is written; since recovery
+        redoes every update, compensations included, the undone updates
+        stay undone.  Caller must hold the buffer pool and log monitors.
+
+        @return The number of pages written
+    */
+    private int undo(List<LogRecord> updates) throws IOException {
+        // newest update first for each page
+        Map<PageId, List<LogRecord>> byPage = new LinkedHashMap<>();
+        for (int i = updates.size() - 1; i >= 0; i--) {
+            LogRecord r = updates.get(i);
+            byPage.computeIfAbsent(r.delta.getPageId(), k -> new ArrayList<>()).add(r);
+        }
+
+        Map<PageId, Page> undone = new LinkedHashMap<>();
+        Map<PageId, Long> compensations = new HashMap<>();
+        for (Map.Entry<PageId, List<LogRecord>> e : byPage.entrySet()) {
+            DbFile file = databaseFile(e.getKey());
+            if (file == null) continue;
+            Page onDisk = readForRecovery(file, e.getKey());
+            Page page = onDisk;
+            for (LogRecord r : e.getValue()) {
+                page = r.delta.undo(page);
+            }
+            // charged to the transaction whose latest update was undone
+            compensations.put(e.getKey(), appendUpdate(e.getValue().get(0).tid, onDisk, page));
+            undone.put(e.getKey(), page);
+        }
+        if (undone.isEmpty()) return 0;
+
+        forceLog();
+        int pages = 0;
+        for (Page page : undone.values()) {
+            PageId pid = page.getId();
+            databaseFile(pid).writePage(page);
+            pageWritten(pid, compensations.get(pid));
+            Database.getBufferPool().discardPage(pid);
+            pages++;
+        }
+        return pages;
+    }
+
+    /** Redo the given updates, which are in log order for each page, on
+        disk.  Pages are independent of one another, so they are redone
+        in parallel, each by a single worker that reads it, applies its
+        updates in order and writes it once.  Caller must hold the
+        buffer pool and log monitors.
+
+        @return The number of worker threads used
+    */
+    private int redo(Map<PageId, List<PageDelta>> updates) throws IOException {
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), updates.size()));
+        ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "simpledb-redo");
+            t.setDaemon(true);
+            return t;
+        });
+        Set<DbFile> files = new HashSet<>();
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (Map.Entry<PageId, List<PageDelta>> e : updates.entrySet()) {
+                PageId pid = e.getKey();
+                List<PageDelta> deltas = e.getValue();
+                DbFile file = databaseFile(pid);
+                if (file == null) continue;
+                files.add(file);
+                done.add(workers.submit(() -> {
+                    Page page = readForRecovery(file, pid);
+                    for (PageDelta delta : deltas) {
+                        page = delta.redo(page);
+                    }
+                    file.writePage(page);
+                    return null;
+                }));
+            }
+            for (Future<?> f : done) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                    throw new IOException("redo failed", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted during redo");
+                }
             }
+        } finally {
+            workers.shutdownNow();
+        }
+        // the redone pages have no entries in the dirty-page table, so
+        // they are made durable here, before a checkpoint can forget them
+        for (DbFile file : files) {
+            file.sync();
+        }
+        // the pool's copies, if any, are out of date now
+        for (PageId pid : updates.keySet()) {
+            Database.getBufferPool().discardPage(pid);
         }
+        return threads;
     }
 
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            disablePageWriter();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                // the checkpoint forced every pending commit
+                GroupCommit group = groupCommit;
+                groupCommit = null;
+                if (group != null) group.stop();
+                raf.close();
+                segments.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -483,76 +932,178 @@ public class LogFile {
         updates of uncommitted transactions are not installed.
     */
     public void recover() throws IOException {
+        long started = System.nanoTime();
+        String summary;
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                writeBuffer();
+                if (raf.length() < LONG_SIZE) {
+                    // a brand new log; nothing to recover
+                    resetLog();
+                    return;
+                }
+                long cp = readCheckpointPointer();
+                long logStart = segments.start();
+                List<LogRecord> records = readRecords(logStart);
+
+                // drop a record cut short by the crash, so that new
+                // records follow the last complete one
+                long end = records.isEmpty() ? logStart : records.get(records.size() - 1).end;
+                if (end < segments.end()) {
+                    Debug.log("RECOVERY: dropping " + (segments.end() - end) + " bytes of partial record");
+                    segments.truncate(end);
+                }
+                fileEnd = currentOffset = end;
+                durableLsn.set(end);
+
+                // analysis: the transactions active at the checkpoint, plus
+                // those begun since, less those that committed or aborted
+                LogRecord cpRecord = null;
+                for (LogRecord r : records) {
+                    if (r.offset == cp && r.type == CHECKPOINT_RECORD) cpRecord = r;
+                }
+                long analysisStart = cpRecord != null ? cp : logStart;
+                // the checkpoint wrote no pages: redo starts at the oldest
+                // update that was not durable yet, its smallest recLSN
+                long redoStart = analysisStart;
+                if (cpRecord != null) {
+                    for (long recLsn : cpRecord.dirty.values()) {
+                        redoStart = Math.min(redoStart, recLsn);
+                    }
+                }
+                Map<Long, Long> losers = new HashMap<>();
+                int numUpdates = 0;
+                Map<PageId, List<PageDelta>> redo = new LinkedHashMap<>();
+                for (LogRecord r : records) {
+                    if (r.type == UPDATE_RECORD && r.offset >= redoStart) {
+                        // repeat history: committed or not, compensations too
+                        redo.computeIfAbsent(r.delta.getPageId(), k -> new ArrayList<>()).add(r.delta);
+                        numUpdates++;
+                    }
+                    if (r.offset < analysisStart) continue;
+                    switch (r.type) {
+                    case CHECKPOINT_RECORD:
+                        if (r == cpRecord) losers.putAll(r.active);
+                        break;
+                    case BEGIN_RECORD:
+                        losers.put(r.tid, r.offset);
+                        break;
+                    case COMMIT_RECORD:
+                    case ABORT_RECORD:
+                        losers.remove(r.tid);
+                        break;
+                    }
+                }
+                long analyzed = System.nanoTime();
+                Debug.log("RECOVERY: " + records.size() + " records, checkpoint at " + (cpRecord != null ? cp : "none")
+                          + ", " + losers.size() + " transactions to roll back");
+
+                // redo: every page with updates that may not have been
+                // durable is brought up to date, as it was at the crash
+                int threads = redo(redo);
+                long redone = System.nanoTime();
+                Debug.log("RECOVERY: redid " + numUpdates + " updates on " + redo.size() + " pages");
+
+                // undo: take back the updates of the transactions that
+                // never finished, and mark them aborted
+                List<LogRecord> loserUpdates = new ArrayList<>();
+                for (LogRecord r : records) {
+                    Long first = losers.get(r.tid);
+                    if (r.type == UPDATE_RECORD && first != null && r.offset >= first) {
+                        loserUpdates.add(r);
+                    }
+                }
+                int undonePages = undo(loserUpdates);
+                for (Long tid : losers.keySet()) {
+                    appendRecord(ABORT_RECORD, tid);
+                }
+                forceLog();
+                long undone = System.nanoTime();
+                Debug.log("RECOVERY: undid " + loserUpdates.size() + " updates on " + undonePages + " pages");
+
+                summary = "Recovery: " + records.size() + " log records analyzed in "
+                    + (analyzed - started) / 1000000 + " ms; "
+                    + numUpdates + " updates on " + redo.size() + " pages redone by "
+                    + threads + " threads in " + (redone - analyzed) / 1000000 + " ms; "
+                    + losers.size() + " transactions (" + loserUpdates.size()
+                    + " updates) rolled back in " + (undone - redone) / 1000000 + " ms; ";
             }
          }
+
+        // start the next recovery from here
+        logCheckpoint();
+        Debug.log(summary + "total " + (System.nanoTime() - started) / 1000000 + " ms");
     }
 
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
-
-        raf.seek(0);
-
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+        LogSegments.Reader reader;
+        synchronized (this) {
+            writeBuffer();
+            System.out.println("checkpoint record at offset " + readCheckpointPointer());
+            reader = segments.reader(segments.start());
+        }
+        DataInputStream in = new DataInputStream(reader);
 
         while (true) {
             try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
+                int cpType = in.readInt();
+                long cpTid = in.readLong();
 
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
+                System.out.println((reader.position() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
+                System.out.println((reader.position() - LONG_SIZE) + ": TID " + cpTid);
 
                 switch (cpType) {
                 case BEGIN_RECORD:
                     System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(reader.position() + ": RECORD START OFFSET: " + in.readLong());
                     break;
                 case ABORT_RECORD:
                     System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(reader.position() + ": RECORD START OFFSET: " + in.readLong());
                     break;
                 case COMMIT_RECORD:
                     System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(reader.position() + ": RECORD START OFFSET: " + in.readLong());
                     break;
 
                 case CHECKPOINT_RECORD:
                     System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
+                    int numTransactions = in.readInt();
+                    System.out.println((reader.position() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
 
                     while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                        long tid = in.readLong();
+                        long firstRecord = in.readLong();
+                        System.out.println((reader.position() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
+                        System.out.println((reader.position() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
                     }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    int numDirty = in.readInt();
+                    System.out.println((reader.position() - INT_SIZE) + ": NUMBER OF DIRTY PAGES: " + numDirty);
+
+                    while (numDirty-- > 0) {
+                        long start = reader.position();
+                        PageId pid = PageDelta.readPageId(in);
+                        System.out.println(start + ": PAGE: " + pid);
+                        System.out.println(reader.position() + ": REC LSN: " + in.readLong());
+                    }
+                    System.out.println(reader.position() + ": RECORD START OFFSET: " + in.readLong());
 
                     break;
                 case UPDATE_RECORD:
                     System.out.println(" (UPDATE)");
 
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
-
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
-
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
+                    long start = reader.position();
+                    PageDelta delta = PageDelta.read(in);
 
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+                    System.out.println(start + ": table id " + delta.getPageId().getTableId());
+                    System.out.println(start + ": page number " + delta.getPageId().getPageNumber());
+                    System.out.println(start + " TO " + reader.position() + ": " + delta.numRanges()
+                                       + " changed ranges, " + delta.changedBytes() + " bytes");
 
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(reader.position() + ": RECORD START OFFSET: " + in.readLong());
 
                     break;
                 }
@@ -562,13 +1113,28 @@ public class LogFile {
                 break;
             }
         }
-
-        // Return the file pointer to its original position
-        raf.seek(curOffset);
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        forceLog();
+    }
+
+    /** Wait until the record with the given LSN, and every record before
+        it, is on disk.  Returns at once if it already is.  In group commit
+        mode the log-writer thread forces the log, unless the caller holds
+        the log's monitor and so would keep the writer from running.
+
+        @param lsn The LSN of the record, as returned when it was written
+        @see #setGroupCommit
+    */
+    public void force(long lsn) throws IOException {
+        if (lsn < durableLsn.get()) return;
+        GroupCommit group = groupCommit;
+        if (group != null && !Thread.holdsLock(this) && group.request(lsn)) {
+            group.awaitDurable(lsn);
+        } else {
+            forceLog();
+        }
     }
 
 }
@@ -0,0 +1,312 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * LogSegments stores the bytes of the log in a series of segment files,
+ * so that the start of the log can be thrown away by deleting whole files.
+ * <p>
+ * Every byte of the log has a position, its LSN, that never changes. A
+ * segment holds the bytes from the LSN in its name on, and is named after
+ * the log file with that LSN appended: log.00000000000000065536. Bytes are
+ * appended to the last segment until it holds the segment size; then a new
+ * segment is started. Records are not aligned to segments, so a record can
+ * start in one segment and end in the next.
+ * <p>
+ * Appends, truncation and forces synchronize on this object only for as
+ * long as they update the segment table: files are forced and deleted
+ * outside it.
+ *
+ * @Threadsafe
+ */
+class LogSegments {
+
+    /** digits of the LSN in a segment's file name */
+    private static final int NAME_DIGITS = 20;
+
+    private final File dir;
+    private final String prefix;
+    private final long segmentSize;
+
+    /** the segments by the LSN of their first byte; guarded by this */
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    /** LSN just past the last byte written; guarded by this */
+    private long end;
+    /** every byte below this LSN has been forced; guarded by this */
+    private long forcedTo;
+
+    private static class Segment {
+        final long start;
+        final File file;
+        /** bytes written to the segment; guarded by the LogSegments */
+        long length;
+        private FileChannel channel;
+        private boolean closed;
+
+        Segment(long start, File file, long length) {
+            this.start = start;
+            this.file = file;
+            this.length = length;
+        }
+
+        synchronized FileChannel channel() throws IOException {
+            // a closed segment is being deleted; do not create it again
+            if (closed) throw new ClosedChannelException();
+            if (channel == null) {
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            }
+            return channel;
+        }
+
+        synchronized void close() throws IOException {
+            closed = true;
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Opens the segments of the given log file that are already on disk.
+     *
+     * @param logFile the log file; the segments go in the same directory
+     * @param segmentSize the number of bytes after which a new segment is
+     *   started
+     */
+    LogSegments(File logFile, long segmentSize) {
+        if (segmentSize <= 0) throw new IllegalArgumentException("segmentSize must be positive");
+        File abs = logFile.getAbsoluteFile();
+        this.dir = abs.getParentFile();
+        this.prefix = abs.getName() + ".";
+        this.segmentSize = segmentSize;
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                long start = segmentStart(f.getName());
+                if (start >= 0) segments.put(start, new Segment(start, f, f.length()));
+            }
+        }
+        Map.Entry<Long, Segment> last = segments.lastEntry();
+        end = last == null ? 0 : last.getValue().start + last.getValue().length;
+        forcedTo = end;
+    }
+
+    /** Returns the LSN in a segment file's name, or -1 if it is not one. */
+    private long segmentStart(String name) {
+        if (!name.startsWith(prefix) || name.length() != prefix.length() + NAME_DIGITS) return -1;
+        String digits = name.substring(prefix.length());
+        for (int i = 0; i < digits.length(); i++) {
+            if (!Character.isDigit(digits.charAt(i))) return -1;
+        }
+        return Long.parseLong(digits);
+    }
+
+    private Segment newSegment(long start) {
+        String digits = String.format("%0" + NAME_DIGITS + "d", start);
+        Segment s = new Segment(start, new File(dir, prefix + digits), 0);
+        segments.put(start, s);
+        return s;
+    }
+
+    /** Returns the LSN of the first byte still stored. */
+    synchronized long start() {
+        return segments.isEmpty() ? end : segments.firstKey();
+    }
+
+    /** Returns the LSN just past the last byte written. */
+    synchronized long end() {
+        return end;
+    }
+
+    /** Returns the segment files, oldest first. */
+    synchronized List<File> files() {
+        List<File> files = new ArrayList<>();
+        for (Segment s : segments.values()) files.add(s.file);
+        return files;
+    }
+
+    /**
+     * Appends the remaining bytes of src to the log, starting new segments
+     * as needed. On return src has no bytes remaining.
+     */
+    synchronized void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            Map.Entry<Long, Segment> last = segments.lastEntry();
+            Segment tail = last == null ? null : last.getValue();
+            if (tail == null || tail.length >= segmentSize) tail = newSegment(end);
+
+            int n = (int) Math.min(src.remaining(), segmentSize - tail.length);
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + n);
+            FileChannel c = tail.channel();
+            while (part.hasRemaining()) {
+                c.write(part, tail.length + (part.position() - src.position()));
+            }
+            src.position(src.position() + n);
+            tail.length += n;
+            end += n;
+        }
+    }
+
+    /**
+     * Forces every byte written so far to disk. Only the segments written
+     * since the last force are forced.
+     *
+     * @return the LSN up to which the log is durable
+     */
+    long force() throws IOException {
+        List<Segment> unforced;
+        long target;
+        synchronized (this) {
+            target = end;
+            Long from = segments.floorKey(forcedTo);
+            unforced = new ArrayList<>((from == null ? segments : segments.tailMap(from, true)).values());
+        }
+        for (Segment s : unforced) {
+            try {
+                s.channel().force(true);
+            } catch (ClosedChannelException e) {
+                // deleted by truncation meanwhile; nothing left to force
+            }
+        }
+        synchronized (this) {
+            forcedTo = Math.max(forcedTo, target);
+        }
+        return target;
+    }
+
+    /**
+     * Drops the bytes from the given LSN on, as if they had never been
+     * written.
+     */
+    void truncate(long newEnd) throws IOException {
+        List<Segment> dropped = new ArrayList<>();
+        synchronized (this) {
+            if (newEnd >= end) return;
+            while (!segments.isEmpty() && segments.lastKey() >= newEnd) {
+                dropped.add(segments.pollLastEntry().getValue());
+            }
+            Map.Entry<Long, Segment> last = segments.lastEntry();
+            if (last != null) {
+                Segment tail = last.getValue();
+                long keep = Math.max(0, newEnd - tail.start);
+                if (keep < tail.length) {
+                    tail.channel().truncate(keep);
+                    tail.length = keep;
+                }
+                end = tail.start + tail.length;
+            } else {
+                end = newEnd;
+            }
+            forcedTo = Math.min(forcedTo, end);
+        }
+        delete(dropped);
+    }
+
+    /**
+     * Deletes the segments that hold only bytes below the given LSN. The
+     * segment being appended to is never deleted.
+     *
+     * @return the number of segments deleted
+     */
+    int dropBefore(long lsn) throws IOException {
+        List<Segment> dropped = new ArrayList<>();
+        synchronized (this) {
+            while (segments.size() > 1) {
+                Segment first = segments.firstEntry().getValue();
+                if (first.start + first.length > lsn) break;
+                dropped.add(segments.pollFirstEntry().getValue());
+            }
+        }
+        delete(dropped);
+        return dropped.size();
+    }
+
+    private static void delete(List<Segment> dropped) throws IOException {
+        for (Segment s : dropped) {
+            s.close();
+            if (!s.file.delete() && s.file.exists()) {
+                throw new IOException("cannot delete log segment " + s.file);
+            }
+        }
+    }
+
+    /** Closes the segment files. */
+    synchronized void close() throws IOException {
+        for (Segment s : segments.values()) s.close();
+    }
+
+    /** Returns a stream of the log's bytes from the given LSN on. */
+    Reader reader(long from) {
+        return new Reader(from);
+    }
+
+    /**
+     * Reads the log sequentially, across segment boundaries. The stream
+     * ends at the end of the log as it was when the bytes were read.
+     */
+    class Reader extends InputStream {
+        private final byte[] buf = new byte[64 * 1024];
+        private int pos;
+        private int limit;
+        /** LSN of buf[limit] */
+        private long next;
+
+        Reader(long from) {
+            this.next = from;
+        }
+
+        /** Returns the LSN of the next byte read. */
+        long position() {
+            return next - (limit - pos);
+        }
+
+        private boolean fill() throws IOException {
+            Segment s;
+            synchronized (LogSegments.this) {
+                Map.Entry<Long, Segment> e = segments.floorEntry(next);
+                if (e == null || next >= e.getValue().start + e.getValue().length) return false;
+                s = e.getValue();
+                limit = (int) Math.min(buf.length, s.start + s.length - next);
+            }
+            ByteBuffer dst = ByteBuffer.wrap(buf, 0, limit);
+            FileChannel c = s.channel();
+            while (dst.hasRemaining()) {
+                if (c.read(dst, next - s.start + dst.position()) < 0) {
+                    throw new IOException("log segment " + s.file + " is shorter than expected");
+                }
+            }
+            pos = 0;
+            next += limit;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos == limit && !fill()) return -1;
+            return buf[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (pos == limit && !fill()) return -1;
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+}
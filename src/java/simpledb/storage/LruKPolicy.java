@@ -0,0 +1,114 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum, SIGMOD '93). The victim is
+ * the page whose K-th most recent reference lies furthest in the past; a page
+ * referenced fewer than K times counts as infinitely old, so pages touched
+ * once by a sequential scan leave before pages that are used over and over,
+ * such as the upper levels of a B+ tree.
+ * <p>
+ * Frames with fewer than K references sit on a cold list in LRU order.
+ * Frames with K or more sit on a hot list sorted by their K-th most recent
+ * reference, newest first. A re-referenced hot frame is re-inserted from the
+ * newest end, and its new key is one of the newest in the list, so the walk
+ * is short in practice. Victims are taken from the old end of the cold list,
+ * then of the hot list.
+ */
+public class LruKPolicy implements EvictionPolicy {
+
+    private static final class Frame extends PageFrame {
+        /** logical times of the last K references, most recent first */
+        final long[] history;
+        int refs;
+
+        Frame(PageId pid, Page page, int k) {
+            super(pid, page);
+            history = new long[k];
+        }
+
+        long kth() {
+            return history[history.length - 1];
+        }
+    }
+
+    private final int k;
+    private long clock = 0;
+
+    private final PageFrame coldHead = new PageFrame(null, null);
+    private final PageFrame coldTail = new PageFrame(null, null);
+    private final PageFrame hotHead = new PageFrame(null, null);
+    private final PageFrame hotTail = new PageFrame(null, null);
+
+    /**
+     * @param k how many references a page needs before it is ranked by
+     *   reference history instead of being treated as cold
+     */
+    public LruKPolicy(int k) {
+        if (k < 1) throw new IllegalArgumentException("K must be at least 1");
+        this.k = k;
+        coldHead.next = coldTail;
+        coldTail.prev = coldHead;
+        hotHead.next = hotTail;
+        hotTail.prev = hotHead;
+    }
+
+    private static void linkAfter(PageFrame at, PageFrame frame) {
+        frame.prev = at;
+        frame.next = at.next;
+        at.next.prev = frame;
+        at.next = frame;
+    }
+
+    private static void unlink(PageFrame frame) {
+        frame.prev.next = frame.next;
+        frame.next.prev = frame.prev;
+        frame.prev = null;
+        frame.next = null;
+    }
+
+    private void insertHot(Frame frame) {
+        PageFrame at = hotHead;
+        while (at.next != hotTail && ((Frame) at.next).kth() > frame.kth()) {
+            at = at.next;
+        }
+        linkAfter(at, frame);
+    }
+
+    private void place(Frame frame) {
+        if (frame.refs < k) linkAfter(coldHead, frame);
+        else insertHot(frame);
+    }
+
+    public PageFrame admit(PageId pid, Page page) {
+        Frame frame = new Frame(pid, page, k);
+        frame.history[0] = ++clock;
+        frame.refs = 1;
+        place(frame);
+        return frame;
+    }
+
+    public void access(PageFrame pf) {
+        Frame frame = (Frame) pf;
+        System.arraycopy(frame.history, 0, frame.history, 1, k - 1);
+        frame.history[0] = ++clock;
+        if (frame.refs < k) frame.refs++;
+        unlink(frame);
+        place(frame);
+    }
+
+    public void remove(PageFrame frame) {
+        unlink(frame);
+    }
+
+    public PageFrame victim(Predicate<Page> evictable) {
+        for (PageFrame f = coldTail.prev; f != coldHead; f = f.prev) {
+            if (evictable.test(f.page)) return f;
+        }
+        for (PageFrame f = hotTail.prev; f != hotHead; f = f.prev) {
+            if (evictable.test(f.page)) return f;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,54 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * Least-recently-used replacement. Frames sit on one list from most to
+ * least recently used; a victim is searched for from the cold end.
+ */
+public class LruPolicy implements EvictionPolicy {
+    private final PageFrame head = new PageFrame(null, null);
+    private final PageFrame tail = new PageFrame(null, null);
+
+    public LruPolicy() {
+        head.next = tail;
+        tail.prev = head;
+    }
+
+    private void addToHead(PageFrame frame) {
+        frame.prev = head;
+        frame.next = head.next;
+        head.next.prev = frame;
+        head.next = frame;
+    }
+
+    private void unlink(PageFrame frame) {
+        frame.prev.next = frame.next;
+        frame.next.prev = frame.prev;
+        frame.prev = null;
+        frame.next = null;
+    }
+
+    public PageFrame admit(PageId pid, Page page) {
+        PageFrame frame = new PageFrame(pid, page);
+        addToHead(frame);
+        return frame;
+    }
+
+    public void access(PageFrame frame) {
+        if (head.next == frame) return;
+        unlink(frame);
+        addToHead(frame);
+    }
+
+    public void remove(PageFrame frame) {
+        unlink(frame);
+    }
+
+    public PageFrame victim(Predicate<Page> evictable) {
+        for (PageFrame f = tail.prev; f != head; f = f.prev) {
+            if (evictable.test(f.page)) return f;
+        }
+        return null;
+    }
+}
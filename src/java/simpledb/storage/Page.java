@@ -2,6 +2,9 @@ package simpledb.storage;
 
 import simpledb.transaction.TransactionId;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 /**
  * Page is the interface used to represent pages that are resident in the
  * BufferPool.  Typically, DbFiles will read and write pages from disk.
@@ -48,11 +51,36 @@ public interface Page {
 
   byte[] getPageData();
 
+  /**
+   * Writes the bytes {@link #getPageData} returns into buf, from index 0 to
+   * the size of the page, overwriting whatever buf held before. On return
+   * buf's position is 0 and its limit is the size of the page. Pages that
+   * can serialize themselves without allocating override this, so that the
+   * flush path can reuse one buffer for every page it writes.
+   *
+   * @param buf a buffer at least as large as the page
+   */
+  default void writePageData(ByteBuffer buf) {
+      buf.clear();
+      buf.put(getPageData());
+      buf.flip();
+  }
+
     /** Provide a representation of this page before any modifications were made
         to it.  Used by recovery.
     */
     Page getBeforeImage();
 
+    /**
+     * Returns a new page with this page's id, of the same kind as this page,
+     * built from data as the constructor would build it. Used by recovery
+     * to apply logged changes to a page's bytes.
+     *
+     * @param data the raw data of the new page, in the format
+     *   {@link #getPageData} returns
+     */
+    Page withPageData(byte[] data) throws IOException;
+
     /*
      * a transaction that wrote this page just committed it.
      * copy current content to the before image.
@@ -0,0 +1,45 @@
+package simpledb.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for serializing pages into ByteBuffers without allocating.
+ *
+ * @see Page#writePageData(ByteBuffer)
+ */
+public class PageBuffers {
+
+    private static final byte[] ZEROS = new byte[4096];
+
+    /** one page-sized buffer per thread, for writing pages out */
+    private static final ThreadLocal<ByteBuffer> WRITE_BUFFER = new ThreadLocal<>();
+
+    private PageBuffers() {
+    }
+
+    /**
+     * Returns this thread's buffer for serializing a page before writing it
+     * to disk. The buffer is reused by every call on the same thread, so the
+     * caller must be done with it before it asks again.
+     *
+     * @param size the number of bytes the buffer must hold
+     */
+    public static ByteBuffer forWrite(int size) {
+        ByteBuffer buf = WRITE_BUFFER.get();
+        if (buf == null || buf.capacity() < size) {
+            buf = ByteBuffer.allocateDirect(size);
+            WRITE_BUFFER.set(buf);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    /** Writes n zero bytes to buf at its current position. */
+    public static void putZeros(ByteBuffer buf, int n) {
+        while (n > 0) {
+            int chunk = Math.min(n, ZEROS.length);
+            buf.put(ZEROS, 0, chunk);
+            n -= chunk;
+        }
+    }
+}
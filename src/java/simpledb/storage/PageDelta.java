@@ -0,0 +1,233 @@
+package simpledb.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+
+/**
+ * PageDelta is the change an update made to a page, as the byte ranges of
+ * the page data that differ between its before and after images. It is what
+ * an UPDATE log record holds in place of the two full images: inserting or
+ * deleting a tuple in a HeapPage changes a header byte and one slot, so the
+ * record carries a few dozen bytes instead of two whole pages.
+ * <p>
+ * Ranges that are only a few equal bytes apart are merged into one, since a
+ * range's offset and length cost as much as the bytes between them.
+ * {@link #redo} applies the after bytes of every range to a page and
+ * {@link #undo} the before bytes; each leaves the bytes outside the ranges
+ * as they are.
+ *
+ * @Immutable
+ */
+public class PageDelta {
+
+    /** bytes of offset and length stored for each range */
+    private static final int RANGE_HEADER = 2 * LogFile.INT_SIZE;
+
+    private final PageId pid;
+    private final int pageSize;
+    /** start and length of each changed range, in page order */
+    private final int[] offsets;
+    private final int[] lengths;
+    /** the before and after bytes of every range, one range after the other */
+    private final byte[] before;
+    private final byte[] after;
+
+    private PageDelta(PageId pid, int pageSize, int[] offsets, int[] lengths, byte[] before, byte[] after) {
+        this.pid = pid;
+        this.pageSize = pageSize;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Computes the change from one image of a page to another.
+     *
+     * @param beforeImage the page before the update
+     * @param afterImage the page after the update; must have the same id
+     *   and size as beforeImage
+     */
+    public static PageDelta diff(Page beforeImage, Page afterImage) {
+        if (!beforeImage.getId().equals(afterImage.getId())) {
+            throw new IllegalArgumentException("images of different pages: "
+                    + beforeImage.getId() + " and " + afterImage.getId());
+        }
+        byte[] b = beforeImage.getPageData();
+        byte[] a = afterImage.getPageData();
+        if (a.length != b.length) {
+            throw new IllegalArgumentException("images of different sizes: " + b.length + " and " + a.length);
+        }
+
+        int[] offsets = new int[4];
+        int[] lengths = new int[4];
+        int ranges = 0;
+        int total = 0;
+        int i = 0;
+        while (i < a.length) {
+            if (a[i] == b[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;    // exclusive end of the differing bytes so far
+            for (int j = end; j < a.length && j - end <= RANGE_HEADER; j++) {
+                if (a[j] != b[j]) end = j + 1;
+            }
+            if (ranges == offsets.length) {
+                offsets = Arrays.copyOf(offsets, ranges * 2);
+                lengths = Arrays.copyOf(lengths, ranges * 2);
+            }
+            offsets[ranges] = start;
+            lengths[ranges] = end - start;
+            ranges++;
+            total += end - start;
+            i = end;
+        }
+
+        byte[] beforeBytes = new byte[total];
+        byte[] afterBytes = new byte[total];
+        int pos = 0;
+        for (int r = 0; r < ranges; r++) {
+            System.arraycopy(b, offsets[r], beforeBytes, pos, lengths[r]);
+            System.arraycopy(a, offsets[r], afterBytes, pos, lengths[r]);
+            pos += lengths[r];
+        }
+        return new PageDelta(afterImage.getId(), a.length,
+                Arrays.copyOf(offsets, ranges), Arrays.copyOf(lengths, ranges), beforeBytes, afterBytes);
+    }
+
+    public PageId getPageId() {
+        return pid;
+    }
+
+    /** Returns the number of changed ranges. */
+    public int numRanges() {
+        return offsets.length;
+    }
+
+    /** Returns the number of page bytes the ranges cover. */
+    public int changedBytes() {
+        return after.length;
+    }
+
+    private byte[] apply(Page page, byte[] bytes) {
+        byte[] data = page.getPageData();
+        if (data.length != pageSize) {
+            throw new IllegalArgumentException("page " + page.getId() + " has " + data.length
+                    + " bytes, but the delta is for a page of " + pageSize);
+        }
+        int pos = 0;
+        for (int r = 0; r < offsets.length; r++) {
+            System.arraycopy(bytes, pos, data, offsets[r], lengths[r]);
+            pos += lengths[r];
+        }
+        return data;
+    }
+
+    /**
+     * Returns the page with the update applied to it. The page itself is
+     * not changed.
+     */
+    public Page redo(Page page) throws IOException {
+        return page.withPageData(apply(page, after));
+    }
+
+    /**
+     * Returns the page with the update taken back. The page itself is not
+     * changed.
+     */
+    public Page undo(Page page) throws IOException {
+        return page.withPageData(apply(page, before));
+    }
+
+    /**
+     * Writes the delta: the page id (see {@link #writePageId}), the page
+     * size, the number of ranges, and then for each range its offset, its
+     * length, its before bytes and its after bytes.
+     */
+    public void write(DataOutput out) throws IOException {
+        writePageId(out, pid);
+        out.writeInt(pageSize);
+        out.writeInt(offsets.length);
+        int pos = 0;
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(lengths[r]);
+            out.write(before, pos, lengths[r]);
+            out.write(after, pos, lengths[r]);
+            pos += lengths[r];
+        }
+    }
+
+    /** Reads a delta written by {@link #write}. */
+    public static PageDelta read(DataInput in) throws IOException {
+        PageId pid = readPageId(in);
+        int pageSize = in.readInt();
+        int ranges = in.readInt();
+        int[] offsets = new int[ranges];
+        int[] lengths = new int[ranges];
+        byte[][] beforeParts = new byte[ranges][];
+        byte[][] afterParts = new byte[ranges][];
+        int total = 0;
+        for (int r = 0; r < ranges; r++) {
+            offsets[r] = in.readInt();
+            lengths[r] = in.readInt();
+            if (offsets[r] < 0 || lengths[r] < 0 || offsets[r] + lengths[r] > pageSize) {
+                throw new IOException("bad range " + offsets[r] + "+" + lengths[r] + " in delta for " + pid);
+            }
+            beforeParts[r] = new byte[lengths[r]];
+            afterParts[r] = new byte[lengths[r]];
+            in.readFully(beforeParts[r]);
+            in.readFully(afterParts[r]);
+            total += lengths[r];
+        }
+        byte[] before = new byte[total];
+        byte[] after = new byte[total];
+        int pos = 0;
+        for (int r = 0; r < ranges; r++) {
+            System.arraycopy(beforeParts[r], 0, before, pos, lengths[r]);
+            System.arraycopy(afterParts[r], 0, after, pos, lengths[r]);
+            pos += lengths[r];
+        }
+        return new PageDelta(pid, pageSize, offsets, lengths, before, after);
+    }
+
+    /**
+     * Writes a page id as its class name and the ints of
+     * {@link PageId#serialize}.
+     */
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        int[] idInts = pid.serialize();
+        out.writeUTF(pid.getClass().getName());
+        out.writeInt(idInts.length);
+        for (int j : idInts) {
+            out.writeInt(j);
+        }
+    }
+
+    /** Reads a page id written by {@link #writePageId}. */
+    static PageId readPageId(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
+        int numIdArgs = in.readInt();
+        Object[] idArgs = new Object[numIdArgs];
+        for (int i = 0; i < numIdArgs; i++) {
+            idArgs[i] = in.readInt();
+        }
+        try {
+            Constructor<?>[] idConsts = Class.forName(idClassName).getDeclaredConstructors();
+            return (PageId) idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e) {
+            throw new IOException("cannot rebuild page id of class " + idClassName, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PageDelta(" + pid + ", " + offsets.length + " ranges, " + after.length + " bytes)";
+    }
+}
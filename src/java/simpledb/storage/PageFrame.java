@@ -0,0 +1,34 @@
+package simpledb.storage;
+
+/**
+ * PageFrame is the entry a PageTable keeps for one resident page. Eviction
+ * policies subclass it to hold their replacement state, and chain frames
+ * through prev/next so that their bookkeeping never allocates.
+ *
+ * @see EvictionPolicy
+ */
+public class PageFrame {
+    final PageId pid;
+    Page page;
+    PageFrame prev;
+    PageFrame next;
+
+    /** the scan ring that brought the page in, or null once the page is
+     *  managed by the eviction policy */
+    ScanRing ring;
+
+    public PageFrame(PageId pid, Page page) {
+        this.pid = pid;
+        this.page = page;
+    }
+
+    /** @return the id of the page held in this frame */
+    public PageId getId() {
+        return pid;
+    }
+
+    /** @return the page held in this frame, or null if it is no longer resident */
+    public Page getPage() {
+        return page;
+    }
+}
@@ -9,10 +9,13 @@ public class PageLock {
     
     private TransactionId tid;
     private Permissions type;
+    // the thread that asked for the lock, woken when it is granted
+    private final Thread thread;
     
     public PageLock(TransactionId tid, Permissions type) {
         this.tid = tid;
         this.type = type;
+        this.thread = Thread.currentThread();
     }
 
     public Permissions getType() {
@@ -23,6 +26,10 @@ public class PageLock {
         return this.tid;
     }
 
+    public Thread getThread() {
+        return this.thread;
+    }
+
     public void setType(Permissions type) {
         this.type = type;
     }
@@ -0,0 +1,276 @@
+package simpledb.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * PageTable maps the ids of the pages resident in the BufferPool to the pages
+ * themselves.
+ * <p>
+ * The table is split into a power-of-two number of partitions by PageId hash.
+ * Every partition has its own monitor and its own {@link EvictionPolicy}, so
+ * lookups of pages that live in different partitions never wait on each
+ * other. The table does not enforce a capacity; the BufferPool decides when
+ * to evict and asks the table to give up a page through {@link #evict}.
+ * <p>
+ * Pages read through a {@link ScanRing} are kept apart from the policy, on a
+ * per-partition list of ring frames, until someone else asks for them.
+ *
+ * @see BufferPool
+ * @Threadsafe
+ */
+public class PageTable {
+
+    /** Upper bound on the number of partitions, whatever the pool size. */
+    private static final int MAX_PARTITIONS = 64;
+
+    /** Smallest number of pages we want to keep per partition. */
+    private static final int MIN_PAGES_PER_PARTITION = 4;
+
+    private final Partition[] partitions;
+    private final int mask;
+    private final AtomicInteger size = new AtomicInteger();
+
+    /** partition the next victim search starts from, so evictions spread out */
+    private final AtomicInteger evictCursor = new AtomicInteger();
+
+    /** One slice of the table. All fields are protected by the partition's own monitor. */
+    private static final class Partition {
+        final Map<PageId, PageFrame> frames = new HashMap<>();
+        final EvictionPolicy policy;
+        /** sentinel of the list of ring frames, oldest first */
+        final PageFrame rings = new PageFrame(null, null);
+
+        Partition(EvictionPolicy policy) {
+            this.policy = policy;
+            rings.prev = rings;
+            rings.next = rings;
+        }
+
+        void addRingFrame(PageFrame frame) {
+            frame.next = rings;
+            frame.prev = rings.prev;
+            rings.prev.next = frame;
+            rings.prev = frame;
+        }
+
+        void unlinkRingFrame(PageFrame frame) {
+            frame.prev.next = frame.next;
+            frame.next.prev = frame.prev;
+            frame.prev = null;
+            frame.next = null;
+            frame.ring = null;
+        }
+
+        /** Hands a ring frame over to the eviction policy. */
+        PageFrame adopt(PageFrame frame, Page page) {
+            unlinkRingFrame(frame);
+            PageFrame adopted = policy.admit(frame.pid, page);
+            frames.put(frame.pid, adopted);
+            return adopted;
+        }
+
+        /** Drops a frame from whichever structure tracks it. */
+        void forget(PageFrame frame) {
+            if (frame.ring != null) unlinkRingFrame(frame);
+            else policy.remove(frame);
+        }
+    }
+
+    /**
+     * Creates an empty page table sized for a pool of the given capacity.
+     *
+     * @param capacity the maximum number of pages the owning BufferPool holds
+     * @param policy creates the replacement policy of each partition
+     */
+    public PageTable(int capacity, EvictionPolicy.Factory policy) {
+        int wanted = Math.max(1, Math.min(MAX_PARTITIONS, capacity / MIN_PAGES_PER_PARTITION));
+        int numPartitions = Integer.highestOneBit(wanted);
+        int share = Math.max(1, (capacity + numPartitions - 1) / numPartitions);
+        this.partitions = new Partition[numPartitions];
+        for (int i = 0; i < numPartitions; i++) {
+            partitions[i] = new Partition(policy.create(share));
+        }
+        this.mask = numPartitions - 1;
+    }
+
+    private Partition partitionFor(PageId pid) {
+        int h = pid.hashCode();
+        return partitions[(h ^ (h >>> 16)) & mask];
+    }
+
+    /**
+     * Returns the resident page with the given id and reports the reference
+     * to the partition's eviction policy, or null if the page is not resident.
+     */
+    public Page get(PageId pid) {
+        Partition p = partitionFor(pid);
+        synchronized (p) {
+            PageFrame frame = p.frames.get(pid);
+            if (frame == null) return null;
+            if (frame.ring != null) p.adopt(frame, frame.page);
+            else p.policy.access(frame);
+            return frame.page;
+        }
+    }
+
+    /**
+     * Returns the resident page with the given id on behalf of a scan ring,
+     * or null if the page is not resident. The eviction policy is not told
+     * about the reference.
+     */
+    public Page getForScan(PageId pid) {
+        Partition p = partitionFor(pid);
+        synchronized (p) {
+            PageFrame frame = p.frames.get(pid);
+            return frame == null ? null : frame.page;
+        }
+    }
+
+    /** Returns true if the page with the given id is resident. */
+    public boolean contains(PageId pid) {
+        Partition p = partitionFor(pid);
+        synchronized (p) {
+            return p.frames.containsKey(pid);
+        }
+    }
+
+    /**
+     * Installs a page, replacing any resident version with the same id. A
+     * replacement counts as a reference to the page.
+     */
+    public void put(PageId pid, Page page) {
+        Partition p = partitionFor(pid);
+        synchronized (p) {
+            PageFrame frame = p.frames.get(pid);
+            if (frame == null) {
+                p.frames.put(pid, p.policy.admit(pid, page));
+                size.incrementAndGet();
+            } else if (frame.ring != null) {
+                p.adopt(frame, page);
+            } else {
+                frame.page = page;
+                p.policy.access(frame);
+            }
+        }
+    }
+
+    /**
+     * Installs a page read through a scan ring, unless a version of it is
+     * already resident.
+     *
+     * @return the page that is resident after the call
+     */
+    public Page putForScan(PageId pid, Page page, ScanRing ring) {
+        Partition p = partitionFor(pid);
+        synchronized (p) {
+            PageFrame frame = p.frames.get(pid);
+            if (frame != null) return frame.page;
+            frame = new PageFrame(pid, page);
+            frame.ring = ring;
+            p.frames.put(pid, frame);
+            p.addRingFrame(frame);
+            size.incrementAndGet();
+            return page;
+        }
+    }
+
+    /**
+     * Drops a page that the given ring brought in, so that the ring can reuse
+     * its frame. Nothing happens if the page has been handed over to the
+     * eviction policy in the meantime, or may not be evicted.
+     *
+     * @return true if the page was dropped
+     */
+    public boolean reclaim(PageId pid, ScanRing ring, Predicate<Page> evictable) {
+        Partition p = partitionFor(pid);
+        synchronized (p) {
+            PageFrame frame = p.frames.get(pid);
+            if (frame == null || frame.ring != ring || !evictable.test(frame.page)) return false;
+            p.frames.remove(pid);
+            p.unlinkRingFrame(frame);
+            size.decrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * Removes the page with the given id from the table.
+     *
+     * @return the removed page, or null if it was not resident
+     */
+    public Page remove(PageId pid) {
+        Partition p = partitionFor(pid);
+        synchronized (p) {
+            PageFrame frame = p.frames.remove(pid);
+            if (frame == null) return null;
+            Page page = frame.page;
+            p.forget(frame);
+            size.decrementAndGet();
+            return page;
+        }
+    }
+
+    /** @return the number of resident pages */
+    public int size() {
+        return size.get();
+    }
+
+    /** @return the number of partitions this table is split into */
+    public int numPartitions() {
+        return partitions.length;
+    }
+
+    /**
+     * Evicts one page. Partitions are visited in turn, starting from a
+     * rotating cursor, and the first one that has a victim gives it up. Pages
+     * brought in by scan rings go first, oldest first; after them, the
+     * partition's eviction policy chooses.
+     *
+     * @param evictable decides whether a page may leave the pool at all
+     * @return the evicted page, or null if no resident page is evictable
+     */
+    public Page evict(Predicate<Page> evictable) {
+        int start = evictCursor.getAndIncrement() & mask;
+        for (int i = 0; i < partitions.length; i++) {
+            Partition p = partitions[(start + i) & mask];
+            synchronized (p) {
+                PageFrame victim = null;
+                for (PageFrame f = p.rings.next; f != p.rings; f = f.next) {
+                    if (evictable.test(f.page)) {
+                        victim = f;
+                        break;
+                    }
+                }
+                if (victim == null) victim = p.policy.victim(evictable);
+                if (victim == null) continue;
+                Page page = victim.page;
+                p.frames.remove(victim.pid);
+                p.forget(victim);
+                size.decrementAndGet();
+                return page;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a snapshot of all resident pages. The snapshot is not kept in
+     * sync with the table.
+     */
+    public List<Page> pages() {
+        List<Page> list = new ArrayList<>(size());
+        for (Partition p : partitions) {
+            synchronized (p) {
+                for (PageFrame f : p.frames.values()) {
+                    list.add(f.page);
+                }
+            }
+        }
+        return list;
+    }
+}
@@ -0,0 +1,121 @@
+package simpledb.storage;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * ReadAhead issues reads for the pages a sequential scan of a heap file is
+ * about to ask for, so that they are already in the BufferPool when the scan
+ * gets there.
+ * <p>
+ * The scan reports every page it moves to through {@link #access}. As long
+ * as it moves to the page right after the previous one, the next
+ * <i>window</i> pages are read on a shared background executor. The window
+ * starts small and doubles each time the scan reaches a page whose read is
+ * still in flight, i.e. whenever the scan consumes pages faster than the
+ * read-ahead supplies them. Any other access pattern cancels the
+ * outstanding reads and starts over with the initial window.
+ * <p>
+ * One ReadAhead belongs to one scan and is not thread-safe.
+ *
+ * @see BufferPool#prefetchPage(DbFile, PageId, ScanRing)
+ */
+public class ReadAhead {
+
+    /** number of pages read ahead when a sequential run starts */
+    private static final int INITIAL_WINDOW = 2;
+
+    /** upper bound on the window, whatever the pool size */
+    private static final int MAX_WINDOW = 32;
+
+    private static final int IO_THREADS = 4;
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(IO_THREADS, r -> {
+        Thread t = new Thread(r, "simpledb-readahead");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final BufferPool pool;
+    private final HeapFile file;
+    private final ScanRing ring;
+    private final int maxWindow;
+
+    private int window;
+    /** the page the scan asked for last */
+    private int last = -1;
+    /** the highest page read ahead so far */
+    private int issued = -1;
+    /** reads that may still be running, by page number */
+    private final Map<Integer, Future<?>> inFlight = new HashMap<>();
+
+    /**
+     * @param pool the pool pages are read into
+     * @param file the scanned file
+     * @param ring the scan's ring, or null if the scan does not use one
+     */
+    public ReadAhead(BufferPool pool, HeapFile file, ScanRing ring) {
+        this.pool = pool;
+        this.file = file;
+        this.ring = ring;
+        // pages read ahead through a ring must not recycle the ring frames
+        // the scan has yet to reach
+        int limit = ring == null ? pool.getNumPages() / 4 : ring.size() / 2;
+        this.maxWindow = Math.min(MAX_WINDOW, limit);
+        this.window = Math.min(maxWindow, INITIAL_WINDOW);
+    }
+
+    /**
+     * Reports that the scan moves to the given page, and waits for the page's
+     * read if one is in flight. Call it before fetching the page from the
+     * BufferPool.
+     *
+     * @param pgNo the page the scan moves to
+     * @param numPages the number of pages in the file
+     */
+    public void access(int pgNo, int numPages) {
+        if (maxWindow == 0) return;
+        Future<?> pending = inFlight.remove(pgNo);
+        if (pending != null && !pending.isDone()) {
+            window = Math.min(maxWindow, window * 2);
+            await(pending);
+        }
+
+        if (pgNo != last + 1) {
+            cancel();
+            issued = pgNo;
+            window = Math.min(maxWindow, INITIAL_WINDOW);
+        }
+        last = pgNo;
+
+        int upTo = Math.min(numPages - 1, pgNo + window);
+        for (int p = Math.max(issued, pgNo) + 1; p <= upTo; p++) {
+            PageId pid = new HeapPageId(file.getId(), p);
+            inFlight.put(p, executor.submit(() -> pool.prefetchPage(file, pid, ring)));
+        }
+        issued = Math.max(issued, upTo);
+    }
+
+    /** Cancels the reads that have not started yet. */
+    public void cancel() {
+        for (Iterator<Future<?>> it = inFlight.values().iterator(); it.hasNext(); ) {
+            it.next().cancel(false);
+            it.remove();
+        }
+    }
+
+    private static void await(Future<?> f) {
+        try {
+            f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // the scan reads the page itself
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package simpledb.storage;
+
+/**
+ * ScanRing is a small private set of buffer frames that a sequential scan
+ * cycles through, in the style of PostgreSQL's BufferAccessStrategy.
+ * <p>
+ * Pages that a scan brings into the BufferPool through its ring are visible
+ * to everyone, but they bypass the pool's eviction policy. When the scan
+ * needs a frame for its next page, it takes back the frame it filled
+ * {@link #size()} pages ago, so a scan of any length occupies only a few
+ * frames and never pushes hot pages out of the pool. A ring page that
+ * another caller requests is handed over to the eviction policy and treated
+ * as a normal page from then on.
+ *
+ * @see BufferPool#newScanRing(int)
+ * @see BufferPool#getPage(simpledb.transaction.TransactionId, PageId, simpledb.common.Permissions, ScanRing)
+ */
+public class ScanRing {
+    private final PageId[] slots;
+    private int next = 0;
+
+    /**
+     * @param size the number of frames the scan may occupy
+     */
+    public ScanRing(int size) {
+        if (size < 1) throw new IllegalArgumentException("a scan ring needs at least one frame");
+        this.slots = new PageId[size];
+    }
+
+    /** @return the number of frames in this ring */
+    public int size() {
+        return slots.length;
+    }
+
+    /**
+     * Records that the scan brought pid in through this ring.
+     *
+     * @return the page that occupied the slot before, whose frame the scan
+     *   should try to reuse, or null if the slot was empty
+     */
+    PageId advance(PageId pid) {
+        PageId old = slots[next];
+        slots[next] = pid;
+        next = (next + 1) % slots.length;
+        return old;
+    }
+}
@@ -4,6 +4,7 @@ import simpledb.common.Type;
 import simpledb.execution.Predicate;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Instance of Field that stores a single String of a fixed length.
@@ -69,6 +70,15 @@ public class StringField implements Field {
 			dos.write((byte) 0);
 	}
 
+	public void serialize(ByteBuffer buf) {
+		int len = Math.min(value.length(), maxSize);
+		buf.putInt(len);
+		// like DataOutputStream.writeBytes, keep the low byte of each char
+		for (int i = 0; i < len; i++)
+			buf.put((byte) value.charAt(i));
+		PageBuffers.putZeros(buf, maxSize - len);
+	}
+
 	/**
 	 * Compare the specified field to the value of this Field. Return semantics
 	 * are as specified by Field.compare
@@ -1,7 +1,10 @@
 package simpledb.storage;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
@@ -10,6 +13,11 @@ import java.util.NoSuchElementException;
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * A tuple read from a page may be backed by the page's bytes instead. Its
+ * fields are then decoded one at a time, the first time they are asked for,
+ * so a tuple that is looked at and thrown away costs little more than the
+ * fields that were looked at.
  */
 public class Tuple implements Serializable {
 
@@ -17,15 +25,15 @@ public class Tuple implements Serializable {
 
     private TupleDesc tupleDesc;
     private RecordId recordId;
-    private ArrayList<Field> fieldList;
+    // allocated on first use; fields not decoded yet are null
+    private Field[] fieldList;
+    // bytes the fields not decoded yet are read from, or null
+    private transient ByteBuffer source;
+    private int offset;
 
     private void reSetArrayList(){
-        fieldList = new ArrayList<>();
-        int len = tupleDesc.numFields();
-        while(len > 0){
-            len--;
-            fieldList.add(null);
-        }
+        fieldList = null;
+        source = null;
     }
     /**
      * Create a new tuple with the specified schema (type).
@@ -40,6 +48,60 @@ public class Tuple implements Serializable {
         reSetArrayList();
     }
 
+    /**
+     * Create a tuple whose fields are decoded from buf on demand. The tuple
+     * keeps reading buf until all of its fields have been decoded, so the
+     * bytes must not change in the meantime.
+     *
+     * @param td
+     *            the schema of this tuple
+     * @param buf
+     *            the buffer that holds the serialized tuple
+     * @param offset
+     *            the position of the tuple in buf
+     */
+    Tuple(TupleDesc td, ByteBuffer buf, int offset) {
+        this.tupleDesc = td;
+        this.source = buf;
+        this.offset = offset;
+    }
+
+    private Field decode(int i) {
+        try {
+            return tupleDesc.getFieldType(i).parse(source, offset + tupleDesc.getFieldOffset(i));
+        } catch (ParseException e) {
+            throw new NoSuchElementException("parsing error!");
+        }
+    }
+
+    /**
+     * Decodes every field that has not been decoded yet, and stops reading
+     * the buffer the tuple was created over.
+     */
+    void materialize() {
+        if (source == null) return;
+        int len = tupleDesc.numFields();
+        if (fieldList == null) fieldList = new Field[len];
+        for (int i = 0; i < len; i++) {
+            if (fieldList[i] == null) fieldList[i] = decode(i);
+        }
+        source = null;
+    }
+
+    /**
+     * Returns true if this tuple was created over buf and none of its fields
+     * has been changed since, i.e. its serialized form is still the bytes in
+     * buf.
+     */
+    boolean isBackedBy(ByteBuffer buf) {
+        return source != null && source == buf;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        materialize();
+        out.defaultWriteObject();
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -78,11 +140,14 @@ public class Tuple implements Serializable {
      */
     public void setField(int i, Field f) {
         // some code goes here
-        if (i<0 || i>= fieldList.size()){
+        if (i<0 || i>= tupleDesc.numFields()){
             throw new NoSuchElementException();
         }
 
-        fieldList.set(i, f);
+        // the raw bytes no longer describe this tuple
+        materialize();
+        if (fieldList == null) fieldList = new Field[tupleDesc.numFields()];
+        fieldList[i] = f;
     }
 
     /**
@@ -93,11 +158,20 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        if (i<0 || i>= fieldList.size()){
+        if (i<0 || i>= tupleDesc.numFields()){
             throw new NoSuchElementException();
         }
 
-        return fieldList.get(i);
+        if (fieldList == null) {
+            if (source == null) return null;
+            fieldList = new Field[tupleDesc.numFields()];
+        }
+        Field f = fieldList[i];
+        if (f == null && source != null) {
+            f = decode(i);
+            fieldList[i] = f;
+        }
+        return f;
 
     }
 
@@ -114,7 +188,7 @@ public class Tuple implements Serializable {
         StringBuilder stringBuilder = new StringBuilder(); 
         int lenFieldList = tupleDesc.numFields();
         for (int column = 0; column < lenFieldList; column++){
-            stringBuilder.append(fieldList.get(column).toString());
+            stringBuilder.append(getField(column).toString());
             if(column != lenFieldList - 1) stringBuilder.append("\t");
         }
         return stringBuilder.toString();
@@ -127,7 +201,9 @@ public class Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // some code goes here
-        return fieldList.iterator();
+        materialize();
+        if (fieldList == null) fieldList = new Field[tupleDesc.numFields()];
+        return Arrays.asList(fieldList).iterator();
     }
 
     /**
@@ -12,6 +12,9 @@ import java.util.*;
  */
 public class TupleDesc implements Serializable {
     private ArrayList<TDItem> tupleDescItemList;
+    // offsets[i] is where field i starts in a serialized tuple; the last
+    // entry is the size of the whole tuple
+    private int[] offsets;
 
 
 
@@ -75,7 +78,6 @@ public class TupleDesc implements Serializable {
                 TDItem tItem = new TDItem(typeAr[i], "unnamed");
                 tupleDescItemList.add(tItem);
             }
-            return;
         }else{
             //assumeTrue(len == fieldAr.length);
             
@@ -83,7 +85,12 @@ public class TupleDesc implements Serializable {
             TDItem tItem = new TDItem(typeAr[i], fieldAr[i]);
             tupleDescItemList.add(tItem);
             }
-        }    
+        }
+
+        offsets = new int[len + 1];
+        for (int i = 0; i < len; i++){
+            offsets[i + 1] = offsets[i] + typeAr[i].getLen();
+        }
     }
 
     /**
@@ -170,11 +177,20 @@ public class TupleDesc implements Serializable {
      */
     public int getSize() {
         // some code goes here
-        int size = 0;
-        for (int i = 0; i < tupleDescItemList.size(); i++){
-            size += tupleDescItemList.get(i).fieldType.getLen();
+        return offsets[offsets.length - 1];
+    }
+
+    /**
+     * @return the position (in bytes) of the ith field within a serialized
+     *         tuple of this TupleDesc.
+     * @param i
+     *            index of the field. It must be a valid index.
+     */
+    public int getFieldOffset(int i) {
+        if (i<0 || i>= numFields()){
+            throw new NoSuchElementException();
         }
-        return size;
+        return offsets[i];
     }
 
     /**
@@ -0,0 +1,110 @@
+package simpledb.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import simpledb.transaction.TransactionId;
+
+/**
+ * WaitsForGraph is the LockManager's record of which transactions wait for
+ * which. Its edges are kept per page: each waiting request of a page
+ * contributes an edge to every transaction it has to wait for there, and
+ * the LockManager replaces a page's edges whenever the page's lock entry
+ * changes.
+ * <p>
+ * Not thread-safe; the LockManager guards it with its own monitor, which is
+ * only ever taken while holding at most one lock entry's monitor.
+ */
+class WaitsForGraph {
+
+    /** for each page, the transactions each waiting request waits for */
+    private final Map<PageId, Map<PageLock, Set<TransactionId>>> edgesByPage = new HashMap<>();
+    /** the transactions each waiting request waits for, over all pages */
+    private final Map<PageLock, Set<TransactionId>> edgesOf = new HashMap<>();
+    /** the waiting requests of each transaction */
+    private final Map<TransactionId, Set<PageLock>> requestsOf = new HashMap<>();
+
+    /**
+     * Replaces the edges contributed by a page.
+     *
+     * @param edges the transactions each waiting request of the page waits for
+     * @return the transactions that gained an edge; any new cycle goes
+     *   through one of them
+     */
+    List<TransactionId> setEdges(PageId pid, Map<PageLock, Set<TransactionId>> edges) {
+        Map<PageLock, Set<TransactionId>> old = edges.isEmpty()
+                ? edgesByPage.remove(pid) : edgesByPage.put(pid, edges);
+        if (old == null) old = Collections.emptyMap();
+
+        for (PageLock request : old.keySet()) {
+            if (!edges.containsKey(request)) {
+                edgesOf.remove(request);
+                Set<PageLock> requests = requestsOf.get(request.getTid());
+                requests.remove(request);
+                if (requests.isEmpty()) requestsOf.remove(request.getTid());
+            }
+        }
+        List<TransactionId> grown = new ArrayList<>();
+        for (Map.Entry<PageLock, Set<TransactionId>> e : edges.entrySet()) {
+            PageLock request = e.getKey();
+            Set<TransactionId> before = old.get(request);
+            edgesOf.put(request, e.getValue());
+            if (before == null) {
+                requestsOf.computeIfAbsent(request.getTid(), k -> new HashSet<>()).add(request);
+            }
+            if (before == null ? !e.getValue().isEmpty() : !before.containsAll(e.getValue())) {
+                grown.add(request.getTid());
+            }
+        }
+        return grown;
+    }
+
+    /** The requests tid is waiting on, in any thread. */
+    Set<PageLock> requestsOf(TransactionId tid) {
+        Set<PageLock> requests = requestsOf.get(tid);
+        return requests == null ? Collections.emptySet() : requests;
+    }
+
+    private Set<TransactionId> waitsFor(TransactionId tid) {
+        Set<TransactionId> out = new HashSet<>();
+        for (PageLock request : requestsOf(tid)) {
+            out.addAll(edgesOf.get(request));
+        }
+        return out;
+    }
+
+    /**
+     * Looks for a cycle through start, ignoring the given transactions.
+     *
+     * @return the transactions on the cycle, starting with start, or null
+     */
+    List<TransactionId> findCycle(TransactionId start, Set<TransactionId> ignored) {
+        // iterative depth-first search; path holds the current branch
+        List<TransactionId> path = new ArrayList<>();
+        List<Iterator<TransactionId>> pending = new ArrayList<>();
+        Set<TransactionId> visited = new HashSet<>();
+        path.add(start);
+        pending.add(waitsFor(start).iterator());
+        visited.add(start);
+        while (!path.isEmpty()) {
+            Iterator<TransactionId> it = pending.get(pending.size() - 1);
+            if (!it.hasNext()) {
+                path.remove(path.size() - 1);
+                pending.remove(pending.size() - 1);
+                continue;
+            }
+            TransactionId next = it.next();
+            if (next.equals(start)) return path;
+            if (ignored.contains(next) || !visited.add(next)) continue;
+            path.add(next);
+            pending.add(waitsFor(next).iterator());
+        }
+        return null;
+    }
+}
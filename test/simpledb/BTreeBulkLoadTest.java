@@ -0,0 +1,191 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private BTreeFile createEmptyFile() throws Exception {
+		File f = File.createTempFile("bulk", ".dat");
+		f.deleteOnExit();
+		return BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+	}
+
+	/**
+	 * Scans the file and checks that it holds exactly the given tuples, in key order.
+	 */
+	private void checkContents(BTreeFile bf, List<List<Integer>> tuples) throws Exception {
+		List<List<Integer>> expected = new ArrayList<>(tuples);
+		expected.sort(Comparator.comparing(t -> t.get(0)));
+		List<Integer> keys = new ArrayList<>();
+		List<List<Integer>> found = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			List<Integer> t = BTreeUtility.tupleToList(it.next());
+			keys.add(t.get(0));
+			found.add(t);
+		}
+		it.close();
+		for(int i = 1; i < keys.size(); i++) {
+			assertTrue(keys.get(i - 1) <= keys.get(i));
+		}
+		assertEquals(expected.size(), found.size());
+		Set<List<Integer>> remaining = new HashSet<>(found);
+		for(List<Integer> t : expected) {
+			assertTrue(remaining.contains(t));
+		}
+	}
+
+	/**
+	 * Returns the number of tuples in each leaf page, from left to right.
+	 * A bulk loaded tree starts with its left-most leaf.
+	 */
+	private List<Integer> leafSizes(BTreeFile bf) {
+		List<Integer> sizes = new ArrayList<>();
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.LEAF);
+		while(pid != null) {
+			BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
+			sizes.add(page.getNumTuples());
+			pid = page.getRightSiblingId();
+		}
+		return sizes;
+	}
+
+	@Test
+	public void testLoadInMemory() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, null, tuples);
+		BTreeFile bf = createEmptyFile();
+
+		bf.bulkLoad(hf.iterator(tid));
+		checkContents(bf, tuples);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+		// the pages are packed: 502 tuples per leaf, and one internal page over them
+		int leaves = (20000 + 501) / 502;
+		assertEquals(leaves + 1, bf.numPages());
+	}
+
+	@Test
+	public void testLoadWithExternalSort() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, null, tuples);
+		BTreeFile bf = createEmptyFile();
+
+		// runs of 100 tuples: 200 runs, more than are merged at once
+		bf.bulkLoad(hf.iterator(tid), 1.0, 100 * bf.getTupleDesc().getSize());
+		checkContents(bf, tuples);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+		// every key can be found through the index
+		for(int i = 0; i < 20; i++) {
+			List<Integer> t = tuples.get(i * 1000);
+			IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(t.get(0)));
+			DbFileIterator it = bf.indexIterator(tid, ipred);
+			it.open();
+			boolean found = false;
+			while(it.hasNext()) {
+				found |= BTreeUtility.tupleToList(it.next()).equals(t);
+			}
+			it.close();
+			assertTrue(found);
+		}
+	}
+
+	@Test
+	public void testFillFactor() throws Exception {
+		// small pages so the tree has three levels
+		BufferPool.setPageSize(1024);
+		try {
+			List<List<Integer>> tuples = new ArrayList<>();
+			HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 30000, null, tuples);
+			BTreeFile bf = createEmptyFile();
+
+			bf.bulkLoad(hf.iterator(tid), 0.7);
+			checkContents(bf, tuples);
+			BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+			// 124 tuples fit on a leaf; each gets at most 70% of that, and the
+			// tuples are spread evenly
+			List<Integer> sizes = leafSizes(bf);
+			assertEquals((30000 + 85) / 86, sizes.size());
+			for(int size : sizes) {
+				assertTrue(size == 85 || size == 86);
+			}
+
+			// the free space takes inserts without splitting
+			Database.resetBufferPool(500);
+			int numPages = bf.numPages();
+			Random rand = new Random(1);
+			for(int i = 0; i < 200; i++) {
+				Database.getBufferPool().insertTuple(tid, bf.getId(),
+						BTreeUtility.getBTreeTuple(rand.nextInt(BTreeUtility.MAX_RAND_VALUE), 2));
+			}
+			assertEquals(numPages, bf.numPages());
+			BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		} finally {
+			Database.getBufferPool().transactionComplete(tid);
+			tid = new TransactionId();
+			BufferPool.resetPageSize();
+		}
+	}
+
+	@Test
+	public void testLoadNothing() throws Exception {
+		BTreeFile bf = createEmptyFile();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, new ArrayList<>());
+
+		bf.bulkLoad(hf.iterator(tid));
+		assertEquals(1, bf.numPages());
+
+		// the tree is usable afterwards
+		Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(5, 2));
+		checkContents(bf, Collections.singletonList(Arrays.asList(5, 5)));
+	}
+
+	@Test(expected = DbException.class)
+	public void testNotEmpty() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 1000, null, null, 0);
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+		bf.bulkLoad(hf.iterator(tid));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoadTest.class);
+	}
+}
@@ -0,0 +1,99 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.index.BTreeChecker;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Inserts into one B+ tree from several threads at once, each insert in a
+ * transaction of its own. Most inserts find room in their leaf page, so they
+ * should get there without locking the pages above it, and not queue up
+ * behind each other on the root.
+ */
+public class BTreeInsertThroughputTest extends SimpleDbTestBase {
+	private static final int THREADS = 8;
+	private static final int INSERTS_PER_THREAD = 200;
+	private static final int ROWS = 20000;
+
+	private BTreeFile bf;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before public void setUp() throws Exception {
+		// a tree with a few hundred leaf pages under one internal page
+		bf = BTreeUtility.createRandomBTreeFile(2, ROWS, null, null, 0);
+		Database.resetBufferPool(500);
+	}
+
+	/**
+	 * Runs THREADS inserters, each committing INSERTS_PER_THREAD inserts of random keys.
+	 * A transaction aborted to break a deadlock is retried.
+	 */
+	private void runInserters() throws Exception {
+		SystemTestUtil.runThreads(THREADS, thread -> {
+			Random rand = new Random(thread);
+			for(int j = 0; j < INSERTS_PER_THREAD; j++) {
+				Tuple t = BTreeUtility.getBTreeTuple(rand.nextInt(BTreeUtility.MAX_RAND_VALUE), 2);
+				while(true) {
+					TransactionId tid = new TransactionId();
+					try {
+						Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+						Database.getBufferPool().transactionComplete(tid);
+						break;
+					} catch (TransactionAbortedException e) {
+						Database.getBufferPool().transactionComplete(tid, false);
+					}
+				}
+			}
+		});
+	}
+
+	@Test public void testConcurrentInserts() throws Exception {
+		long restartsBefore = bf.getDescentRestartCount();
+		runInserters();
+		long restarts = bf.getDescentRestartCount() - restartsBefore;
+		int inserts = THREADS * INSERTS_PER_THREAD;
+
+		// every insert is there, in order
+		TransactionId tid = new TransactionId();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(ROWS + inserts, count);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		Database.getBufferPool().transactionComplete(tid);
+
+		// only the inserts that split a page, or ran into one being split, redo their descent
+		assertTrue("expected most descents to need no locks above the leaf, " + restarts + " were redone",
+				restarts < inserts / 2);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeInsertThroughputTest.class);
+	}
+
+}
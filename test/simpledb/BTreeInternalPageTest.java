@@ -174,12 +174,51 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.findChild()
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+
+		// delete every third entry, so that there are empty slots between the others
+		Iterator<BTreeEntry> it = page.iterator();
+		for (int i = 0; it.hasNext(); i++) {
+			BTreeEntry e = it.next();
+			if (i % 3 == 0)
+				page.deleteKeyAndRightChild(e);
+		}
+		List<BTreeEntry> entries = new ArrayList<>();
+		it = page.iterator();
+		while (it.hasNext())
+			entries.add(it.next());
+
+		assertEquals(entries.get(0).getLeftChild(), page.findChild(null));
+
+		// the left child of the first entry with a key at least as large, or the
+		// right child of the last entry
+		List<Integer> keys = new ArrayList<>(Arrays.asList(0, 70000));
+		for (BTreeEntry e : entries) {
+			keys.add(((IntField) e.getKey()).getValue());
+			keys.add(((IntField) e.getKey()).getValue() + 1);
+		}
+		for (int key : keys) {
+			BTreePageId expected = entries.get(entries.size() - 1).getRightChild();
+			for (BTreeEntry e : entries) {
+				if (((IntField) e.getKey()).getValue() >= key) {
+					expected = e.getLeftChild();
+					break;
+				}
+			}
+			assertEquals(expected, page.findChild(new IntField(key)));
+		}
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
 	@Test public void getNumEmptySlots() throws Exception {
 		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
-		assertEquals(483, page.getNumEmptySlots());
+		assertEquals(482, page.getNumEmptySlots());
 	}
 
 	/**
@@ -246,7 +285,7 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		int free = page.getNumEmptySlots();
 
 		// NOTE(ghuo): this nested loop existence check is slow, but it
-		// shouldn't make a difference for n = 503 slots.
+		// shouldn't make a difference for n = 502 slots.
 
 		for (int i = 0; i < free; ++i) {
 			BTreeEntry addition = BTreeUtility.getBTreeEntry(i+21, 70000+i, pid.getTableId());
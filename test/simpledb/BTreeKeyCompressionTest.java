@@ -0,0 +1,245 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeKeyCompressionTest extends SimpleDbTestBase {
+	private static final TupleDesc TD = new TupleDesc(new Type[]{Type.STRING_TYPE, Type.INT_TYPE});
+
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() {
+		tid = new TransactionId();
+		Database.resetBufferPool(500);
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private BTreeFile createStringKeyedFile() throws Exception {
+		File f = File.createTempFile("strkey", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = new BTreeFile(f, 0, TD);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
+	private static String key(int i) {
+		return String.format("customer-%08d", i);
+	}
+
+	private static Tuple tuple(String key, int value) {
+		Tuple t = new Tuple(TD);
+		t.setField(0, new StringField(key, Type.STRING_LEN));
+		t.setField(1, new IntField(value));
+		return t;
+	}
+
+	private BTreePage getRoot(BTreeFile bf) throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		return (BTreePage) Database.getBufferPool().getPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Checks that every key can be found through the index, with its value
+	 */
+	private void checkLookups(BTreeFile bf, Collection<Integer> keys) throws Exception {
+		for(int i : keys) {
+			DbFileIterator it = bf.indexIterator(tid,
+					new IndexPredicate(Op.EQUALS, new StringField(key(i), Type.STRING_LEN)));
+			it.open();
+			assertTrue(it.hasNext());
+			assertEquals(new IntField(i), it.next().getField(1));
+			assertFalse(it.hasNext());
+			it.close();
+		}
+	}
+
+	@Test
+	public void testSeparator() {
+		assertEquals(new StringField("b", Type.STRING_LEN), BTreeInternalPage.separator(
+				new StringField("apple", Type.STRING_LEN), new StringField("banana", Type.STRING_LEN)));
+		assertEquals(new StringField("customer-0000124", Type.STRING_LEN), BTreeInternalPage.separator(
+				new StringField("customer-00001233", Type.STRING_LEN), new StringField("customer-00001240", Type.STRING_LEN)));
+		// a key that is a prefix of the next one
+		assertEquals(new StringField("abc", Type.STRING_LEN), BTreeInternalPage.separator(
+				new StringField("ab", Type.STRING_LEN), new StringField("abcd", Type.STRING_LEN)));
+		// equal keys, and keys that are not strings, are not truncated
+		assertEquals(new StringField("abc", Type.STRING_LEN), BTreeInternalPage.separator(
+				new StringField("abc", Type.STRING_LEN), new StringField("abc", Type.STRING_LEN)));
+		assertEquals(new IntField(200), BTreeInternalPage.separator(new IntField(100), new IntField(200)));
+	}
+
+	@Test
+	public void testLeafPageRoundTrip() throws Exception {
+		BTreeFile bf = createStringKeyedFile();
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.LEAF);
+		BTreeLeafPage page = new BTreeLeafPage(pid, BTreePage.createEmptyPageData(), 0);
+
+		// keys with a long common prefix take a few bytes each, so many more fit
+		// than the page has room for at full length
+		int maxTuples = page.getMaxTuples();
+		int n = 0;
+		while(page.getNumEmptySlots() > 0) {
+			page.insertTuple(tuple(key(n * 7), n));
+			n++;
+		}
+		assertTrue(n > 5 * maxTuples);
+
+		BTreeLeafPage copy = new BTreeLeafPage(pid, page.getPageData(), 0);
+		assertEquals(n, copy.getNumTuples());
+		assertArrayEquals(page.getPageData(), copy.getPageData());
+		Iterator<Tuple> it = copy.iterator();
+		for(int i = 0; i < n; i++) {
+			Tuple t = it.next();
+			assertEquals(new StringField(key(i * 7), Type.STRING_LEN), t.getField(0));
+			assertEquals(new IntField(i), t.getField(1));
+		}
+		assertFalse(it.hasNext());
+	}
+
+	@Test
+	public void testInternalPageRoundTrip() throws Exception {
+		BTreeFile bf = createStringKeyedFile();
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL);
+		BTreeInternalPage page = new BTreeInternalPage(pid, BTreePage.createEmptyPageData(), 0);
+
+		// short separators take a few bytes each
+		int maxEntries = page.getMaxEntries();
+		int n = 0;
+		while(page.getNumEmptySlots() > 0) {
+			page.insertEntry(new BTreeEntry(new StringField("k" + (1000 + n), Type.STRING_LEN),
+					new BTreePageId(bf.getId(), n + 2, BTreePageId.LEAF),
+					new BTreePageId(bf.getId(), n + 3, BTreePageId.LEAF)));
+			n++;
+		}
+		assertTrue(n > 5 * maxEntries);
+
+		BTreeInternalPage copy = new BTreeInternalPage(pid, page.getPageData(), 0);
+		assertEquals(n, copy.getNumEntries());
+		assertArrayEquals(page.getPageData(), copy.getPageData());
+		Iterator<BTreeEntry> it = copy.iterator();
+		for(int i = 0; i < n; i++) {
+			BTreeEntry e = it.next();
+			assertEquals(new StringField("k" + (1000 + i), Type.STRING_LEN), e.getKey());
+			assertEquals(i + 2, e.getLeftChild().getPageNumber());
+			assertEquals(i + 3, e.getRightChild().getPageNumber());
+		}
+		assertFalse(it.hasNext());
+	}
+
+	@Test
+	public void testInsertAndDelete() throws Exception {
+		BTreeFile bf = createStringKeyedFile();
+		List<Integer> keys = new ArrayList<>();
+		for(int i = 0; i < 20000; i++) {
+			keys.add(i);
+		}
+		Collections.shuffle(keys, new Random(1));
+		for(int i : keys) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(key(i), i));
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		checkLookups(bf, keys.subList(0, 500));
+
+		// with keys at full length this takes three levels; compressed, the root
+		// sits right above the leaves
+		BTreeInternalPage root = (BTreeInternalPage) getRoot(bf);
+		assertEquals(BTreePageId.LEAF, root.iterator().next().getLeftChild().pgcateg());
+
+		// delete most of the tuples, merging and redistributing pages
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		List<Tuple> toDelete = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			if(((IntField) t.getField(1)).getValue() % 10 != 0) {
+				toDelete.add(t);
+			}
+		}
+		it.close();
+		Collections.shuffle(toDelete, new Random(2));
+		for(Tuple t : toDelete) {
+			Database.getBufferPool().deleteTuple(tid, t);
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+		List<Integer> remaining = new ArrayList<>();
+		for(int i = 0; i < 20000; i += 10) {
+			remaining.add(i);
+		}
+		checkLookups(bf, remaining);
+		int count = 0;
+		it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(remaining.size(), count);
+	}
+
+	@Test
+	public void testBulkLoad() throws Exception {
+		// the unsorted tuples take about 700 pages
+		Database.resetBufferPool(1000);
+		File hfile = File.createTempFile("strheap", ".dat");
+		hfile.deleteOnExit();
+		HeapFile hf = new HeapFile(hfile, TD);
+		Database.getCatalog().addTable(hf, UUID.randomUUID().toString());
+		List<Integer> keys = new ArrayList<>();
+		for(int i = 0; i < 20000; i++) {
+			keys.add(i);
+		}
+		Collections.shuffle(keys, new Random(3));
+		for(int i : keys) {
+			Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(key(i), i));
+		}
+
+		// runs of 1000 tuples, so the sorted tuples come back from the run files
+		// when the pages are laid out and again when they are written
+		BTreeFile bf = createStringKeyedFile();
+		bf.bulkLoad(hf.iterator(tid), 0.7, 1000 * TD.getSize());
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		checkLookups(bf, keys.subList(0, 500));
+
+		// the leaves are filled by the space their tuples take, not by their number
+		int maxTuples = new BTreeLeafPage(new BTreePageId(bf.getId(), 1, BTreePageId.LEAF),
+				BTreePage.createEmptyPageData(), 0).getMaxTuples();
+		assertTrue(bf.numPages() < 20000 / (5 * maxTuples));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeKeyCompressionTest.class);
+	}
+}
@@ -196,6 +196,41 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.iterator(Field)
+	 */
+	@Test public void testIteratorFrom() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+
+		// delete every third tuple, so that there are empty slots between the others
+		List<Integer> keys = new ArrayList<>();
+		Iterator<Tuple> it = page.iterator();
+		for (int i = 0; it.hasNext(); i++) {
+			Tuple tup = it.next();
+			if (i % 3 == 0)
+				page.deleteTuple(tup);
+			else
+				keys.add(((IntField) tup.getField(0)).getValue());
+		}
+
+		// start before, at, between and after the keys on the page
+		List<Integer> starts = new ArrayList<>(Arrays.asList(0, 70000));
+		for (int key : keys) {
+			starts.add(key);
+			starts.add(key + 1);
+		}
+		for (int start : starts) {
+			it = page.iterator(new IntField(start));
+			for (int key : keys) {
+				if (key >= start) {
+					assertTrue(it.hasNext());
+					assertEquals(new IntField(key), it.next().getField(0));
+				}
+			}
+			assertFalse(it.hasNext());
+		}
+	}
+
 	/**
 	 * Unit test for BTreeLeafPage.getNumEmptySlots()
 	 */
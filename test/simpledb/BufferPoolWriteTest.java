@@ -1,8 +1,6 @@
 package simpledb;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -42,10 +40,8 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     		List<Page> dirtypages = new ArrayList<>();
     		for(int i = 0; i < duplicates; i++) {
     			// create a blank page
-    			BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(super.getFile(), true));
-                byte[] emptyData = HeapPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
+    			super.writePage(new HeapPage(new HeapPageId(super.getId(), super.numPages()),
+    					HeapPage.createEmptyPageData()));
     			HeapPage p = new HeapPage(new HeapPageId(super.getId(), super.numPages() - 1),
     					HeapPage.createEmptyPageData());
     	        p.insertTuple(t);
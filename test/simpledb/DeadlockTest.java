@@ -7,11 +7,14 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.storage.BufferPool;
+import simpledb.storage.DeadlockVictimPolicy;
 import simpledb.storage.HeapPageId;
 import simpledb.storage.PageId;
 import simpledb.transaction.TransactionId;
@@ -219,6 +222,49 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * Builds the deadlock of testReadWriteDeadlock once, with tid2 also
+   * holding a read lock on p2 when extraLockForTid2 is set, and returns the
+   * grabbers of the two write locks.
+   */
+  private LockGrabber[] readWriteDeadlock(boolean extraLockForTid2) throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid2, p1, Permissions.READ_ONLY);
+    if (extraLockForTid2) bp.getPage(tid2, new HeapPageId(empty.getId(), 2), Permissions.READ_ONLY);
+
+    LockGrabber lg1Write = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL / 5);
+    LockGrabber lg2Write = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    lg1Write.join(POLL_INTERVAL);
+    lg2Write.join(POLL_INTERVAL);
+    return new LockGrabber[] { lg1Write, lg2Write };
+  }
+
+  /**
+   * The deadlock is found as soon as it forms, and by default the younger
+   * transaction is aborted.
+   */
+  @Test public void testYoungestVictimAbortedAtOnce() throws Exception {
+    long deadlocks = bp.getDeadlockCount();
+    LockGrabber[] lg = readWriteDeadlock(false);
+
+    assertNotNull(lg[1].getError());
+    assertTrue(lg[0].acquired());
+    assertEquals(deadlocks + 1, bp.getDeadlockCount());
+  }
+
+  /**
+   * With the fewestLocks policy the transaction holding fewer locks is
+   * aborted, even though it is the older one.
+   */
+  @Test public void testFewestLocksVictim() throws Exception {
+    bp.setDeadlockVictimPolicy(DeadlockVictimPolicy.fewestLocks());
+    LockGrabber[] lg = readWriteDeadlock(true);
+
+    assertNotNull(lg[0].getError());
+    assertTrue(lg[1].acquired());
+  }
+
   /**
    * JUnit suite target
    */
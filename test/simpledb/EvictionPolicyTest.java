@@ -0,0 +1,179 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+public class EvictionPolicyTest {
+
+    /** Minimal resident page; only the id and dirty bit matter to a policy. */
+    private static class DummyPage implements Page {
+        private final PageId pid;
+        private TransactionId dirtier;
+
+        DummyPage(PageId pid) {
+            this.pid = pid;
+        }
+
+        public PageId getId() { return pid; }
+        public TransactionId isDirty() { return dirtier; }
+        public void markDirty(boolean dirty, TransactionId tid) { dirtier = dirty ? tid : null; }
+        public byte[] getPageData() { return new byte[0]; }
+        public Page withPageData(byte[] data) { return this; }
+        public Page getBeforeImage() { return this; }
+        public void setBeforeImage() { }
+    }
+
+    /**
+     * Drives a single policy the way a PageTable partition does, evicting
+     * whenever more than capacity pages are resident.
+     */
+    private static class Harness {
+        final EvictionPolicy policy;
+        final int capacity;
+        final Map<PageId, PageFrame> frames = new HashMap<>();
+
+        Harness(EvictionPolicy.Factory factory, int capacity) {
+            this.policy = factory.create(capacity);
+            this.capacity = capacity;
+        }
+
+        void read(int pgNo) {
+            PageId pid = new HeapPageId(1, pgNo);
+            PageFrame f = frames.get(pid);
+            if (f != null) {
+                policy.access(f);
+                return;
+            }
+            if (frames.size() >= capacity) {
+                PageFrame victim = policy.victim(p -> p.isDirty() == null);
+                assertNotNull(victim);
+                frames.remove(victim.getId());
+                policy.remove(victim);
+            }
+            frames.put(pid, policy.admit(pid, new DummyPage(pid)));
+        }
+
+        boolean resident(int pgNo) {
+            return frames.containsKey(new HeapPageId(1, pgNo));
+        }
+    }
+
+    private static final EvictionPolicy.Factory[] ALL = {
+            EvictionPolicy.lru(), EvictionPolicy.clock(), EvictionPolicy.clockPro(), EvictionPolicy.lruK(2)
+    };
+
+    @Test public void emptyPolicyHasNoVictim() {
+        for (EvictionPolicy.Factory factory : ALL) {
+            assertNull(factory.create(4).victim(p -> true));
+        }
+    }
+
+    @Test public void victimRespectsPredicate() {
+        for (EvictionPolicy.Factory factory : ALL) {
+            EvictionPolicy policy = factory.create(8);
+            PageFrame clean = null;
+            for (int i = 0; i < 8; i++) {
+                PageId pid = new HeapPageId(1, i);
+                DummyPage page = new DummyPage(pid);
+                PageFrame f = policy.admit(pid, page);
+                if (i == 5) clean = f;
+                else page.markDirty(true, new TransactionId());
+                policy.access(f);
+            }
+            assertSame(clean, policy.victim(p -> p.isDirty() == null));
+            policy.remove(clean);
+            assertNull(policy.victim(p -> p.isDirty() == null));
+        }
+    }
+
+    @Test public void everyPageCanBeEvicted() {
+        for (EvictionPolicy.Factory factory : ALL) {
+            Harness h = new Harness(factory, 8);
+            for (int i = 0; i < 100; i++) {
+                h.read(i % 20);
+                h.read(i % 3);
+            }
+            while (!h.frames.isEmpty()) {
+                PageFrame victim = h.policy.victim(p -> true);
+                assertNotNull(victim);
+                assertTrue(h.frames.remove(victim.getId()) != null);
+                h.policy.remove(victim);
+            }
+            assertNull(h.policy.victim(p -> true));
+        }
+    }
+
+    @Test public void lruEvictsLeastRecentlyUsed() {
+        Harness h = new Harness(EvictionPolicy.lru(), 3);
+        h.read(0);
+        h.read(1);
+        h.read(2);
+        h.read(0);
+        h.read(3);
+        assertFalse(h.resident(1));
+        assertTrue(h.resident(0));
+    }
+
+    @Test public void clockGivesReferencedPagesASecondChance() {
+        Harness h = new Harness(EvictionPolicy.clock(), 3);
+        h.read(0);
+        h.read(1);
+        h.read(2);
+        h.read(0);
+        h.read(3);
+        assertTrue(h.resident(0));
+        assertFalse(h.resident(1));
+    }
+
+    /** A long scan of pages read once must not push out a small hot set. */
+    private static void assertScanResistant(EvictionPolicy.Factory factory) {
+        Harness h = new Harness(factory, 16);
+        for (int round = 0; round < 5; round++) {
+            for (int hot = 0; hot < 4; hot++) h.read(hot);
+            h.read(1000 + round);
+        }
+        for (int i = 0; i < 500; i++) {
+            h.read(2000 + i);
+            if (i % 40 == 0) {
+                for (int hot = 0; hot < 4; hot++) h.read(hot);
+            }
+        }
+        for (int hot = 0; hot < 4; hot++) {
+            assertTrue("hot page " + hot + " was evicted by the scan", h.resident(hot));
+        }
+    }
+
+    @Test public void clockProIsScanResistant() {
+        assertScanResistant(EvictionPolicy.clockPro());
+    }
+
+    @Test public void lruKIsScanResistant() {
+        assertScanResistant(EvictionPolicy.lruK(2));
+    }
+
+    @Test public void clockProPromotesPagesReadAgainAfterEviction() {
+        Harness h = new Harness(EvictionPolicy.clockPro(), 4);
+        for (int i = 0; i < 6; i++) h.read(i);
+        assertFalse(h.resident(0));
+        // page 0 is still remembered, so this read makes it hot ...
+        h.read(0);
+        // ... and a burst of new pages does not push it out again
+        for (int i = 100; i < 103; i++) h.read(i);
+        assertTrue(h.resident(0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
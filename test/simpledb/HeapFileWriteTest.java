@@ -7,12 +7,15 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
+import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionId;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -90,6 +93,95 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * Unit test for HeapFile.insertTuples()
+     */
+    @Test public void insertTuples() throws Exception {
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 504 * 2 + 1; ++i) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        List<Page> pages = empty.insertTuples(tid, tuples.iterator());
+        assertEquals(3, empty.numPages());
+        assertEquals(3, pages.size());
+        for (int i = 0; i < pages.size(); i++) {
+            assertEquals(i, pages.get(i).getId().getPageNumber());
+            assertEquals(tid, pages.get(i).isDirty());
+        }
+        for (Tuple t : tuples) {
+            assertNotNull(t.getRecordId());
+        }
+        assertEquals(0, ((HeapPage) pages.get(1)).getNumEmptySlots());
+        assertEquals(503, ((HeapPage) pages.get(2)).getNumEmptySlots());
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuple() going straight to a page with room
+     */
+    @Test public void insertSkipsFullPages() throws Exception {
+        Tuple onSecondPage = null;
+        for (int i = 0; i < 504 * 3; ++i) {
+            Tuple t = Utility.getHeapTuple(i, 2);
+            empty.insertTuple(tid, t);
+            if (i == 504) onSecondPage = t;
+        }
+        assertEquals(3, empty.numPages());
+        empty.deleteTuple(tid, onSecondPage);
+        Database.getBufferPool().transactionComplete(tid);
+
+        // the insert must not wait for the full page another transaction has locked
+        TransactionId other = new TransactionId();
+        Database.getBufferPool().getPage(other, new HeapPageId(empty.getId(), 0), Permissions.READ_WRITE);
+        tid = new TransactionId();
+        empty.insertTuple(tid, Utility.getHeapTuple(7, 2));
+        assertEquals(3, empty.numPages());
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 0)));
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 1)));
+    }
+
+    /**
+     * Unit test for the free space of a page coming back when the
+     * transaction that filled it aborts
+     */
+    @Test public void abortRestoresFreeSpace() throws Exception {
+        for (int i = 0; i < 504; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(1, empty.numPages());
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        empty.insertTuple(tid, Utility.getHeapTuple(7, 2));
+        assertEquals(1, empty.numPages());
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 0)));
+    }
+
+    /**
+     * Unit test for the free space map surviving a reopen of the HeapFile
+     */
+    @Test public void freeSpaceMapPersists() throws Exception {
+        for (int pgNo = 0; pgNo < 3; pgNo++) {
+            HeapPage page = new HeapPage(new HeapPageId(empty.getId(), pgNo), HeapPage.createEmptyPageData());
+            int room = pgNo == 1 ? 1 : 0;
+            while (page.getNumEmptySlots() > room) {
+                page.insertTuple(Utility.getHeapTuple(pgNo, 2));
+            }
+            empty.writePage(page);
+        }
+
+        // the insert must not wait for the full page another transaction has
+        // locked; the page is read before the file is reopened, so only the
+        // saved map can tell the new HeapFile it is full
+        TransactionId other = new TransactionId();
+        Database.getBufferPool().getPage(other, new HeapPageId(empty.getId(), 0), Permissions.READ_WRITE);
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+        reopened.insertTuple(tid, Utility.getHeapTuple(7, 2));
+        assertEquals(3, reopened.numPages());
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(reopened.getId(), 0)));
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(reopened.getId(), 1)));
+    }
+
     /**
      * JUnit suite target
      */
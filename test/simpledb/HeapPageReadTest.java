@@ -2,6 +2,7 @@ package simpledb;
 
 import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.Database;
+import simpledb.common.Type;
 import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -9,13 +10,16 @@ import simpledb.systemtest.SystemTestUtil;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import org.junit.Before;
 import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
 public class HeapPageReadTest extends SimpleDbTestBase {
@@ -123,6 +127,35 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Fields are decoded only when asked for: a tuple whose second field is
+     * garbage still yields its first field, and the page still serializes
+     * to the bytes it was read from.
+     */
+    @Test public void fieldsDecodedOnDemand() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        Database.getCatalog().addTable(new SkeletonFile(-2, td), SystemTestUtil.getUUID());
+        HeapPageId id = new HeapPageId(-2, 0);
+
+        byte[] data = HeapPage.createEmptyPageData();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        int headerSize = (int) Math.ceil(BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1) / 8.0);
+        buf.put(0, (byte) 1);
+        buf.putInt(headerSize, 7);
+        buf.putInt(headerSize + 4, Type.STRING_LEN + 1); // not a valid string length
+
+        HeapPage page = new HeapPage(id, data);
+        Tuple t = page.iterator().next();
+        assertEquals(7, ((IntField) t.getField(0)).getValue());
+        try {
+            t.getField(1);
+            fail("the string field should not parse");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+        assertArrayEquals(data, page.getPageData());
+    }
+
     /**
      * JUnit suite target
      */
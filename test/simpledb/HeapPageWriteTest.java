@@ -1,5 +1,6 @@
 package simpledb;
 
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -12,6 +13,7 @@ import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
 import simpledb.storage.HeapPage;
 import simpledb.storage.HeapPageId;
 import simpledb.storage.Tuple;
@@ -132,6 +134,27 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.writePageData() into a reused buffer
+     */
+    @Test public void writePageDataReusesBuffer() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        page.deleteTuple(page.iterator().next());
+
+        ByteBuffer buf = ByteBuffer.allocateDirect(BufferPool.getPageSize());
+        // leave garbage behind from an earlier page
+        while (buf.hasRemaining()) buf.put((byte) 0x5a);
+        buf.position(17);
+
+        page.writePageData(buf);
+        assertEquals(0, buf.position());
+        assertEquals(BufferPool.getPageSize(), buf.limit());
+        byte[] written = new byte[buf.remaining()];
+        buf.get(written);
+        assertArrayEquals(page.getPageData(), written);
+    }
+
     /**
      * JUnit suite target
      */
@@ -3,6 +3,8 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertNull;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
@@ -193,6 +195,55 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.transactionComplete() assuming locking.
+   * Completing a transaction releases all of its locks and only its locks.
+   */
+  @Test public void completeReleasesOwnLocks() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    bp.getPage(tid2, p1, Permissions.READ_ONLY);
+
+    bp.transactionComplete(tid1);
+    assertFalse(bp.holdsLock(tid1, p0));
+    assertFalse(bp.holdsLock(tid1, p1));
+    assertTrue(bp.holdsLock(tid2, p1));
+    grabLock(tid2, p0, Permissions.READ_WRITE, true);
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A transaction waiting for a lock gets it as soon as the lock is released.
+   */
+  @Test public void waiterGrantedOnRelease() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    t.start();
+    Thread.sleep(TIMEOUT / 2);
+    assertFalse(t.acquired());
+
+    bp.transactionComplete(tid1);
+    t.join(TIMEOUT);
+    assertTrue(t.acquired());
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * Locks are granted in the order they are asked for, so a queued write
+   * lock keeps later read locks from jumping ahead of it.
+   */
+  @Test public void queuedWriteBlocksLaterReads() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT / 5);
+
+    TransactionId tid3 = new TransactionId();
+    grabLock(tid3, p0, Permissions.READ_ONLY, false);
+    assertFalse(writer.acquired());
+    writer.stop();
+  }
+
   /**
    * JUnit suite target
    */
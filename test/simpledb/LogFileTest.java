@@ -0,0 +1,265 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class LogFileTest extends SimpleDbTestBase {
+
+    private File file;
+    private LogFile log;
+    private HeapPageId pid;
+
+    @Before public void createLog() throws Exception {
+        file = File.createTempFile("LogFileTest", ".log");
+        file.deleteOnExit();
+        log = new LogFile(file);
+        pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    @After public void deleteLog() {
+        for (File segment : log.getSegmentFiles()) {
+            segment.delete();
+        }
+        file.delete();
+    }
+
+    /** Returns the number of log bytes in the segment files. */
+    private long logBytes() {
+        long bytes = 0;
+        for (File segment : log.getSegmentFiles()) {
+            bytes += segment.length();
+        }
+        return bytes;
+    }
+
+    private long logInsert(TransactionId tid) throws Exception {
+        HeapPage before = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        HeapPage after = new HeapPage(pid, before.getPageData());
+        after.insertTuple(Utility.getHeapTuple(new int[] { 1, 2 }));
+        return log.logWrite(tid, before, after);
+    }
+
+    /** Records get increasing LSNs, and stay in the log buffer until forced. */
+    @Test public void recordsAreBuffered() throws Exception {
+        TransactionId tid = new TransactionId();
+        long begin = log.logXactionBegin(tid);
+        long update = logInsert(tid);
+        assertTrue(update > begin);
+        assertTrue(log.getEndLsn() > update);
+        assertTrue(log.getDurableLsn() <= begin);
+        // only the checkpoint pointer has reached the disk
+        assertEquals(8, file.length());
+        assertEquals(0, logBytes());
+
+        log.force(update);
+        assertTrue(log.getDurableLsn() > update);
+        assertEquals(log.getEndLsn(), log.getDurableLsn());
+        assertEquals(log.getEndLsn(), logBytes());
+    }
+
+    /** Forcing an LSN that is already on disk does not force again. */
+    @Test public void forceOnlyWhenNeeded() throws Exception {
+        TransactionId tid = new TransactionId();
+        long begin = log.logXactionBegin(tid);
+        log.force(begin);
+        long forces = log.getForceCount();
+        log.force(begin);
+        assertEquals(forces, log.getForceCount());
+
+        long update = logInsert(tid);
+        log.force(update);
+        assertEquals(forces + 1, log.getForceCount());
+    }
+
+    /** A full log buffer is written out without forcing it. */
+    @Test public void fullBufferIsWritten() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long forces = log.getForceCount();
+        while (logBytes() == 0) {
+            logInsert(tid);
+        }
+        assertEquals(forces, log.getForceCount());
+        assertTrue(log.getEndLsn() > logBytes());
+    }
+
+    @Test public void commitIsDurable() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        logInsert(tid);
+        log.logCommit(tid);
+        assertEquals(log.getEndLsn(), log.getDurableLsn());
+        assertEquals(log.getEndLsn(), logBytes());
+        assertEquals(3, log.getTotalRecords());
+    }
+
+    /**
+     * The log is split into segments; truncation deletes the old ones and
+     * leaves the LSNs of the records that stay as they were.
+     */
+    @Test public void truncationDeletesSegments() throws Exception {
+        log = new LogFile(file, 1024);
+        long lastUpdate = -1;
+        for (int i = 0; i < 100; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            lastUpdate = logInsert(tid);
+            log.logCommit(tid);
+        }
+        List<File> before = log.getSegmentFiles();
+        assertTrue(before.size() > 5);
+        assertEquals(log.getEndLsn(), logBytes());
+
+        // the page is written and synced by the checkpoint, so nothing
+        // before the checkpoint is needed any more
+        log.pageWritten(pid, lastUpdate);
+        long end = log.getEndLsn();
+        log.logCheckpoint();
+        List<File> after = log.getSegmentFiles();
+        assertTrue(after.size() <= 2);
+        assertFalse(after.contains(before.get(0)));
+        assertFalse(before.get(0).exists());
+        assertTrue(log.getEndLsn() > end);
+
+        // appends go on from where they were
+        TransactionId tid = new TransactionId();
+        assertEquals(log.getEndLsn(), log.logXactionBegin(tid));
+    }
+
+    /** A log in several segments is read back across their boundaries. */
+    @Test public void reopenSegments() throws Exception {
+        log = new LogFile(file, 100);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        for (int i = 0; i < 10; i++) {
+            logInsert(tid);
+        }
+        log.logCommit(tid);
+        long end = log.getEndLsn();
+        assertTrue(log.getSegmentFiles().size() > 3);
+
+        log = new LogFile(file, 100);
+        assertEquals(end, log.getEndLsn());
+        // the skeleton table cannot read pages; with it gone, recovery
+        // reads every record and skips redo
+        Database.getCatalog().clear();
+        log.recover();
+        assertTrue(log.getEndLsn() > end);
+    }
+
+    /**
+     * A committed update to a page the data file was extended with is
+     * redone when a crash lost the extension, and the pages before it that
+     * were lost with it come back empty.
+     */
+    @Test public void redoPagePastEndOfFile() throws Exception {
+        File data = File.createTempFile("LogFileTest", ".dat");
+        data.deleteOnExit();
+        HeapFile hf = new HeapFile(data, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        HeapPageId third = new HeapPageId(hf.getId(), 2);
+        HeapPage before = new HeapPage(third, HeapPage.createEmptyPageData());
+        HeapPage after = new HeapPage(third, HeapPage.createEmptyPageData());
+        after.insertTuple(Utility.getHeapTuple(new int[] { 1, 2 }));
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logWrite(tid, before, after);
+        log.logCommit(tid);
+
+        for (int i = 0; i < 3; i++) {
+            hf.writePage(new HeapPage(new HeapPageId(hf.getId(), i), HeapPage.createEmptyPageData()));
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(data, "rw")) {
+            raf.setLength(0);
+        }
+        hf = new HeapFile(data, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        log.recover();
+
+        hf = new HeapFile(data, Utility.getTupleDesc(2));
+        assertEquals(3, hf.numPages());
+        assertEquals(after.getNumEmptySlots(), ((HeapPage) hf.readPage(third)).getNumEmptySlots());
+        assertEquals(before.getNumEmptySlots(),
+                ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 1))).getNumEmptySlots());
+    }
+
+    /** A page stays in the dirty-page table until its write is synced. */
+    @Test public void dirtyPageTable() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long first = logInsert(tid);
+        long second = logInsert(tid);
+        assertEquals(Long.valueOf(first), log.getDirtyPages().get(pid));
+
+        // written up to the first update only
+        log.pageWritten(pid, first);
+        assertEquals(0, log.syncPages());
+        assertEquals(Long.valueOf(second), log.getDirtyPages().get(pid));
+
+        // a checkpoint does not write pages, and keeps what redo needs
+        log.logCheckpoint();
+        assertEquals(Long.valueOf(second), log.getDirtyPages().get(pid));
+
+        log.pageWritten(pid, second);
+        assertEquals(1, log.syncPages());
+        assertTrue(log.getDirtyPages().isEmpty());
+    }
+
+    /** A checkpoint does not need the buffer pool. */
+    @Test(timeout = 10000) public void checkpointWhileBufferPoolBusy() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        logInsert(tid);
+
+        final CountDownLatch holding = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            synchronized (Database.getBufferPool()) {
+                holding.countDown();
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        holder.start();
+        holding.await();
+        try {
+            log.logCheckpoint();
+        } finally {
+            done.countDown();
+            holder.join();
+        }
+        assertTrue(log.getDirtyPages().containsKey(pid));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
@@ -0,0 +1,101 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class MappedHeapFileTest extends SimpleDbTestBase {
+    private List<List<Integer>> tuples;
+    private HeapFile mapped;
+    private HeapFile plain;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before
+    public void setUp() throws Exception {
+        tuples = new ArrayList<>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 3000, 1000, null, tuples);
+        TupleDesc td = Utility.getTupleDesc(2);
+        mapped = new HeapFile(f, td, true);
+        Database.getCatalog().addTable(mapped, SystemTestUtil.getUUID());
+        plain = new HeapFile(f, td);
+    }
+
+    private static HeapPage fullPage(HeapPageId pid, int value) throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        while (page.getNumEmptySlots() > 0) {
+            page.insertTuple(Utility.getHeapTuple(value, 2));
+        }
+        return page;
+    }
+
+    @Test
+    public void scan() throws Exception {
+        assertTrue(mapped.isMemoryMapped());
+        SystemTestUtil.matchTuples(mapped, tuples);
+    }
+
+    @Test
+    public void readPageMatchesChannelRead() {
+        for (int i = 0; i < mapped.numPages(); i++) {
+            HeapPageId pid = new HeapPageId(mapped.getId(), i);
+            assertArrayEquals(plain.readPage(pid).getPageData(), mapped.readPage(pid).getPageData());
+        }
+    }
+
+    @Test
+    public void readPageAfterGrowth() throws Exception {
+        int pgNo = mapped.numPages();
+        HeapPageId pid = new HeapPageId(mapped.getId(), pgNo);
+        // map the file at its current length first
+        mapped.readPage(new HeapPageId(mapped.getId(), 0));
+
+        mapped.writePage(fullPage(pid, 7));
+        assertEquals(pgNo + 1, mapped.numPages());
+        HeapPage page = (HeapPage) mapped.readPage(pid);
+        assertEquals(0, page.getNumEmptySlots());
+        Iterator<Tuple> it = page.iterator();
+        assertEquals(7, ((IntField) it.next().getField(0)).getValue());
+    }
+
+    @Test
+    public void writesShowUpInMapping() throws Exception {
+        HeapPageId pid = new HeapPageId(mapped.getId(), 0);
+        mapped.readPage(pid);
+
+        mapped.writePage(fullPage(pid, 42));
+        HeapPage after = (HeapPage) mapped.readPage(pid);
+        assertEquals(0, after.getNumEmptySlots());
+        assertEquals(42, ((IntField) after.iterator().next().getField(0)).getValue());
+    }
+
+    @Test
+    public void beforeImageSurvivesModification() throws Exception {
+        HeapPageId pid = new HeapPageId(mapped.getId(), 0);
+        HeapPage page = (HeapPage) mapped.readPage(pid);
+        byte[] original = page.getPageData();
+
+        page.deleteTuple(page.iterator().next());
+        // the modified page is written back over the mapped bytes
+        mapped.writePage(page);
+        assertArrayEquals(original, page.getBeforeImage().getPageData());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MappedHeapFileTest.class);
+    }
+}
@@ -0,0 +1,128 @@
+package simpledb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Page;
+import simpledb.storage.PageDelta;
+import simpledb.storage.RecordId;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+
+    @Before public void addTable() {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    private HeapPage insertOne(HeapPage page) throws Exception {
+        HeapPage after = new HeapPage(pid, page.getPageData());
+        after.insertTuple(Utility.getHeapTuple(new int[] { 12345, 67890 }));
+        return after;
+    }
+
+    /**
+     * Inserting a tuple changes a header byte and one slot; the delta holds
+     * just those bytes.
+     */
+    @Test public void insertIsSmall() throws Exception {
+        HeapPage before = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        HeapPage after = insertOne(before);
+
+        PageDelta delta = PageDelta.diff(before, after);
+        assertEquals(pid, delta.getPageId());
+        assertEquals(2, delta.numRanges());
+        assertTrue(delta.changedBytes() <= 1 + 8);
+    }
+
+    @Test public void noChange() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        PageDelta delta = PageDelta.diff(page, new HeapPage(pid, page.getPageData()));
+        assertEquals(0, delta.numRanges());
+        assertArrayEquals(page.getPageData(), delta.redo(page).getPageData());
+    }
+
+    /** redo turns the before image into the after image, and undo back. */
+    @Test public void redoAndUndo() throws Exception {
+        HeapPage before = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        HeapPage after = insertOne(before);
+        Tuple victim = after.iterator().next();
+        after.deleteTuple(victim);
+
+        PageDelta delta = PageDelta.diff(before, after);
+        Page redone = delta.redo(before);
+        assertTrue(redone instanceof HeapPage);
+        assertArrayEquals(after.getPageData(), redone.getPageData());
+        assertArrayEquals(before.getPageData(), delta.undo(after).getPageData());
+        assertEquals(before.getNumEmptySlots(), ((HeapPage) delta.undo(redone)).getNumEmptySlots());
+    }
+
+    /** Bytes outside the changed ranges are left as the page has them. */
+    @Test public void redoKeepsOtherChanges() throws Exception {
+        HeapPage before = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        HeapPage after = insertOne(before);
+        PageDelta delta = PageDelta.diff(before, after);
+
+        // a page on which some other tuple was deleted in the meantime
+        HeapPage other = new HeapPage(pid, before.getPageData());
+        Tuple last = null;
+        for (Iterator<Tuple> it = other.iterator(); it.hasNext(); ) last = it.next();
+        RecordId deleted = last.getRecordId();
+        other.deleteTuple(last);
+
+        HeapPage redone = (HeapPage) delta.redo(other);
+        assertFalse(redone.isSlotUsed(deleted.getTupleNumber()));
+        assertEquals(other.getNumEmptySlots() - 1, redone.getNumEmptySlots());
+    }
+
+    @Test public void writeAndRead() throws Exception {
+        HeapPage before = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        HeapPage after = insertOne(before);
+        PageDelta delta = PageDelta.diff(before, after);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        delta.write(new DataOutputStream(bytes));
+        // far less than the two full images an UPDATE record used to hold
+        assertTrue(bytes.size() < before.getPageData().length / 10);
+
+        PageDelta read = PageDelta.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(pid, read.getPageId());
+        assertEquals(delta.numRanges(), read.numRanges());
+        assertTrue(Arrays.equals(after.getPageData(), read.redo(before).getPageData()));
+        assertTrue(Arrays.equals(before.getPageData(), read.undo(after).getPageData()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void differentPages() throws Exception {
+        HeapPage a = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        HeapPage b = new HeapPage(new HeapPageId(-1, 0), HeapPageReadTest.EXAMPLE_DATA);
+        PageDelta.diff(a, b);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
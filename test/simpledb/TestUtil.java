@@ -208,6 +208,10 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public Page emptyPage(PageId id) {
+            throw new RuntimeException("not implemented");
+        }
+
         public int numPages() {
             throw new RuntimeException("not implemented");
         }
@@ -118,6 +118,47 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     testTransactionComplete(false);
   }
 
+  /**
+   * Common unit test code for BufferPool.transactionComplete() with a
+   * transaction that dirties several pages. Verify that commit writes all
+   * of them, and that abort puts all of them back as they were.
+   */
+  public void testMultiPageTransactionComplete(boolean commit) throws Exception {
+    PageId[] pids = { p1, p0 };
+    int[] before = new int[pids.length];
+    for (int i = 0; i < pids.length; i++) {
+      HeapPage p = (HeapPage) bp.getPage(tid1, pids[i], Permissions.READ_WRITE);
+      before[i] = p.getNumEmptySlots();
+      bp.deleteTuple(tid1, p.iterator().next());
+      assertEquals(before[i] + 1, p.getNumEmptySlots());
+    }
+    bp.transactionComplete(tid1, commit);
+
+    // the pool must already have the right versions...
+    for (int i = 0; i < pids.length; i++) {
+      HeapPage p = (HeapPage) bp.getPage(tid2, pids[i], Permissions.READ_ONLY);
+      assertEquals(commit ? before[i] + 1 : before[i], p.getNumEmptySlots());
+    }
+    bp.transactionComplete(tid2);
+
+    // ...and so must the disk
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    TransactionId tid3 = new TransactionId();
+    for (int i = 0; i < pids.length; i++) {
+      HeapPage p = (HeapPage) bp.getPage(tid3, pids[i], Permissions.READ_ONLY);
+      assertEquals(commit ? before[i] + 1 : before[i], p.getNumEmptySlots());
+    }
+    bp.transactionComplete(tid3);
+  }
+
+  @Test public void commitMultiPageTransaction() throws Exception {
+    testMultiPageTransactionComplete(true);
+  }
+
+  @Test public void abortMultiPageTransaction() throws Exception {
+    testMultiPageTransactionComplete(false);
+  }
+
   /**
    * JUnit suite target
    */
@@ -109,7 +109,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 				tid, rootPtrId, Permissions.READ_ONLY);
 		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
 				tid, rootPtr.getRootId(), Permissions.READ_ONLY);
-		assertEquals(502, root.getNumEmptySlots());
+		assertEquals(501, root.getNumEmptySlots());
 		BTreeEntry e = root.iterator().next();
 		BTreeLeafPage leftChild = (BTreeLeafPage) Database.getBufferPool().getPage(
 				tid, e.getLeftChild(), Permissions.READ_ONLY);
@@ -200,7 +200,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 				tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
 		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
 				tid, rootPtr.getRootId(), Permissions.READ_ONLY);
-		assertEquals(502, root.getNumEmptySlots());
+		assertEquals(501, root.getNumEmptySlots());
 
 		BTreeEntry rootEntry = root.iterator().next();
 		BTreeInternalPage leftChild = (BTreeInternalPage) Database.getBufferPool().getPage(
@@ -223,7 +223,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 
 		// deleting a page of tuples should bring the internal page below minimum 
 		// occupancy and cause the entries to be redistributed
-		assertEquals(252, rightChild.getNumEmptySlots());
+		assertEquals(251, rightChild.getNumEmptySlots());
 		count = 0;
 		while(it.hasNext() && count < 502) {
 			BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid, 
@@ -233,8 +233,8 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 			it = rightChild.iterator();
 			count++;
 		}
-		assertTrue(leftChild.getNumEmptySlots() > 203);
-		assertTrue(rightChild.getNumEmptySlots() <= 252);
+		assertTrue(leftChild.getNumEmptySlots() > 202);
+		assertTrue(rightChild.getNumEmptySlots() <= 251);
 		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
 
 		// sanity check that the entries make sense
@@ -255,10 +255,10 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
     	BufferPool.setPageSize(1024);
 		
 		// This should create a B+ tree with three nodes in the second tier
-		// and 252 nodes in the third tier
-    	// (124 entries per internal/leaf page, 125 children per internal page ->
-    	// 251*124 + 1 = 31125)
-		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 31125,
+		// and 249 nodes in the third tier
+    	// (124 entries per leaf page, 123 entries and 124 children per internal page ->
+    	// 248*124 + 1 = 30753)
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 30753,
 				null, null, 0);
 
 		BTreeChecker.checkRep(bigFile, tid, new HashMap<>(), true);
@@ -269,7 +269,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 				tid, BTreeRootPtrPage.getId(bigFile.getId()), Permissions.READ_ONLY);
 		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
 				tid, rootPtr.getRootId(), Permissions.READ_ONLY);
-		assertEquals(122, root.getNumEmptySlots());
+		assertEquals(121, root.getNumEmptySlots());
 
 		BTreeEntry e = root.iterator().next();
 		BTreeInternalPage leftChild = (BTreeInternalPage) Database.getBufferPool().getPage(
@@ -316,18 +316,18 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		}
 
 		// confirm that the pages have merged
-		assertEquals(123, root.getNumEmptySlots());
+		assertEquals(122, root.getNumEmptySlots());
 		e = root.iterator().next();
 		leftChild = (BTreeInternalPage) Database.getBufferPool().getPage(
 				tid, e.getLeftChild(), Permissions.READ_ONLY);
 		rightChild = (BTreeInternalPage) Database.getBufferPool().getPage(
 				tid, e.getRightChild(), Permissions.READ_ONLY);
-		assertEquals(0, leftChild.getNumEmptySlots());
+		assertEquals(1, leftChild.getNumEmptySlots());
 		assertTrue(e.getKey().compare(Op.LESS_THAN_OR_EQ, rightChild.iterator().next().getKey()));
 
 		// Delete tuples causing leaf pages to merge until the first internal page 
 		// gets below minimum occupancy and causes the entries to be redistributed
-		count = 0;
+		count = 1;
 		while(count < 62) {
 			assertEquals(count, leftChild.getNumEmptySlots());
 			for(int i = 0; i < 124; ++i) {
@@ -352,7 +352,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
         assertEquals(rootPtr.getRootId().pgcateg(), BTreePageId.INTERNAL);
 		root = (BTreeInternalPage) Database.getBufferPool().getPage(
 				tid, rootPtr.getRootId(), Permissions.READ_ONLY);
-		assertEquals(0, root.getNumEmptySlots());
+		assertEquals(1, root.getNumEmptySlots());
         assertEquals(root.getParentId(), rootPtrId);
 
 		it.close();
@@ -0,0 +1,80 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Hammers the BufferPool with many reader threads. When the whole table fits
+ * in the pool, every request after the warm-up scan must be a hit; when it
+ * does not, concurrent misses and evictions must still hand back the right
+ * pages.
+ */
+public class BufferPoolConcurrencyTest extends SimpleDbTestBase {
+    private static final int THREADS = 32;
+    private static final int HOT_REQUESTS_PER_THREAD = 5000;
+    private static final int COLD_REQUESTS_PER_THREAD = 1000;
+
+    /** Runs THREADS readers, each issuing random READ_ONLY getPage calls. */
+    private static void runReaders(final HeapFile f, final BufferPool bp, final int requestsPerThread)
+            throws Exception {
+        final int numPages = f.numPages();
+        SystemTestUtil.runThreads(THREADS, thread -> {
+            TransactionId tid = new TransactionId();
+            Random rand = new Random(thread);
+            try {
+                for (int j = 0; j < requestsPerThread; j++) {
+                    HeapPageId pid = new HeapPageId(f.getId(), rand.nextInt(numPages));
+                    Page p = bp.getPage(tid, pid, Permissions.READ_ONLY);
+                    if (!pid.equals(p.getId()))
+                        throw new AssertionError("asked for " + pid + " but got " + p.getId());
+                }
+            } finally {
+                bp.transactionComplete(tid);
+            }
+        });
+    }
+
+    @Test public void testHotSetAllHits() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1024 * 40, null, null);
+        int numPages = f.numPages();
+        BufferPool bp = Database.resetBufferPool(numPages * 2);
+
+        // warm the pool
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < numPages; i++) {
+            bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        }
+        bp.transactionComplete(tid);
+        assertEquals(numPages, bp.getMissCount());
+
+        long requests = (long) THREADS * HOT_REQUESTS_PER_THREAD;
+        runReaders(f, bp, HOT_REQUESTS_PER_THREAD);
+
+        assertEquals(numPages, bp.getMissCount());
+        assertEquals(requests, bp.getHitCount());
+    }
+
+    @Test public void testConcurrentMissesAndEvictions() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1024 * 40, null, null);
+        BufferPool bp = Database.resetBufferPool(16);
+
+        long requests = (long) THREADS * COLD_REQUESTS_PER_THREAD;
+        runReaders(f, bp, COLD_REQUESTS_PER_THREAD);
+
+        assertEquals(requests, bp.getHitCount() + bp.getMissCount());
+        assertTrue(bp.getMissCount() > 0);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BufferPoolConcurrencyTest.class);
+    }
+}
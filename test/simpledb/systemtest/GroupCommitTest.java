@@ -0,0 +1,104 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Runs many small transactions, each inserting one tuple and committing,
+ * from several threads at once: once with every commit forcing the log, and
+ * once with group commit. Every committed tuple must be in its table, and
+ * with group commit the log must be forced fewer times than there are
+ * commits.
+ */
+public class GroupCommitTest extends SimpleDbTestBase {
+    private static final int THREADS = 8;
+    private static final int TRANSACTIONS_PER_THREAD = 50;
+
+    /** Runs THREADS committers, each inserting into a table of its own. */
+    private static void runCommitters(final List<HeapFile> tables) throws Exception {
+        SystemTestUtil.runThreads(THREADS, thread -> {
+            HeapFile table = tables.get(thread);
+            for (int i = 0; i < TRANSACTIONS_PER_THREAD; i++) {
+                Transaction t = new Transaction();
+                t.start();
+                Tuple tup = new Tuple(Utility.getTupleDesc(2));
+                tup.setField(0, new IntField(i));
+                tup.setField(1, new IntField(i));
+                Database.getBufferPool().insertTuple(t.getId(), table.getId(), tup);
+                t.commit();
+            }
+        });
+    }
+
+    private List<HeapFile> createTables() throws Exception {
+        List<HeapFile> tables = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            tables.add(SystemTestUtil.createRandomHeapFile(2, 0, null, null));
+        }
+        return tables;
+    }
+
+    private static void checkTables(List<HeapFile> tables) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (HeapFile table : tables) {
+            DbFileIterator it = table.iterator(tid);
+            it.open();
+            int count = 0;
+            while (it.hasNext()) {
+                it.next();
+                count++;
+            }
+            it.close();
+            assertEquals(TRANSACTIONS_PER_THREAD, count);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testForceEveryCommit() throws Exception {
+        runCommitters(createTables()); // warm up
+        List<HeapFile> tables = createTables();
+        LogFile log = Database.getLogFile();
+
+        long forcesBefore = log.getForceCount();
+        runCommitters(tables);
+        long forces = log.getForceCount() - forcesBefore;
+        long commits = (long) THREADS * TRANSACTIONS_PER_THREAD;
+
+        assertTrue(forces >= commits);
+        checkTables(tables);
+    }
+
+    @Test public void testGroupCommit() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(1, TimeUnit.MILLISECONDS, THREADS);
+        try {
+            runCommitters(createTables()); // warm up
+            List<HeapFile> tables = createTables();
+            long forcesBefore = log.getForceCount();
+            runCommitters(tables);
+            long forces = log.getForceCount() - forcesBefore;
+            long commits = (long) THREADS * TRANSACTIONS_PER_THREAD;
+
+            assertTrue("expected fewer forces than commits, got " + forces, forces < commits);
+            checkTables(tables);
+        } finally {
+            log.disableGroupCommit();
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
@@ -435,6 +435,83 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestRedoLostWrites()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        doInsert(hf2, 3, 4);
+
+        // *** Test:
+        // T1 and T2 insert into both tables and commit
+        // crash, losing the page writes made since the start
+        // redo should put the committed data back on both pages
+
+        byte[] old1 = java.nio.file.Files.readAllBytes(file1.toPath());
+        byte[] old2 = java.nio.file.Files.readAllBytes(file2.toPath());
+
+        doInsert(hf1, 5, 6);
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 7);
+        insertRow(hf2, t2, 8);
+        t2.commit();
+
+        Database.reset();
+        java.nio.file.Files.write(file1.toPath(), old1);
+        java.nio.file.Files.write(file2.toPath(), old2);
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getLogFile().recover();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 5, true);
+        look(hf1, t, 6, true);
+        look(hf1, t, 7, true);
+        look(hf1, t, 8, false);
+        look(hf2, t, 3, true);
+        look(hf2, t, 4, true);
+        look(hf2, t, 8, true);
+        look(hf2, t, 1, false);
+        t.commit();
+    }
+
+    @Test public void TestFuzzyCheckpointRedo()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 commits, but its page write is not synced
+        // checkpoint, which writes no pages and keeps T1's update in the
+        // dirty-page table
+        // crash, losing the page write
+        // redo from the recLSN should put T1's data back
+
+        byte[] old1 = java.nio.file.Files.readAllBytes(file1.toPath());
+        // a writer that never gets to run: the checkpoint leaves syncing to it
+        Database.getLogFile().setPageWriter(1, java.util.concurrent.TimeUnit.HOURS);
+        doInsert(hf1, 3, 4);
+        Database.getLogFile().logCheckpoint();
+        assertFalse(Database.getLogFile().getDirtyPages().isEmpty());
+        Database.getLogFile().disablePageWriter();
+
+        Database.reset();
+        java.nio.file.Files.write(file1.toPath(), old1);
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getLogFile().recover();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, true);
+        t.commit();
+    }
 
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
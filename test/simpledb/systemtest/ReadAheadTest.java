@@ -0,0 +1,91 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+
+/**
+ * Sequential scans over a file whose page reads are slow. The scan thread
+ * itself should only have to read the first pages; the rest are read ahead
+ * on background threads.
+ */
+public class ReadAheadTest extends SimpleDbTestBase {
+    private static final int TUPLES_PER_PAGE = 992; // one int column, 4096 byte pages
+
+    /** Counts page reads by the thread that does them, and makes each read slow. */
+    private static class SlowHeapFile extends HeapFile {
+        final Thread scanner = Thread.currentThread();
+        final AtomicInteger scannerReads = new AtomicInteger();
+        final AtomicInteger backgroundReads = new AtomicInteger();
+
+        SlowHeapFile(File f) {
+            super(f, Utility.getTupleDesc(1));
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            if (Thread.currentThread() == scanner) scannerReads.incrementAndGet();
+            else backgroundReads.incrementAndGet();
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    private void scanSlowFile(int pages, int poolPages) throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(1, TUPLES_PER_PAGE * pages, 1000, null, tuples);
+        SlowHeapFile table = new SlowHeapFile(f);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        Database.resetBufferPool(poolPages);
+
+        long start = System.nanoTime();
+        SystemTestUtil.matchTuples(table, tuples);
+        long elapsed = System.nanoTime() - start;
+        System.out.println("ReadAheadTest " + pages + " pages, pool " + poolPages + ": "
+                + elapsed / 1000000 + "ms, " + table.scannerReads.get() + " reads by the scan, "
+                + table.backgroundReads.get() + " read ahead");
+
+        assertEquals(pages, table.scannerReads.get() + table.backgroundReads.get());
+        assertTrue("the scan read " + table.scannerReads.get() + " pages itself",
+                table.scannerReads.get() <= pages / 4);
+    }
+
+    @Test public void testReadAheadIntoPool() throws Exception {
+        scanSlowFile(60, 200);
+    }
+
+    @Test public void testReadAheadThroughScanRing() throws Exception {
+        // the file is larger than the pool, so the scan uses a ring
+        scanSlowFile(120, 64);
+    }
+
+    @Test public void testNoReadAheadInTinyPool() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(1, TUPLES_PER_PAGE * 10, 1000, null, tuples);
+        SlowHeapFile table = new SlowHeapFile(f);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        Database.resetBufferPool(2);
+
+        SystemTestUtil.matchTuples(table, tuples);
+        assertEquals(0, table.backgroundReads.get());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
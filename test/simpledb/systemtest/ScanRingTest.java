@@ -0,0 +1,106 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Point lookups on a small hot table while full scans of a table several
+ * times the size of the buffer pool run next to them. The pool uses plain
+ * LRU, which on its own would let every scan flush the hot pages; the scan's
+ * ring must keep them resident, so lookup latency stays flat. Latency
+ * percentiles with and without the concurrent scan are printed.
+ */
+public class ScanRingTest extends SimpleDbTestBase {
+    private static final int BUFFER_PAGES = 64;
+    private static final int HOT_PAGES = 8;
+    private static final int SCAN_PAGES = 200;
+    private static final int LOOKUPS = 20000;
+    private static final int TUPLES_PER_PAGE = 504; // two int columns, 4096 byte pages
+
+    private static long[] lookups(BufferPool bp, HeapFile hot, TransactionId tid, Random rand)
+            throws Exception {
+        long[] latencies = new long[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            HeapPageId pid = new HeapPageId(hot.getId(), rand.nextInt(HOT_PAGES));
+            long start = System.nanoTime();
+            bp.getPage(tid, pid, Permissions.READ_ONLY);
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static String describe(long[] sorted) {
+        return "p50=" + sorted[sorted.length / 2] + "ns p99=" + sorted[sorted.length * 99 / 100]
+                + "ns max=" + sorted[sorted.length - 1] + "ns";
+    }
+
+    @Test public void testLookupsUnaffectedByConcurrentScan() throws Exception {
+        final HeapFile hot = SystemTestUtil.createRandomHeapFile(2, HOT_PAGES * TUPLES_PER_PAGE, null, null);
+        final HeapFile big = SystemTestUtil.createRandomHeapFile(2, SCAN_PAGES * TUPLES_PER_PAGE, null, null);
+        assertEquals(HOT_PAGES, hot.numPages());
+        final BufferPool bp = Database.resetBufferPool(BUFFER_PAGES, EvictionPolicy.lru());
+
+        TransactionId lookupTid = new TransactionId();
+        Random rand = new Random(1);
+        long[] idle = lookups(bp, hot, lookupTid, rand);
+
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicLong scanned = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread scanner = new Thread(() -> {
+            TransactionId scanTid = new TransactionId();
+            try {
+                do {
+                    SeqScan scan = new SeqScan(scanTid, big.getId(), "");
+                    scan.open();
+                    while (scan.hasNext()) {
+                        scan.next();
+                        scanned.incrementAndGet();
+                    }
+                    scan.close();
+                } while (!stop.get());
+            } catch (Throwable t) {
+                failure.set(t);
+            } finally {
+                bp.transactionComplete(scanTid);
+            }
+        });
+        scanner.start();
+        long[] busy = lookups(bp, hot, lookupTid, rand);
+        stop.set(true);
+        scanner.join();
+        if (failure.get() != null) throw new AssertionError("scan failed", failure.get());
+
+        System.out.println("ScanRingTest lookups without scan: " + describe(idle));
+        System.out.println("ScanRingTest lookups during scan:  " + describe(busy)
+                + " (" + scanned.get() + " tuples scanned)");
+        assertTrue(scanned.get() >= (long) SCAN_PAGES * TUPLES_PER_PAGE);
+
+        // every hot page is still resident: touching them all reads nothing
+        long missesBefore = bp.getMissCount();
+        for (int i = 0; i < HOT_PAGES; i++) {
+            bp.getPage(lookupTid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        }
+        assertEquals(missesBefore, bp.getMissCount());
+        bp.transactionComplete(lookupTid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ScanRingTest.class);
+    }
+}
@@ -7,6 +7,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Assert;
 
@@ -151,6 +152,39 @@ public class SystemTestUtil {
         }
     }
 
+    /** The work of each thread started by {@link #runThreads}. */
+    public interface ThreadBody {
+        /** @param thread the number of the thread, from 0 */
+        void run(int thread) throws Exception;
+    }
+
+    /**
+     * Runs body in the given number of threads at once and waits for all of
+     * them to finish.
+     * @throws AssertionError if a thread failed, with the first failure as its cause
+     */
+    public static void runThreads(int threads, final ThreadBody body) throws InterruptedException {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> started = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final int thread = i;
+            Thread t = new Thread(() -> {
+                try {
+                    body.run(thread);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            t.start();
+            started.add(t);
+        }
+        for (Thread t : started) t.join();
+
+        if (failure.get() != null) {
+            throw new AssertionError("thread failed", failure.get());
+        }
+    }
+
     /**
      * Returns number of bytes of RAM used by JVM after calling System.gc many times.
      * @return amount of RAM (in bytes) used by JVM